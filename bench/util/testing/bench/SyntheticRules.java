@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.bench;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.runner.Description;
+
+/**
+ * 
+ * A synthetic inventory of tests together with a set of rules that match them. The inventory and the rules are
+ * generated from a fixed seed, so every run of a benchmark uses the same data.
+ * 
+ * @author cvesters
+ */
+public final class SyntheticRules
+{
+	/**
+	 * The number of alternatives for every package level.
+	 **/
+	private static final int PACKAGE_BRANCHING = 6;
+	
+	/**
+	 * The number of methods of every test class.
+	 **/
+	private static final int METHODS_PER_CLASS = 20;
+	
+	/**
+	 * The fully qualified names of the tests, of the form 'package.Class.method'.
+	 **/
+	private final List<String> fTestNames = new ArrayList<String>();
+	
+	/**
+	 * The names of the test methods, grouped per class in order of appearance.
+	 **/
+	private final Map<String, List<String>> fMethodsPerClass = new LinkedHashMap<String, List<String>>();
+	
+	/**
+	 * The rules, mapping an expression to 'included' or 'excluded'.
+	 **/
+	private final Properties fRules = new Properties();
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param ruleCount The number of rules.
+	 * @param literalRatio The fraction of the rules that does not contain wildcards.
+	 * @param depth The number of parts in the name of a test, including the class and the method.
+	 * @param naming How test methods are named: 'plain', 'indexed' for 'test[3]' or 'valued' for 'test[3: 1.5]'.
+	 * @param testCount The number of tests in the inventory.
+	 * 
+	 **/
+	public SyntheticRules(final int ruleCount, final double literalRatio, final int depth, final String naming, final int testCount)
+	{
+		assert depth >= 3 : "A test name consists of at least a package, a class and a method.";
+		
+		final Random random = new Random(42);
+		while (fTestNames.size() < testCount)
+		{
+			final StringBuilder className = new StringBuilder();
+			for (int level = 0; level < (depth - 2); level++)
+			{
+				className.append("pkg").append(random.nextInt(PACKAGE_BRANCHING)).append('.');
+			}
+			className.append("Test").append(random.nextInt(testCount));
+			
+			List<String> methods = fMethodsPerClass.get(className.toString());
+			if (methods == null)
+			{
+				methods = new ArrayList<String>();
+				fMethodsPerClass.put(className.toString(), methods);
+			}
+			
+			for (int i = 0; (i < METHODS_PER_CLASS) && (fTestNames.size() < testCount); i++)
+			{
+				final String methodName = createMethodName(random, naming, methods.size());
+				methods.add(methodName);
+				fTestNames.add(className + "." + methodName);
+			}
+		}
+		
+		while (fRules.size() < ruleCount)
+		{
+			final String[] parts = fTestNames.get(random.nextInt(fTestNames.size())).split("\\.");
+			final int length = 1 + random.nextInt(depth);
+			final int wildcardPart = (random.nextDouble() < literalRatio) ? -1 : random.nextInt(length);
+			
+			final StringBuilder rule = new StringBuilder();
+			for (int i = 0; i < length; i++)
+			{
+				// Only keep the plain method name, the parameters contain characters that are not valid in a rule.
+				final String part = parts[i].replaceAll("\\[.*", "");
+				if (i > 0)
+				{
+					rule.append('.');
+				}
+				rule.append((i == wildcardPart) ? createGlob(random, part) : part);
+			}
+			
+			fRules.setProperty(rule.toString(), random.nextBoolean() ? "included" : "excluded");
+		}
+	}
+	
+	
+	/**
+	 * @return The fully qualified names of the tests.
+	 **/
+	public List<String> getTestNames()
+	{
+		return fTestNames;
+	}
+	
+	
+	/**
+	 * @return The rules, mapping an expression to 'included' or 'excluded'.
+	 **/
+	public Properties getRules()
+	{
+		return fRules;
+	}
+	
+	
+	/**
+	 * 
+	 * Create a description of a suite that contains a suite per package and a description per class, like the
+	 * description of a hierarchy of property suites.
+	 * 
+	 * @return The description of the root suite.
+	 * 
+	 **/
+	public Description createDescription()
+	{
+		final Description root = Description.createSuiteDescription("AllTests");
+		final Map<String, Description> packages = new LinkedHashMap<String, Description>();
+		for (final Map.Entry<String, List<String>> entry : fMethodsPerClass.entrySet())
+		{
+			final String className = entry.getKey();
+			final String packageName = className.substring(0, className.lastIndexOf('.'));
+			Description packageSuite = packages.get(packageName);
+			if (packageSuite == null)
+			{
+				packageSuite = Description.createSuiteDescription(packageName + ".PackageSuite");
+				packages.put(packageName, packageSuite);
+				root.addChild(packageSuite);
+			}
+			
+			final Description classSuite = Description.createSuiteDescription(className);
+			for (final String methodName : entry.getValue())
+			{
+				classSuite.addChild(Description.createTestDescription(className, methodName));
+			}
+			packageSuite.addChild(classSuite);
+		}
+		
+		return root;
+	}
+	
+	
+	/**
+	 * 
+	 * Create the name of a test method.
+	 * 
+	 * @param random The source of randomness.
+	 * @param naming How test methods are named.
+	 * @param index The index of the method in its class.
+	 * @return The name of the method.
+	 * 
+	 **/
+	private static String createMethodName(final Random random, final String naming, final int index)
+	{
+		final String name = "test" + random.nextInt(METHODS_PER_CLASS);
+		if ("indexed".equals(naming))
+		{
+			return name + "[" + index + "]";
+		}
+		else if ("valued".equals(naming))
+		{
+			return name + "[" + index + ": " + random.nextInt(100) + "." + random.nextInt(100) + "]";
+		}
+		
+		return name + "_" + index;
+	}
+	
+	
+	/**
+	 * 
+	 * Turn a part of a name into a glob that still matches it.
+	 * 
+	 * @param random The source of randomness.
+	 * @param part The part of the name.
+	 * @return The glob.
+	 * 
+	 **/
+	private static String createGlob(final Random random, final String part)
+	{
+		final int position = random.nextInt(part.length());
+		switch (random.nextInt(3))
+		{
+			case 0:
+				return "*";
+			case 1:
+				return part.substring(0, position) + "*";
+			default:
+				return part.substring(0, position) + "?" + part.substring(position + 1);
+		}
+	}
+}
\ No newline at end of file
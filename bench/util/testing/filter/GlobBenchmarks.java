@@ -0,0 +1,138 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+
+import util.testing.bench.Benchmark;
+
+/**
+ * 
+ * Benchmarks for matching a single subpart against a glob, comparing {@link Glob} with the file system glob matcher.
+ * The globs range from a simple prefix to many wildcards that make a backtracking matcher slow. The only parameters
+ * are the warm up time, the iteration time and the number of iterations, given as 'warmup=1000', 'time=1000' and
+ * 'iterations=5'.
+ * 
+ * @author cvesters
+ */
+public final class GlobBenchmarks
+{
+	/**
+	 * The globs to benchmark, each with the subparts it is matched against.
+	 **/
+	private static final String[][] CASES =
+		{
+			{"Test*", "TestSomething", "SomethingElse", "Test"},
+			{"test?", "testA", "testAB", "test"},
+			{"*Integration*Test", "CustomerIntegrationServiceTest", "CustomerIntegrationService", "IntegrationTest"},
+			{"*a*a*a*a*a*b", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa", "aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaab"},
+		};
+	
+	
+	/**
+	 * 
+	 * Constructor. Not used.
+	 * 
+	 **/
+	private GlobBenchmarks()
+	{
+	}
+	
+	
+	/**
+	 * 
+	 * Run the benchmarks.
+	 * 
+	 * @param args The parameters, of the form 'name=value'.
+	 * 
+	 **/
+	public static void main(final String[] args)
+	{
+		long warmup = 1000;
+		long time = 1000;
+		int iterations = 5;
+		for (final String arg : args)
+		{
+			final String[] parts = arg.split("=", 2);
+			if ((parts.length == 2) && parts[0].equals("warmup"))
+			{
+				warmup = Long.parseLong(parts[1]);
+			}
+			else if ((parts.length == 2) && parts[0].equals("time"))
+			{
+				time = Long.parseLong(parts[1]);
+			}
+			else if ((parts.length == 2) && parts[0].equals("iterations"))
+			{
+				iterations = Integer.parseInt(parts[1]);
+			}
+			else
+			{
+				System.out.println("[ERROR] Unknown parameter '" + arg + "'.");
+				return;
+			}
+		}
+		
+		final Benchmark benchmark = new Benchmark(warmup, time, iterations);
+		Benchmark.printHeader();
+		for (final String[] testCase : CASES)
+		{
+			run(benchmark, testCase);
+		}
+		
+		System.out.println("(" + benchmark.getSink() + ")");
+	}
+	
+	
+	/**
+	 * 
+	 * Run the benchmarks for one glob.
+	 * 
+	 * @param benchmark The harness.
+	 * @param testCase The glob, followed by the subparts to match.
+	 * 
+	 **/
+	private static void run(final Benchmark benchmark, final String[] testCase)
+	{
+		final String subPart = testCase[0];
+		final Glob glob = new Glob(subPart);
+		final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + subPart);
+		final int count = testCase.length - 1;
+		final String[] texts = new String[count];
+		System.arraycopy(testCase, 1, texts, 0, count);
+		
+		benchmark.measure("glob.linear [" + subPart + "]", new Benchmark.Operation()
+		{
+			@Override
+			public long run()
+			{
+				long matched = 0;
+				for (final String text : texts)
+				{
+					matched += glob.matches(text, 0, text.length()) ? 1 : 0;
+				}
+				return matched;
+			}
+		}, count);
+		
+		benchmark.measure("glob.pathMatcher [" + subPart + "]", new Benchmark.Operation()
+		{
+			@Override
+			public long run()
+			{
+				long matched = 0;
+				for (final String text : texts)
+				{
+					final Path path = Paths.get(text);
+					matched += matcher.matches(path) ? 1 : 0;
+				}
+				return matched;
+			}
+		}, count);
+	}
+}
\ No newline at end of file
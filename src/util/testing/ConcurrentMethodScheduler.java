@@ -0,0 +1,329 @@
+package util.testing;
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.runner.Description;
+import org.junit.runner.Runner;
+import org.junit.runners.ParentRunner;
+import org.junit.runners.model.RunnerScheduler;
+
+import util.testing.filter.PropertyFilter;
+
+
+/**
+ * 
+ * A scheduler that runs the test methods of a class concurrently, if the option 'concurrent' is listed by their rules,
+ * for example 'com.acme.io = included,concurrent'. Tests that mostly wait for I/O finish much sooner this way.
+ * 
+ * The concurrent methods of a class are taken from a queue by at most as many threads as the concurrency cap, the
+ * thread that runs the class being one of them. The cap is four times the number of processors, unless it is set with
+ * the system property 'testfilter.concurrency'. The other methods of the class run one by one after the concurrent
+ * methods have finished. The other threads are taken from a pool shared by all classes of the JVM, which holds no
+ * more threads than the cap less one, so the classes that run in parallel share the cap. A class in a resource
+ * group with a limit holds a permit of the group for the thread that runs it, every other thread that runs its methods
+ * takes a permit of the group as well, so the limit holds for the methods of all classes of the group together.
+ * 
+ * @author cvesters
+ * 
+ **/
+final class ConcurrentMethodScheduler implements RunnerScheduler
+{
+	/**
+	 * The system property with the maximum number of methods of a class that run at the same time.
+	 **/
+	private static final String CONCURRENCY_PROPERTY = "testfilter.concurrency";
+	
+	/**
+	 * The pool of threads that run the concurrent methods, created when the first concurrent method runs. Guarded by
+	 * the class.
+	 **/
+	private static ThreadPoolExecutor fgExecutor;
+	
+	/**
+	 * The runner of the class.
+	 **/
+	private final ParentRunner<?> fRunner;
+	
+	/**
+	 * The filter that tells which methods can run concurrently.
+	 **/
+	private final PropertyFilter fFilter;
+	
+	/**
+	 * The statements that run the methods, in the order they were scheduled.
+	 **/
+	private final List<Runnable> fChildren = new ArrayList<Runnable>();
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param runner The runner of the class.
+	 * @param filter The filter that tells which methods can run concurrently.
+	 * 
+	 **/
+	private ConcurrentMethodScheduler(final ParentRunner<?> runner, final PropertyFilter filter)
+	{
+		fRunner = runner;
+		fFilter = filter;
+	}
+	
+	
+	/**
+	 * 
+	 * Let a runner run its concurrent methods with this scheduler, if it has any. Runners of which the children are not
+	 * test methods, like suites and parameterized tests, are left as they are.
+	 * 
+	 * @param runner The runner of a class.
+	 * @param filter The filter that tells which methods can run concurrently.
+	 * 
+	 **/
+	static void install(final Runner runner, final PropertyFilter filter)
+	{
+		if (runner instanceof ParentRunner)
+		{
+			for (final Description child : runner.getDescription().getChildren())
+			{
+				if (child.isTest() && filter.isConcurrent(child.getClassName(), child.getMethodName()))
+				{
+					((ParentRunner<?>) runner).setScheduler(new ConcurrentMethodScheduler((ParentRunner<?>) runner, filter));
+					return;
+				}
+			}
+		}
+	}
+	
+	
+	@Override
+	public synchronized void schedule(final Runnable childStatement)
+	{
+		fChildren.add(childStatement);
+	}
+	
+	
+	@Override
+	public void finished()
+	{
+		final List<Runnable> children;
+		synchronized (this)
+		{
+			children = new ArrayList<Runnable>(fChildren);
+			fChildren.clear();
+		}
+		
+		// The scheduler only receives statements, the methods are identified by their descriptions.
+		final List<Description> descriptions = fRunner.getDescription().getChildren();
+		final Queue<Runnable> concurrentChildren = new ConcurrentLinkedQueue<Runnable>();
+		final List<Runnable> serialChildren = new ArrayList<Runnable>();
+		for (int i = 0; i < children.size(); i++)
+		{
+			final Description description = (descriptions.size() == children.size()) ? descriptions.get(i) : null;
+			if ((description != null) && description.isTest() && fFilter.isConcurrent(description.getClassName(), description.getMethodName()))
+			{
+				concurrentChildren.add(children.get(i));
+			}
+			else
+			{
+				serialChildren.add(children.get(i));
+			}
+		}
+		
+		final String group = fFilter.getGroup(String.valueOf(fRunner.getDescription().getClassName()));
+		final boolean limited = (group != null) && (fFilter.getGroupLimit(group) < Integer.MAX_VALUE);
+		runConcurrently(concurrentChildren, getConcurrency(), limited ? ResourceGroup.get(group, fFilter.getGroupLimit(group)) : null);
+		for (final Runnable child : serialChildren)
+		{
+			child.run();
+		}
+	}
+	
+	
+	/**
+	 * @return The maximum number of methods of a class that run at the same time.
+	 **/
+	private static int getConcurrency()
+	{
+		return Math.max(1, Integer.getInteger(CONCURRENCY_PROPERTY, 4 * Runtime.getRuntime().availableProcessors()).intValue());
+	}
+	
+	
+	/**
+	 * 
+	 * Get the pool of threads that run the concurrent methods. The pool grows when the cap was raised since it was
+	 * created, the threads that are idle for a minute are stopped.
+	 * 
+	 * @param concurrency The maximum number of methods of a class that run at the same time.
+	 * @return The pool of threads that run the concurrent methods.
+	 * 
+	 **/
+	private static synchronized ExecutorService getExecutor(final int concurrency)
+	{
+		// The thread that runs the class runs methods as well.
+		final int threadCount = Math.max(1, concurrency - 1);
+		if (fgExecutor == null)
+		{
+			final AtomicInteger threadNumber = new AtomicInteger();
+			fgExecutor = new ThreadPoolExecutor(threadCount, threadCount, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(final Runnable runnable)
+				{
+					final Thread thread = new Thread(runnable, "testfilter-concurrent-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			fgExecutor.allowCoreThreadTimeOut(true);
+		}
+		else if (fgExecutor.getMaximumPoolSize() < threadCount)
+		{
+			fgExecutor.setMaximumPoolSize(threadCount);
+			fgExecutor.setCorePoolSize(threadCount);
+		}
+		
+		return fgExecutor;
+	}
+	
+	
+	/**
+	 * 
+	 * Run the statements of methods concurrently, and wait until all of them have finished. The first exception of a
+	 * statement is thrown after all statements have finished.
+	 * 
+	 * @param children The statements that run the methods.
+	 * @param concurrency The maximum number of methods that run at the same time.
+	 * @param group The resource group of the class, which holds a permit for the thread that runs the class. Every
+	 * other thread takes a permit of its own, no more threads are used than there are free permits. Null if the class
+	 * is not in a group with a limit.
+	 * 
+	 **/
+	private static void runConcurrently(final Queue<Runnable> children, final int concurrency, final ResourceGroup group)
+	{
+		final Runnable worker = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				Runnable child;
+				while ((child = children.poll()) != null)
+				{
+					child.run();
+				}
+			}
+		};
+		
+		final List<Future<?>> helpers = new ArrayList<Future<?>>();
+		final int helperCount = Math.min(concurrency, children.size()) - 1;
+		for (int i = 0; (i < helperCount) && ((group == null) || group.tryAcquire()); i++)
+		{
+			helpers.add(getExecutor(concurrency).submit((group == null) ? worker : new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						worker.run();
+					}
+					finally
+					{
+						group.release();
+					}
+				}
+			}));
+		}
+		
+		RuntimeException failure = null;
+		try
+		{
+			worker.run();
+		}
+		catch (final RuntimeException e)
+		{
+			failure = e;
+		}
+		
+		for (final Future<?> helper : helpers)
+		{
+			final Throwable helperFailure = await(helper);
+			if ((failure == null) && (helperFailure != null))
+			{
+				failure = (helperFailure instanceof RuntimeException) ? (RuntimeException) helperFailure : new IllegalStateException(helperFailure);
+			}
+		}
+		
+		if (failure != null)
+		{
+			throw failure;
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Wait until a helper has finished. A worker of a fork join pool that waits lets the pool start another worker, so
+	 * the parallelism of the pool is kept.
+	 * 
+	 * @param helper The helper.
+	 * @return The exception thrown by the helper, null if it finished normally.
+	 * 
+	 **/
+	private static Throwable await(final Future<?> helper)
+	{
+		try
+		{
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker()
+			{
+				@Override
+				public boolean block() throws InterruptedException
+				{
+					try
+					{
+						helper.get();
+					}
+					catch (final ExecutionException e)
+					{
+						// The exception is taken from the future below.
+					}
+					return true;
+				}
+				
+				
+				@Override
+				public boolean isReleasable()
+				{
+					return helper.isDone();
+				}
+			});
+			helper.get();
+			return null;
+		}
+		catch (final ExecutionException e)
+		{
+			return e.getCause();
+		}
+		catch (final InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return e;
+		}
+	}
+}
\ No newline at end of file
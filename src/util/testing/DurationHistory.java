@@ -0,0 +1,516 @@
+package util.testing;
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.runner.Description;
+
+import util.testing.filter.FailedTests;
+
+
+/**
+ * 
+ * The durations of the tests of previous runs, by the name of the class and by the name of the class and the method,
+ * 'package.Class.method', in microseconds, and the recent failures of the tests. The history is recorded by a
+ * {@link DurationListener} and used to schedule the slowest tests, or the tests that failed recently, first.
+ * 
+ * The failures of a test are kept for the last eight runs in which it ran, one bit per run, the most recent run in the
+ * highest bit. A test that failed more recently has a higher value, and a test that did not fail in any of these runs
+ * has no failures. Tests that did not run keep their failures, so every run updates only the tests it ran.
+ * 
+ * The history is kept in a binary file, 'testfilter.history' in the working directory unless another file is set with
+ * the system property 'testfilter.history'. The names are sorted, and every name is stored as the length of the prefix
+ * it shares with the previous name followed by the rest of the name, so the many tests of a class cost little more than
+ * their method names. Several JVMs can merge their durations into the same file: the file is locked while it is merged,
+ * and replaced at once so it is never read half written.
+ * 
+ * @author cvesters
+ * 
+ **/
+public final class DurationHistory
+{
+	/**
+	 * The system property with the history file.
+	 **/
+	public static final String HISTORY_PROPERTY = "testfilter.history";
+	
+	/**
+	 * The first bytes of a history file.
+	 **/
+	private static final int MAGIC = 0x48495354;
+	
+	/**
+	 * The version of the format of the history files.
+	 **/
+	private static final int VERSION = 2;
+	
+	/**
+	 * The bit of the failures of the most recent run.
+	 **/
+	private static final int LAST_FAILURE = 0x80;
+	
+	/**
+	 * The history read from the history file, shared by all suites of the JVM. Guarded by the class.
+	 **/
+	private static DurationHistory fgShared;
+	
+	/**
+	 * The durations, by the name of the class or the test.
+	 **/
+	private final SortedMap<String, Long> fDurations;
+	
+	/**
+	 * The failures of the tests and classes that failed in one of their last runs, by their name.
+	 **/
+	private final Map<String, Integer> fFailures;
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param durations The durations, by the name of the class or the test.
+	 * @param failures The failures, by the name of the class or the test.
+	 * 
+	 **/
+	private DurationHistory(final SortedMap<String, Long> durations, final Map<String, Integer> failures)
+	{
+		fDurations = Collections.unmodifiableSortedMap(durations);
+		fFailures = Collections.unmodifiableMap(failures);
+	}
+	
+	
+	/**
+	 * @return The history file.
+	 **/
+	public static Path getFile()
+	{
+		return Paths.get(System.getProperty(HISTORY_PROPERTY, "testfilter.history"));
+	}
+	
+	
+	/**
+	 * 
+	 * Get the history shared by all suites of the JVM. The history is read from the history file the first time. A
+	 * history file that does not exist or cannot be read gives an empty history.
+	 * 
+	 * @return The shared history.
+	 * 
+	 **/
+	public static synchronized DurationHistory getShared()
+	{
+		if (fgShared == null)
+		{
+			final Path file = getFile();
+			try
+			{
+				fgShared = read(file);
+			}
+			catch (final IOException e)
+			{
+				System.out.println("[WARNING] Failed to read the test history '" + file + "': " + e);
+				fgShared = new DurationHistory(new TreeMap<String, Long>(), new HashMap<String, Integer>());
+			}
+		}
+		
+		return fgShared;
+	}
+	
+	
+	/**
+	 * 
+	 * Read the history of a history file.
+	 * 
+	 * @param file The history file.
+	 * @return The history, empty if the file does not exist.
+	 * @throws IOException If the history file could not be read or is not a history file.
+	 * 
+	 **/
+	static DurationHistory read(final Path file) throws IOException
+	{
+		final SortedMap<String, Long> durations = new TreeMap<String, Long>();
+		final Map<String, Integer> failures = new HashMap<String, Integer>();
+		if (Files.exists(file))
+		{
+			read(file, durations, failures);
+		}
+		
+		return new DurationHistory(durations, failures);
+	}
+	
+	
+	/**
+	 * 
+	 * Get the duration of a class or a test.
+	 * 
+	 * @param name The name of the class, or the name of the class and the method of the test.
+	 * @return The duration in microseconds, -1 if it is not known.
+	 * 
+	 **/
+	public long getDuration(final String name)
+	{
+		final Long duration = fDurations.get(name);
+		return (duration == null) ? -1 : duration.longValue();
+	}
+	
+	
+	/**
+	 * 
+	 * Get the duration of the tests of a description, the sum of the durations of the tests that are known.
+	 * 
+	 * @param description The description of a test, a class or a suite.
+	 * @return The duration in microseconds, -1 if the duration of none of the tests is known.
+	 * 
+	 **/
+	public long getDuration(final Description description)
+	{
+		long total = -1;
+		final ArrayDeque<Description> descriptions = new ArrayDeque<Description>();
+		descriptions.push(description);
+		while (!descriptions.isEmpty())
+		{
+			final Description next = descriptions.pop();
+			if (next.isTest())
+			{
+				final long duration = getDuration(FailedTests.getName(next));
+				if (duration >= 0)
+				{
+					total = Math.max(total, 0) + duration;
+				}
+			}
+			for (final Description child : next.getChildren())
+			{
+				descriptions.push(child);
+			}
+		}
+		
+		return total;
+	}
+	
+	
+	/**
+	 * 
+	 * Get the recent failures of a class or a test.
+	 * 
+	 * @param name The name of the class, or the name of the class and the method of the test.
+	 * @return The failures of the last eight runs, one bit per run, the most recent run in the highest bit, 0 if the
+	 * class or the test did not fail in any of them.
+	 * 
+	 **/
+	public int getFailures(final String name)
+	{
+		final Integer failures = fFailures.get(name);
+		return (failures == null) ? 0 : failures.intValue();
+	}
+	
+	
+	/**
+	 * 
+	 * Get the most recent failures of the tests of a description and of their classes.
+	 * 
+	 * @param description The description of a test, a class or a suite.
+	 * @return The highest failures of the tests and the classes, 0 if none of them failed recently.
+	 * 
+	 **/
+	public int getFailures(final Description description)
+	{
+		if (fFailures.isEmpty())
+		{
+			return 0;
+		}
+		
+		int failures = 0;
+		final ArrayDeque<Description> descriptions = new ArrayDeque<Description>();
+		descriptions.push(description);
+		while (!descriptions.isEmpty())
+		{
+			final Description next = descriptions.pop();
+			failures = Math.max(failures, getFailures(FailedTests.getName(next)));
+			if (next.isTest())
+			{
+				failures = Math.max(failures, getFailures(FailedTests.getClassName(next)));
+			}
+			for (final Description child : next.getChildren())
+			{
+				descriptions.push(child);
+			}
+		}
+		
+		return failures;
+	}
+	
+	
+	/**
+	 * @return The durations in microseconds, by the name of the class or the test.
+	 **/
+	public SortedMap<String, Long> getDurations()
+	{
+		return fDurations;
+	}
+	
+	
+	/**
+	 * 
+	 * Merge a run into the history file. The durations of the file are averaged with the new ones, so the history
+	 * follows changes of the tests without depending on a single run. The failures of the classes and the tests that
+	 * ran are shifted by one run.
+	 * 
+	 * @param file The history file.
+	 * @param durations The durations of a run in microseconds, by the name of the class or the test.
+	 * @param failures The names of the classes and the tests that failed in the run.
+	 * @throws IOException If the history file could not be written.
+	 * 
+	 **/
+	public static synchronized void merge(final Path file, final Map<String, Long> durations, final Set<String> failures) throws IOException
+	{
+		final Path directory = file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		try (final FileChannel lockChannel = FileChannel.open(directory.resolve(file.getFileName() + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+		{
+			final FileLock lock = lockChannel.lock();
+			try
+			{
+				merge(directory, file, durations, failures);
+			}
+			finally
+			{
+				lock.release();
+			}
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Merge a run into the history file, while the file is locked.
+	 * 
+	 * @param directory The directory of the history file.
+	 * @param file The history file.
+	 * @param durations The durations of a run in microseconds, by the name of the class or the test.
+	 * @param failures The names of the classes and the tests that failed in the run.
+	 * @throws IOException If the history file could not be written.
+	 * 
+	 **/
+	private static void merge(final Path directory, final Path file, final Map<String, Long> durations, final Set<String> failures) throws IOException
+	{
+		final SortedMap<String, Long> merged = new TreeMap<String, Long>();
+		final Map<String, Integer> mergedFailures = new HashMap<String, Integer>();
+		if (Files.exists(file))
+		{
+			try
+			{
+				read(file, merged, mergedFailures);
+			}
+			catch (final IOException e)
+			{
+				System.out.println("[WARNING] Replacing the test history '" + file + "' that cannot be read: " + e);
+				merged.clear();
+				mergedFailures.clear();
+			}
+		}
+		
+		for (final Map.Entry<String, Long> duration : durations.entrySet())
+		{
+			final Long previous = merged.get(duration.getKey());
+			merged.put(duration.getKey(), Long.valueOf((previous == null) ? duration.getValue().longValue() : ((previous.longValue() + duration.getValue().longValue()) / 2)));
+		}
+		
+		final Set<String> ran = new HashSet<String>(durations.keySet());
+		ran.addAll(failures);
+		for (final String name : ran)
+		{
+			final Integer previous = mergedFailures.get(name);
+			final int shifted = (((previous == null) ? 0 : previous.intValue()) >>> 1) | (failures.contains(name) ? LAST_FAILURE : 0);
+			if (shifted == 0)
+			{
+				mergedFailures.remove(name);
+			}
+			else
+			{
+				mergedFailures.put(name, Integer.valueOf(shifted));
+			}
+		}
+		
+		write(directory, file, merged, mergedFailures);
+	}
+	
+	
+	/**
+	 * 
+	 * Read a history file. A file of the first version, without failures, is read as well.
+	 * 
+	 * @param file The history file.
+	 * @param durations The map to which the durations are added, by the name of the class or the test.
+	 * @param failures The map to which the failures are added, by the name of the class or the test.
+	 * @throws IOException If the history file could not be read or is not a history file.
+	 * 
+	 **/
+	private static void read(final Path file, final SortedMap<String, Long> durations, final Map<String, Integer> failures) throws IOException
+	{
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file))))
+		{
+			if (in.readInt() != MAGIC)
+			{
+				throw new IOException("Not a history file.");
+			}
+			final int version = in.readInt();
+			if ((version != 1) && (version != VERSION))
+			{
+				throw new IOException("Not a history file of a known version.");
+			}
+			
+			String name = "";
+			for (int count = in.readInt(); count > 0; count--)
+			{
+				name = name.substring(0, in.readUnsignedShort()) + in.readUTF();
+				if (version == 1)
+				{
+					durations.put(name, Long.valueOf(readVarLong(in)));
+					continue;
+				}
+				
+				// The duration is stored plus one, so 0 is a class or a test that failed before any of its tests finished.
+				final long duration = readVarLong(in) - 1;
+				if (duration >= 0)
+				{
+					durations.put(name, Long.valueOf(duration));
+				}
+				final int failed = in.readUnsignedByte();
+				if (failed != 0)
+				{
+					failures.put(name, Integer.valueOf(failed));
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Write a history file. The history is written to a temporary file first, which is then moved in place.
+	 * 
+	 * @param directory The directory of the history file.
+	 * @param file The history file.
+	 * @param durations The durations, by the name of the class or the test.
+	 * @param failures The failures, by the name of the class or the test.
+	 * @throws IOException If the history file could not be written.
+	 * 
+	 **/
+	private static void write(final Path directory, final Path file, final SortedMap<String, Long> durations, final Map<String, Integer> failures) throws IOException
+	{
+		final Path temporaryFile = Files.createTempFile(directory, null, ".history.tmp");
+		try
+		{
+			try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile))))
+			{
+				final SortedSet<String> names = new TreeSet<String>(durations.keySet());
+				names.addAll(failures.keySet());
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(names.size());
+				String previous = "";
+				for (final String name : names)
+				{
+					int prefix = 0;
+					while ((prefix < Math.min(Math.min(name.length(), previous.length()), 0xffff)) && (name.charAt(prefix) == previous.charAt(prefix)))
+					{
+						prefix++;
+					}
+					out.writeShort(prefix);
+					out.writeUTF(name.substring(prefix));
+					final Long duration = durations.get(name);
+					writeVarLong(out, (duration == null) ? 0 : (duration.longValue() + 1));
+					final Integer failed = failures.get(name);
+					out.writeByte((failed == null) ? 0 : failed.intValue());
+					previous = name;
+				}
+			}
+			
+			try
+			{
+				Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (final AtomicMoveNotSupportedException e)
+			{
+				Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Write a number that is not negative in as few bytes as needed, seven bits per byte.
+	 * 
+	 * @param out The output.
+	 * @param value The number.
+	 * @throws IOException If the number could not be written.
+	 * 
+	 **/
+	private static void writeVarLong(final DataOutputStream out, final long value) throws IOException
+	{
+		long remainder = Math.max(0, value);
+		while (remainder >= 0x80)
+		{
+			out.writeByte((int) (remainder & 0x7f) | 0x80);
+			remainder >>>= 7;
+		}
+		out.writeByte((int) remainder);
+	}
+	
+	
+	/**
+	 * 
+	 * Read a number that was written by {@link #writeVarLong(DataOutputStream, long)}.
+	 * 
+	 * @param in The input.
+	 * @return The number.
+	 * @throws IOException If the number could not be read.
+	 * 
+	 **/
+	private static long readVarLong(final DataInputStream in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			final int b = in.readUnsignedByte();
+			value |= (long) (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		
+		throw new IOException("Malformed number.");
+	}
+}
\ No newline at end of file
@@ -0,0 +1,183 @@
+package util.testing;
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+
+import util.testing.filter.FailedTests;
+
+
+/**
+ * 
+ * A listener that records the duration of every test and every class, and the tests and classes that failed, and
+ * merges them into the {@link DurationHistory history file} when the run has finished. The duration of a class is the
+ * sum of the durations of its tests. The listener only takes the time when a test starts and finishes, without
+ * locking, so it can listen to tests that run concurrently.
+ * 
+ * For example:
+ * 
+ * <pre>
+ * {@code
+ * final JUnitCore core = new JUnitCore();
+ * core.addListener(new DurationListener());
+ * core.run(ExampleSuite.class);
+ * }
+ * </pre>
+ * 
+ * The suites do not add the listener themselves, as a runner cannot tell when the whole run has finished. It has to be
+ * added to the run, as above, or as a listener of the Maven Surefire plugin:
+ * 
+ * <pre>
+ * {@code
+ * <properties>
+ *   <property>
+ *     <name>listener</name>
+ *     <value>util.testing.DurationListener</value>
+ *   </property>
+ * </properties>
+ * }
+ * </pre>
+ * 
+ * The {@link ForkedLauncher} adds it to the run of every shard.
+ * 
+ * @author cvesters
+ * 
+ **/
+@RunListener.ThreadSafe
+public class DurationListener extends RunListener
+{
+	/**
+	 * The history file.
+	 **/
+	private final Path fFile;
+	
+	/**
+	 * The times the tests that run were started, in nanoseconds.
+	 **/
+	private final ConcurrentMap<Description, Long> fStartTimes = new ConcurrentHashMap<Description, Long>();
+	
+	/**
+	 * The durations of the tests and the classes that finished, in microseconds.
+	 **/
+	private final ConcurrentMap<String, AtomicLong> fDurations = new ConcurrentHashMap<String, AtomicLong>();
+	
+	/**
+	 * The names of the tests and the classes that failed.
+	 **/
+	private final Set<String> fFailures = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	
+	/**
+	 * Constructor. The durations are merged into the history file given by the system property
+	 * 'testfilter.history'.
+	 * 
+	 **/
+	public DurationListener()
+	{
+		this(DurationHistory.getFile());
+	}
+	
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param file The history file the durations are merged into.
+	 * 
+	 **/
+	public DurationListener(final Path file)
+	{
+		fFile = file;
+	}
+	
+	
+	@Override
+	public void testStarted(final Description description)
+	{
+		fStartTimes.put(description, Long.valueOf(System.nanoTime()));
+	}
+	
+	
+	@Override
+	public void testFinished(final Description description)
+	{
+		final Long startTime = fStartTimes.remove(description);
+		if (startTime != null)
+		{
+			final long duration = (System.nanoTime() - startTime.longValue()) / 1000;
+			add(description.getClassName() + "." + description.getMethodName(), duration);
+			add(description.getClassName(), duration);
+		}
+	}
+	
+	
+	@Override
+	public void testFailure(final Failure failure)
+	{
+		fFailures.add(FailedTests.getName(failure.getDescription()));
+	}
+	
+	
+	@Override
+	public void testRunFinished(final Result result)
+	{
+		if (fDurations.isEmpty() && fFailures.isEmpty())
+		{
+			return;
+		}
+		
+		final Map<String, Long> durations = new HashMap<String, Long>();
+		for (final Map.Entry<String, AtomicLong> duration : fDurations.entrySet())
+		{
+			durations.put(duration.getKey(), Long.valueOf(duration.getValue().get()));
+		}
+		
+		try
+		{
+			DurationHistory.merge(fFile, durations, fFailures);
+		}
+		catch (final IOException e)
+		{
+			System.out.println("[WARNING] Failed to write the test history '" + fFile + "': " + e);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Add a duration to the total duration of a class or a test.
+	 * 
+	 * @param name The name of the class or the test.
+	 * @param duration The duration in microseconds.
+	 * 
+	 **/
+	private void add(final String name, final long duration)
+	{
+		AtomicLong total = fDurations.get(name);
+		if (total == null)
+		{
+			final AtomicLong newTotal = new AtomicLong();
+			total = fDurations.putIfAbsent(name, newTotal);
+			if (total == null)
+			{
+				total = newTotal;
+			}
+		}
+		total.addAndGet(duration);
+	}
+}
\ No newline at end of file
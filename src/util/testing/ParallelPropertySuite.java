@@ -0,0 +1,378 @@
+package util.testing;
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.runner.Description;
+import org.junit.runners.model.InitializationError;
+import org.junit.runners.model.RunnerBuilder;
+import org.junit.runners.model.RunnerScheduler;
+
+import util.testing.filter.PropertyFilter;
+
+
+/**
+ * 
+ * A {@link PropertySuite} that runs its children concurrently. The children that remain after filtering are run as
+ * tasks of a fork join pool that is shared by all parallel suites of the JVM, so the idle workers steal the children of
+ * nested parallel suites. The number of workers is the number of processors, unless it is set with the system property
+ * 'testfilter.parallelism'.
+ * 
+ * Classes that are not thread safe are marked with the option 'serial' in the filter file, for example
+ * 'com.acme.db = included,serial'. The serial children of a suite run one by one after its concurrent children have
+ * finished. The events of a child are fired on the thread that runs it, in the usual order. The notifier passes the
+ * events to the listeners under a lock, unless a listener is declared thread safe.
+ * 
+ * Classes that share a resource are assigned to a resource group with the option 'group=name', for example
+ * 'com.acme.db = included,group=db', and the directive '@group.db = 2' limits the number of classes of the group that
+ * run at the same time, in all parallel suites together. The classes of a group wait for a permit in a queue of the
+ * group, without occupying a worker of the pool. A group without a limit does not limit its classes.
+ * 
+ * For example:
+ * 
+ * <pre>
+ * {@code
+ * {@literal @}RunWith(ParallelPropertySuite.class)
+ * {@literal @}Suite.SuiteClasses({ExampleTestCase.class, OtherTestCase.class})
+ * class ExampleSuite
+ * {
+ * }
+ * }
+ * </pre>
+ * 
+ * @see PropertySuite
+ * 
+ * @author cvesters
+ * 
+ **/
+public class ParallelPropertySuite extends PropertySuite
+{
+	/**
+	 * The system property with the number of workers of the pool.
+	 **/
+	private static final String PARALLELISM_PROPERTY = "testfilter.parallelism";
+	
+	/**
+	 * The pool that runs the children of all parallel suites, created when the first suite runs. Guarded by the class.
+	 **/
+	private static ForkJoinPool fgPool;
+	
+	/**
+	 * The filter that tells which children must run serially.
+	 **/
+	private final PropertyFilter fFilter;
+	
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param klass The class that should be run with this runner.
+	 * @param builder A builder used to build new runners.
+	 * 
+	 **/
+	public ParallelPropertySuite(final Class<?> klass, final RunnerBuilder builder) throws InitializationError
+	{
+		this(klass, builder, PropertyFilter.getShared());
+	}
+	
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param klass The class that should be run with this runner.
+	 * @param builder A builder used to build new runners.
+	 * @param filter The filter that selects the tests and tells which children are serial, instead of the filter
+	 * shared by all suites.
+	 * 
+	 **/
+	ParallelPropertySuite(final Class<?> klass, final RunnerBuilder builder, final PropertyFilter filter) throws InitializationError
+	{
+		super(klass, builder, filter);
+		fFilter = filter;
+		setScheduler(new ForkJoinScheduler());
+	}
+	
+	
+	/**
+	 * @return The pool that runs the children of the parallel suites.
+	 **/
+	private static synchronized ForkJoinPool getPool()
+	{
+		if (fgPool == null)
+		{
+			fgPool = new ForkJoinPool(Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors()).intValue());
+		}
+		
+		return fgPool;
+	}
+	
+	
+	/**
+	 * 
+	 * Run the children of the suite. The children of a resource group are queued in the group, the other concurrent
+	 * children are forked in the pool. The serial children run after all of them have finished. The first exception of
+	 * a child is thrown after all concurrent children have finished.
+	 * 
+	 * @param children The statements that run the children, in the order of the children of the description.
+	 * 
+	 **/
+	private void runChildren(final List<Runnable> children)
+	{
+		// The scheduler only receives statements, the children are identified by their descriptions.
+		final List<Description> descriptions = getDescription().getChildren();
+		final ForkJoinPool pool = getPool();
+		final GroupedChildren groupedChildren = new GroupedChildren();
+		final List<ForkJoinTask<?>> concurrentChildren = new ArrayList<ForkJoinTask<?>>();
+		final List<Runnable> serialChildren = new ArrayList<Runnable>();
+		for (int i = 0; i < children.size(); i++)
+		{
+			final String className = (descriptions.size() == children.size()) ? String.valueOf(descriptions.get(i).getClassName()) : null;
+			final String group = (className != null) ? fFilter.getGroup(className) : null;
+			if ((className == null) || fFilter.isSerial(className))
+			{
+				serialChildren.add(children.get(i));
+			}
+			else if ((group != null) && (fFilter.getGroupLimit(group) < Integer.MAX_VALUE))
+			{
+				ResourceGroup.get(group, fFilter.getGroupLimit(group)).submit(groupedChildren.add(children.get(i)), pool);
+			}
+			else
+			{
+				concurrentChildren.add(ForkJoinTask.adapt(children.get(i)));
+			}
+		}
+		
+		try
+		{
+			if (!concurrentChildren.isEmpty())
+			{
+				if (ForkJoinTask.getPool() == pool)
+				{
+					// A nested suite forks its children from the worker that runs it.
+					forkAndJoin(concurrentChildren);
+				}
+				else
+				{
+					pool.invoke(new RecursiveAction()
+					{
+						private static final long serialVersionUID = 1L;
+						
+						
+						@Override
+						protected void compute()
+						{
+							forkAndJoin(concurrentChildren);
+						}
+					});
+				}
+			}
+		}
+		finally
+		{
+			groupedChildren.await();
+		}
+		
+		for (final Runnable child : serialChildren)
+		{
+			child.run();
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Fork tasks and wait until all of them have finished, even if some of them fail. Must be called from a worker of
+	 * the pool.
+	 * 
+	 * @param tasks The tasks.
+	 * 
+	 **/
+	private static void forkAndJoin(final List<ForkJoinTask<?>> tasks)
+	{
+		for (final ForkJoinTask<?> task : tasks)
+		{
+			task.fork();
+		}
+		
+		Throwable failure = null;
+		for (int i = tasks.size() - 1; i >= 0; i--)
+		{
+			final ForkJoinTask<?> task = tasks.get(i);
+			task.quietlyJoin();
+			if ((failure == null) && (task.getException() != null))
+			{
+				failure = task.getException();
+			}
+		}
+		
+		if (failure instanceof RuntimeException)
+		{
+			throw (RuntimeException) failure;
+		}
+		if (failure instanceof Error)
+		{
+			throw (Error) failure;
+		}
+		if (failure != null)
+		{
+			throw new IllegalStateException(failure);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * The children of a suite that were queued in resource groups. The suite waits until all of them have finished.
+	 * 
+	 **/
+	private static final class GroupedChildren
+	{
+		/**
+		 * The number of children that did not finish yet.
+		 **/
+		private final AtomicInteger fPending = new AtomicInteger();
+		
+		/**
+		 * The first exception thrown by a child.
+		 **/
+		private final AtomicReference<Throwable> fFailure = new AtomicReference<Throwable>();
+		
+		
+		/**
+		 * 
+		 * Add a child.
+		 * 
+		 * @param child The statement that runs the child.
+		 * @return The statement to queue in the group, which records the end of the child.
+		 * 
+		 **/
+		Runnable add(final Runnable child)
+		{
+			fPending.incrementAndGet();
+			return new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						child.run();
+					}
+					catch (final Throwable e)
+					{
+						fFailure.compareAndSet(null, e);
+					}
+					finally
+					{
+						synchronized (GroupedChildren.this)
+						{
+							if (fPending.decrementAndGet() == 0)
+							{
+								GroupedChildren.this.notifyAll();
+							}
+						}
+					}
+				}
+			};
+		}
+		
+		
+		/**
+		 * 
+		 * Wait until all children have finished, and throw the first exception of a child. A worker of the pool that
+		 * waits lets the pool start another worker, so the queued children can still run.
+		 * 
+		 **/
+		void await()
+		{
+			try
+			{
+				ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker()
+				{
+					@Override
+					public boolean block() throws InterruptedException
+					{
+						synchronized (GroupedChildren.this)
+						{
+							while (fPending.get() > 0)
+							{
+								GroupedChildren.this.wait();
+							}
+						}
+						return true;
+					}
+					
+					
+					@Override
+					public boolean isReleasable()
+					{
+						return fPending.get() == 0;
+					}
+				});
+			}
+			catch (final InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+			
+			final Throwable failure = fFailure.get();
+			if (failure instanceof RuntimeException)
+			{
+				throw (RuntimeException) failure;
+			}
+			if (failure instanceof Error)
+			{
+				throw (Error) failure;
+			}
+			if (failure != null)
+			{
+				throw new IllegalStateException(failure);
+			}
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * The scheduler that collects the children of a run, and runs them in the pool when all children are scheduled.
+	 * 
+	 **/
+	private final class ForkJoinScheduler implements RunnerScheduler
+	{
+		/**
+		 * The statements that run the children, in the order they were scheduled.
+		 **/
+		private final List<Runnable> fChildren = new ArrayList<Runnable>();
+		
+		
+		@Override
+		public synchronized void schedule(final Runnable childStatement)
+		{
+			fChildren.add(childStatement);
+		}
+		
+		
+		@Override
+		public void finished()
+		{
+			final List<Runnable> children;
+			synchronized (this)
+			{
+				children = new ArrayList<Runnable>(fChildren);
+				fChildren.clear();
+			}
+			runChildren(children);
+		}
+	}
+}
\ No newline at end of file
@@ -5,16 +5,42 @@ package util.testing;
 
 
 
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
+import org.junit.runner.Description;
+import org.junit.runner.RunWith;
 import org.junit.runner.Runner;
-import org.junit.runner.manipulation.Filter;
 import org.junit.runner.manipulation.NoTestsRemainException;
+import org.junit.runner.manipulation.Sorter;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.junit.runners.Parameterized;
 import org.junit.runners.Suite;
+import org.junit.runners.Suite.SuiteClasses;
 import org.junit.runners.model.InitializationError;
 import org.junit.runners.model.RunnerBuilder;
 
+import util.testing.filter.BudgetFilter;
+import util.testing.filter.FailedTests;
 import util.testing.filter.PropertyFilter;
+import util.testing.filter.ShardFilter;
 
 
 /**
@@ -50,10 +76,32 @@ import util.testing.filter.PropertyFilter;
  * @see org.junit.runners.Suite.SuiteClasses
  * 
  * @author cvesters
- *
+ * 
  **/
 public class PropertySuite extends Suite
 {
+	/**
+	 * The system property that selects the order in which the children of the suites run. With the value 'duration',
+	 * the children that took the longest in the {@link DurationHistory history} run first, followed by the children of
+	 * which the duration is not known, in the order they were declared. With the value 'failures', the children and the
+	 * test methods that failed most recently run first, the others by duration.
+	 **/
+	private static final String ORDER_PROPERTY = "testfilter.order";
+	
+	/**
+	 * The number of suites that are building their runners on the current thread. Only the outermost suite splits the
+	 * tests into shards and selects the tests within the budget, when all runners have been built.
+	 **/
+	private static final ThreadLocal<int[]> fgDepth = new ThreadLocal<int[]>()
+	{
+		@Override
+		protected int[] initialValue()
+		{
+			return new int[1];
+		}
+	};
+	
+	
 	/**
 	 * Constructor.
 	 * 
@@ -63,16 +111,61 @@ public class PropertySuite extends Suite
 	 **/
 	public PropertySuite(final Class<?> klass, final RunnerBuilder builder) throws InitializationError
 	{
-		super(klass, builder);
+		this(klass, builder, PropertyFilter.getShared());
+	}
+	
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param klass The class that should be run with this runner.
+	 * @param builder A builder used to build new runners.
+	 * @param filter The filter that selects the tests, instead of the filter shared by all suites.
+	 * 
+	 **/
+	PropertySuite(final Class<?> klass, final RunnerBuilder builder, final PropertyFilter filter) throws InitializationError
+	{
+		super(klass, getRunners(klass, builder, filter));
+	}
+	
+	
+	/**
+	 * 
+	 * Build the runners of the suite and filter them. The runners of which all tests are excluded are removed. The
+	 * runners of classes with concurrent methods run them with a {@link ConcurrentMethodScheduler}. The outermost suite
+	 * only keeps the tests of its shard if a shard is selected, and the tests that fit in the budget if a budget is
+	 * set. The runners are sorted if an order is selected, by the outermost suite if they are sorted by failures. The
+	 * outermost suite finally lets the filter forget the descriptions it filtered.
+	 * 
+	 * @param klass The class of the suite.
+	 * @param builder A builder used to build new runners.
+	 * @param f The filter that selects the tests.
+	 * @return The runners of the suite.
+	 * @throws InitializationError If the class has no <code>@Suite.SuiteClasses</code> annotation.
+	 * 
+	 **/
+	private static List<Runner> getRunners(final Class<?> klass, final RunnerBuilder builder, final PropertyFilter f) throws InitializationError
+	{
+		final int[] depth = fgDepth.get();
+		final List<Runner> runners;
+		depth[0]++;
+		try
+		{
+			runners = new ArrayList<Runner>(builder.runners(klass, getIncludedClasses(klass, f)));
+		}
+		finally
+		{
+			depth[0]--;
+		}
 		
-		final Filter f = new PropertyFilter();
-		final Iterator<Runner> it = getChildren().iterator();
+		final Iterator<Runner> it = runners.iterator();
 		while (it.hasNext())
 		{
 			final Runner runner = it.next();
 			try
 			{
 				f.apply(runner);
+				ConcurrentMethodScheduler.install(runner, f);
 			}
 			catch (final NoTestsRemainException e)
 			{
@@ -80,5 +173,442 @@ public class PropertySuite extends Suite
 				it.remove();
 			}
 		}
+		
+		final String shard = System.getProperty(ShardFilter.SHARD_PROPERTY, "");
+		if ((depth[0] == 0) && !shard.isEmpty())
+		{
+			applyShard(runners, shard);
+		}
+		
+		final String budget = System.getProperty(BudgetFilter.BUDGET_PROPERTY, "");
+		if ((depth[0] == 0) && !budget.isEmpty())
+		{
+			applyBudget(runners, budget);
+		}
+		
+		final String order = System.getProperty(ORDER_PROPERTY);
+		if ("duration".equals(order))
+		{
+			sortByDuration(runners, DurationHistory.getShared());
+		}
+		else if ((depth[0] == 0) && "failures".equals(order))
+		{
+			sortByFailures(runners, DurationHistory.getShared());
+		}
+		
+		if (depth[0] == 0)
+		{
+			f.forgetDescriptions();
+		}
+		
+		return runners;
+	}
+	
+	
+	/**
+	 * 
+	 * Only keep the tests of one shard. The test classes that remain after filtering are split into shards, balanced by
+	 * their durations in the {@link DurationHistory history} if they are known.
+	 * 
+	 * @param runners The runners of the outermost suite, of which the runners without tests of the shard are removed.
+	 * @param shard The shard, of the form 'index/count'.
+	 * @throws InitializationError If the shard is not valid.
+	 * 
+	 **/
+	private static void applyShard(final List<Runner> runners, final String shard) throws InitializationError
+	{
+		final ShardFilter shardFilter;
+		try
+		{
+			shardFilter = new ShardFilter(shard, getClassDurations(runners, DurationHistory.getShared()));
+		}
+		catch (final IllegalArgumentException e)
+		{
+			throw new InitializationError(e.getMessage());
+		}
+		
+		final Iterator<Runner> it = runners.iterator();
+		while (it.hasNext())
+		{
+			try
+			{
+				shardFilter.apply(it.next());
+			}
+			catch (final NoTestsRemainException e)
+			{
+				it.remove();
+			}
+		}
+		System.out.println("[INFO] Running shard " + shard + " with " + shardFilter.getClassNames().size() + " test classes.");
+	}
+	
+	
+	/**
+	 * 
+	 * Only keep the tests that fit in a time budget, see {@link BudgetFilter}. The tests that failed in the previous
+	 * run are selected first, then the tests of which the class file is newer than the {@link DurationHistory history}
+	 * and the new tests, then the others. The tests that were not selected are written to the remainder file, in the
+	 * format of the {@link FailedTests failed tests}, so a later run can run them in rerun mode.
+	 * 
+	 * @param runners The runners of the outermost suite, of which the runners without selected tests are removed.
+	 * @param budget The budget, for example '300s'.
+	 * @throws InitializationError If the budget is not valid.
+	 * 
+	 **/
+	private static void applyBudget(final List<Runner> runners, final String budget) throws InitializationError
+	{
+		final List<Description> tests = new ArrayList<Description>();
+		final ArrayDeque<Description> descriptions = new ArrayDeque<Description>();
+		for (final Runner runner : runners)
+		{
+			descriptions.push(runner.getDescription());
+		}
+		while (!descriptions.isEmpty())
+		{
+			final Description description = descriptions.pop();
+			if (description.isTest())
+			{
+				tests.add(description);
+			}
+			for (final Description child : description.getChildren())
+			{
+				descriptions.push(child);
+			}
+		}
+		
+		Set<String> failedTests = Collections.emptySet();
+		final Path failuresFile = FailedTests.getFile();
+		if (Files.exists(failuresFile))
+		{
+			try
+			{
+				failedTests = FailedTests.read(failuresFile);
+			}
+			catch (final IOException e)
+			{
+				System.out.println("[WARNING] Failed to read the failed tests '" + failuresFile + "': " + e);
+			}
+		}
+		
+		final BudgetFilter budgetFilter;
+		try
+		{
+			budgetFilter = new BudgetFilter(budget, tests, DurationHistory.getShared().getDurations(), failedTests, getChangedClasses(tests, DurationHistory.getFile()));
+		}
+		catch (final IllegalArgumentException e)
+		{
+			throw new InitializationError(e.getMessage());
+		}
+		
+		final Iterator<Runner> it = runners.iterator();
+		while (it.hasNext())
+		{
+			try
+			{
+				budgetFilter.apply(it.next());
+			}
+			catch (final NoTestsRemainException e)
+			{
+				it.remove();
+			}
+		}
+		
+		final Path remainderFile = Paths.get(System.getProperty(BudgetFilter.REMAINDER_PROPERTY, "testfilter.remainder"));
+		try
+		{
+			FailedTests.write(remainderFile, budgetFilter.getRemainder());
+		}
+		catch (final IOException e)
+		{
+			System.out.println("[WARNING] Failed to write the remaining tests '" + remainderFile + "': " + e);
+		}
+		System.out.println(String.format(Locale.ENGLISH, "[INFO] Running %d tests of about %.1f s within the budget of %.1f s. The remaining %d tests of about %.1f s are listed in '%s'.", Integer.valueOf(budgetFilter.getSelectedCount()), Double.valueOf(budgetFilter.getSelectedDuration() / 1e6), Double.valueOf(budgetFilter.getBudget() / 1e6), Integer.valueOf(budgetFilter.getRemainder().size()), Double.valueOf(budgetFilter.getRemainderDuration() / 1e6), remainderFile));
+	}
+	
+	
+	/**
+	 * 
+	 * Get the test classes of which the class file changed after the history was written. Only class files in a
+	 * directory are checked, classes in an archive are never seen as changed.
+	 * 
+	 * @param tests The descriptions of the tests.
+	 * @param historyFile The history file.
+	 * @return The names of the classes that changed.
+	 * 
+	 **/
+	private static Set<String> getChangedClasses(final List<Description> tests, final Path historyFile)
+	{
+		final Set<String> changedClasses = new HashSet<String>();
+		final long historyTime;
+		try
+		{
+			historyTime = Files.getLastModifiedTime(historyFile).toMillis();
+		}
+		catch (final IOException e)
+		{
+			// Without a history, every test is new.
+			return changedClasses;
+		}
+		
+		final Set<String> checkedClasses = new HashSet<String>();
+		for (final Description test : tests)
+		{
+			final Class<?> testClass = test.getTestClass();
+			if ((testClass == null) || !checkedClasses.add(testClass.getName()))
+			{
+				continue;
+			}
+			
+			final URL classFile = testClass.getResource(testClass.getName().substring(testClass.getName().lastIndexOf('.') + 1) + ".class");
+			if ((classFile != null) && "file".equals(classFile.getProtocol()))
+			{
+				try
+				{
+					if (Files.getLastModifiedTime(Paths.get(classFile.toURI())).toMillis() > historyTime)
+					{
+						changedClasses.add(testClass.getName());
+					}
+				}
+				catch (final IOException | URISyntaxException e)
+				{
+					// A class file that cannot be checked is not seen as changed.
+				}
+			}
+		}
+		
+		return changedClasses;
+	}
+	
+	
+	/**
+	 * 
+	 * Get the durations of the test classes of runners, the sums of the durations of their tests.
+	 * 
+	 * @param runners The runners.
+	 * @param history The durations of previous runs.
+	 * @return The durations of the test classes in microseconds, by their name, -1 if the duration of a class is not
+	 * known.
+	 * 
+	 **/
+	static Map<String, Long> getClassDurations(final List<Runner> runners, final DurationHistory history)
+	{
+		final Map<String, Long> durations = new TreeMap<String, Long>();
+		final ArrayDeque<Description> descriptions = new ArrayDeque<Description>();
+		for (final Runner runner : runners)
+		{
+			descriptions.push(runner.getDescription());
+		}
+		while (!descriptions.isEmpty())
+		{
+			final Description description = descriptions.pop();
+			if (description.isTest())
+			{
+				final Long previous = durations.get(description.getClassName());
+				final long duration = history.getDuration(description);
+				final long total = (previous == null) ? duration : ((duration < 0) ? previous.longValue() : (Math.max(previous.longValue(), 0) + duration));
+				durations.put(description.getClassName(), Long.valueOf(total));
+			}
+			for (final Description child : description.getChildren())
+			{
+				descriptions.push(child);
+			}
+		}
+		
+		return durations;
+	}
+	
+	
+	/**
+	 * 
+	 * Sort runners longest processing time first: the runners by descending duration in the history, followed by the
+	 * runners of which the duration is not known, in their original order.
+	 * 
+	 * @param runners The runners.
+	 * @param history The durations of previous runs.
+	 * 
+	 **/
+	private static void sortByDuration(final List<Runner> runners, final DurationHistory history)
+	{
+		final Map<Runner, Long> durations = new IdentityHashMap<Runner, Long>();
+		for (final Runner runner : runners)
+		{
+			durations.put(runner, Long.valueOf(history.getDuration(runner.getDescription())));
+		}
+		
+		// The sort is stable, so runners with equal durations keep their order.
+		Collections.sort(runners, new Comparator<Runner>()
+		{
+			@Override
+			public int compare(final Runner a, final Runner b)
+			{
+				return Long.compare(durations.get(b).longValue(), durations.get(a).longValue());
+			}
+		});
+	}
+	
+	
+	/**
+	 * 
+	 * Sort runners, and the children of the runners at every level down to the test methods, failures first: the
+	 * children that failed in the most recent runs of the {@link DurationHistory history} first, then the children by
+	 * descending duration, followed by the children of which the duration is not known, in their original order. The
+	 * outermost suite sorts all levels at once.
+	 * 
+	 * @param runners The runners.
+	 * @param history The durations and failures of previous runs.
+	 * 
+	 **/
+	static void sortByFailures(final List<Runner> runners, final DurationHistory history)
+	{
+		final FailureOrder order = new FailureOrder(history);
+		final Sorter sorter = new Sorter(order);
+		final Map<Runner, Description> descriptions = new IdentityHashMap<Runner, Description>();
+		for (final Runner runner : runners)
+		{
+			sorter.apply(runner);
+			descriptions.put(runner, runner.getDescription());
+		}
+		
+		// The sort is stable, so runners that are equal keep their order.
+		Collections.sort(runners, new Comparator<Runner>()
+		{
+			@Override
+			public int compare(final Runner a, final Runner b)
+			{
+				return order.compare(descriptions.get(a), descriptions.get(b));
+			}
+		});
+	}
+	
+	
+	/**
+	 * 
+	 * Get the classes of the suite that may contain tests that are included. Building a runner loads and validates the
+	 * class, and evaluates the parameters of a parameterized test, so test classes of which all tests are excluded are
+	 * skipped before any runner is built for them.
+	 * 
+	 * @param klass The class of the suite.
+	 * @param f The filter that selects the tests.
+	 * @return The classes of the suite for which a runner must be built.
+	 * @throws InitializationError If the class has no <code>@Suite.SuiteClasses</code> annotation.
+	 * 
+	 **/
+	private static Class<?>[] getIncludedClasses(final Class<?> klass, final PropertyFilter f) throws InitializationError
+	{
+		final SuiteClasses annotation = klass.getAnnotation(SuiteClasses.class);
+		if (annotation == null)
+		{
+			throw new InitializationError(String.format("class '%s' must have a SuiteClasses annotation", klass.getName()));
+		}
+		
+		final List<Class<?>> classes = new ArrayList<Class<?>>();
+		for (final Class<?> suiteClass : annotation.value())
+		{
+			if (isTestClass(suiteClass) && !f.canInclude(suiteClass.getName()))
+			{
+				System.out.println("[WARNING] All tests of '" + suiteClass.getName() + "' were excluded from running!");
+			}
+			else
+			{
+				classes.add(suiteClass);
+			}
+		}
+		
+		return classes.toArray(new Class<?>[classes.size()]);
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether all tests of a class are named after the class. Only then the name of the class tells whether any
+	 * of its tests can be included. Suites and custom runners can contain tests of other classes.
+	 * 
+	 * @param klass The class.
+	 * @return True if the class is run by the default runner or as a parameterized test.
+	 * 
+	 **/
+	private static boolean isTestClass(final Class<?> klass)
+	{
+		final RunWith runWith = klass.getAnnotation(RunWith.class);
+		if (runWith != null)
+		{
+			return BlockJUnit4ClassRunner.class.isAssignableFrom(runWith.value()) || Parameterized.class.isAssignableFrom(runWith.value());
+		}
+		
+		// A JUnit 3 suite method can return tests of any class.
+		try
+		{
+			klass.getMethod("suite");
+			return false;
+		}
+		catch (final NoSuchMethodException e)
+		{
+			return true;
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * The order of descriptions by their recent failures, most recent first, and then by descending duration. The
+	 * failures and the duration of a description are computed once, JUnit describes the children of a runner again
+	 * for every comparison.
+	 * 
+	 **/
+	private static final class FailureOrder implements Comparator<Description>
+	{
+		/**
+		 * The durations and failures of previous runs.
+		 **/
+		private final DurationHistory fHistory;
+		
+		/**
+		 * The failures and the duration of the descriptions that were compared.
+		 **/
+		private final Map<Description, long[]> fKeys = new HashMap<Description, long[]>();
+		
+		
+		/**
+		 * 
+		 * Constructor.
+		 * 
+		 * @param history The durations and failures of previous runs.
+		 * 
+		 **/
+		FailureOrder(final DurationHistory history)
+		{
+			fHistory = history;
+		}
+		
+		
+		@Override
+		public int compare(final Description a, final Description b)
+		{
+			final long[] keyA = getKey(a);
+			final long[] keyB = getKey(b);
+			final int result = Long.compare(keyB[0], keyA[0]);
+			return (result != 0) ? result : Long.compare(keyB[1], keyA[1]);
+		}
+		
+		
+		/**
+		 * 
+		 * Get the failures and the duration of a description.
+		 * 
+		 * @param description The description.
+		 * @return The failures and the duration.
+		 * 
+		 **/
+		private long[] getKey(final Description description)
+		{
+			long[] key = fKeys.get(description);
+			if (key == null)
+			{
+				key = new long[] {fHistory.getFailures(description), fHistory.getDuration(description)};
+				fKeys.put(description, key);
+			}
+			
+			return key;
+		}
 	}
 }
\ No newline at end of file
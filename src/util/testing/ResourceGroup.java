@@ -0,0 +1,170 @@
+package util.testing;
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * 
+ * A group of tests that share a resource, such as a database, of which only a limited number may run at the same time.
+ * The tests of a group are queued, and every test that runs holds a permit of the group. Permits are only taken
+ * without waiting: a worker that holds a permit runs the queued tests one after the other until the queue is empty,
+ * and a test that gets no permit stays in the queue instead of blocking a thread. A test that runs its methods
+ * concurrently takes one more permit for every method that runs next to the first, again without waiting.
+ * 
+ * The groups are shared by all suites of the JVM, so the limit holds for all of them together.
+ * 
+ * @author cvesters
+ * 
+ **/
+final class ResourceGroup
+{
+	/**
+	 * The groups, by their name and limit. Guarded by the class.
+	 **/
+	private static final Map<String, ResourceGroup> fgGroups = new HashMap<String, ResourceGroup>();
+	
+	/**
+	 * The permits of the tests that run.
+	 **/
+	private final Semaphore fPermits;
+	
+	/**
+	 * The tests that wait for a permit.
+	 **/
+	private final Queue<Runnable> fWaiting = new ConcurrentLinkedQueue<Runnable>();
+	
+	/**
+	 * The executor that runs the workers of the group, set when the first test is submitted.
+	 **/
+	private volatile Executor fExecutor;
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param limit The maximum number of tests that run at the same time.
+	 * 
+	 **/
+	private ResourceGroup(final int limit)
+	{
+		fPermits = new Semaphore(limit);
+	}
+	
+	
+	/**
+	 * 
+	 * Get a group, which is created when it is used for the first time.
+	 * 
+	 * @param name The name of the group.
+	 * @param limit The maximum number of tests of the group that run at the same time.
+	 * @return The group.
+	 * 
+	 **/
+	static synchronized ResourceGroup get(final String name, final int limit)
+	{
+		final String key = name + "/" + limit;
+		ResourceGroup group = fgGroups.get(key);
+		if (group == null)
+		{
+			group = new ResourceGroup(limit);
+			fgGroups.put(key, group);
+		}
+		
+		return group;
+	}
+	
+	
+	/**
+	 * 
+	 * Run a test of the group as soon as a permit is free. The test must not throw exceptions.
+	 * 
+	 * @param test The test.
+	 * @param executor The executor that runs the workers of the group.
+	 * 
+	 **/
+	void submit(final Runnable test, final Executor executor)
+	{
+		fExecutor = executor;
+		fWaiting.add(test);
+		startWorkers(executor);
+	}
+	
+	
+	/**
+	 * 
+	 * Take a permit for one more method of a test that already runs, without waiting. The permit must be given back with
+	 * {@link #release()}.
+	 * 
+	 * @return True if a permit was taken, false if the group is at its limit.
+	 * 
+	 **/
+	boolean tryAcquire()
+	{
+		return fPermits.tryAcquire();
+	}
+	
+	
+	/**
+	 * 
+	 * Give back a permit that was taken with {@link #tryAcquire()}, and start a worker for a waiting test.
+	 * 
+	 **/
+	void release()
+	{
+		fPermits.release();
+		final Executor executor = fExecutor;
+		if (executor != null)
+		{
+			startWorkers(executor);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Start a worker for every free permit, as long as tests are waiting.
+	 * 
+	 * @param executor The executor that runs the workers.
+	 * 
+	 **/
+	private void startWorkers(final Executor executor)
+	{
+		while (!fWaiting.isEmpty() && fPermits.tryAcquire())
+		{
+			executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						Runnable test;
+						while ((test = fWaiting.poll()) != null)
+						{
+							test.run();
+						}
+					}
+					finally
+					{
+						fPermits.release();
+					}
+					
+					// A test that was queued after the queue was found empty, but before the permit was released, is
+					// started here.
+					startWorkers(executor);
+				}
+			});
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,336 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.runner.Description;
+import org.junit.runner.manipulation.Filter;
+
+/**
+ * 
+ * A filter that only runs the tests that fit in a time budget, by the durations of the tests in previous runs. The
+ * budget is set with the system property 'testfilter.budget', for example '300s', '5m' or '1h', a number without a
+ * unit is in seconds.
+ * 
+ * The tests are selected in three tiers: first the tests that failed in the previous run, then the tests of which the
+ * class changed since the durations were recorded and the new tests, then all others. Within a tier the shortest tests
+ * are selected first, so as many tests as possible run. A test that does not fit is skipped, and a shorter test after
+ * it may still be selected. A test of which the duration is not known counts as the average duration. The tests that
+ * were not selected form the remainder, which can be run later.
+ * 
+ * @author cvesters
+ */
+public final class BudgetFilter extends Filter
+{
+	/**
+	 * The system property with the time budget.
+	 **/
+	public static final String BUDGET_PROPERTY = "testfilter.budget";
+	
+	/**
+	 * The system property with the file to which the remainder is written.
+	 **/
+	public static final String REMAINDER_PROPERTY = "testfilter.remainder";
+	
+	/**
+	 * The tiers of the tests, in the order they are selected.
+	 **/
+	private static final int FAILED_TIER = 0;
+	private static final int CHANGED_TIER = 1;
+	private static final int OTHER_TIER = 2;
+	
+	/**
+	 * The budget in microseconds.
+	 **/
+	private final long fBudget;
+	
+	/**
+	 * The tests that were selected, and their estimated duration in microseconds. Descriptions are compared by their
+	 * display name, so the tests are found without parsing the names of their class and method again.
+	 **/
+	private final Set<Description> fSelected = new HashSet<Description>();
+	private long fSelectedDuration;
+	
+	/**
+	 * The names of the tests that were not selected, and their estimated duration in microseconds.
+	 **/
+	private final List<String> fRemainder = new ArrayList<String>();
+	private long fRemainderDuration;
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param budget The budget, a number followed by 'ms', 's', 'm' or 'h', or by nothing for seconds.
+	 * @param tests The descriptions of the tests to select from.
+	 * @param durations The durations in microseconds, by the name of the class and the method of the test.
+	 * @param failedTests The names of the tests and the classes that failed in the previous run.
+	 * @param changedClasses The names of the classes that changed since the durations were recorded.
+	 * @throws IllegalArgumentException If the budget is not valid.
+	 * 
+	 **/
+	public BudgetFilter(final String budget, final List<Description> tests, final Map<String, Long> durations, final Set<String> failedTests, final Set<String> changedClasses)
+	{
+		fBudget = parseBudget(budget);
+		select(tests, durations, failedTests, changedClasses);
+	}
+	
+	
+	/**
+	 * 
+	 * Parse a budget.
+	 * 
+	 * @param budget The budget, a number followed by 'ms', 's', 'm' or 'h', or by nothing for seconds.
+	 * @return The budget in microseconds.
+	 * @throws IllegalArgumentException If the budget is not valid.
+	 * 
+	 **/
+	public static long parseBudget(final String budget)
+	{
+		final String value = budget.trim().toLowerCase(Locale.ENGLISH);
+		int end = value.length();
+		while ((end > 0) && Character.isLetter(value.charAt(end - 1)))
+		{
+			end--;
+		}
+		
+		final String unit = value.substring(end);
+		final long microsPerUnit;
+		if (unit.equals("ms"))
+		{
+			microsPerUnit = 1000L;
+		}
+		else if (unit.isEmpty() || unit.equals("s"))
+		{
+			microsPerUnit = 1000000L;
+		}
+		else if (unit.equals("m"))
+		{
+			microsPerUnit = 60000000L;
+		}
+		else if (unit.equals("h"))
+		{
+			microsPerUnit = 3600000000L;
+		}
+		else
+		{
+			throw new IllegalArgumentException("The budget '" + budget + "' has an unknown unit '" + unit + "'.");
+		}
+		
+		try
+		{
+			final double amount = Double.parseDouble(value.substring(0, end).trim());
+			if (!(amount >= 0))
+			{
+				throw new NumberFormatException();
+			}
+			return (long) Math.min(amount * microsPerUnit, Long.MAX_VALUE);
+		}
+		catch (final NumberFormatException e)
+		{
+			throw new IllegalArgumentException("The budget '" + budget + "' is not a positive time, such as '300s'.");
+		}
+	}
+	
+	
+	/**
+	 * @return The budget in microseconds.
+	 **/
+	public long getBudget()
+	{
+		return fBudget;
+	}
+	
+	
+	/**
+	 * @return The number of tests that were selected.
+	 **/
+	public int getSelectedCount()
+	{
+		return fSelected.size();
+	}
+	
+	
+	/**
+	 * @return The estimated duration of the tests that were selected, in microseconds.
+	 **/
+	public long getSelectedDuration()
+	{
+		return fSelectedDuration;
+	}
+	
+	
+	/**
+	 * @return The names of the tests that were not selected, in the order they would have been selected.
+	 **/
+	public List<String> getRemainder()
+	{
+		return Collections.unmodifiableList(fRemainder);
+	}
+	
+	
+	/**
+	 * @return The estimated duration of the tests that were not selected, in microseconds.
+	 **/
+	public long getRemainderDuration()
+	{
+		return fRemainderDuration;
+	}
+	
+	
+	@Override
+	public boolean shouldRun(final Description description)
+	{
+		if (description.isTest())
+		{
+			return fSelected.contains(description);
+		}
+		
+		for (final Description child : description.getChildren())
+		{
+			if (shouldRun(child))
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	
+	@Override
+	public String describe()
+	{
+		return "Tests within a budget of " + (fBudget / 1000000) + " s.";
+	}
+	
+	
+	/**
+	 * 
+	 * Select the tests that fit in the budget.
+	 * 
+	 * @param tests The descriptions of the tests to select from.
+	 * @param durations The durations in microseconds, by the name of the class and the method of the test.
+	 * @param failedTests The names of the tests and the classes that failed in the previous run.
+	 * @param changedClasses The names of the classes that changed since the durations were recorded.
+	 * 
+	 **/
+	private void select(final List<Description> tests, final Map<String, Long> durations, final Set<String> failedTests, final Set<String> changedClasses)
+	{
+		final Set<Description> distinctTests = new HashSet<Description>();
+		final List<Candidate> candidates = new ArrayList<Candidate>(tests.size());
+		long knownTotal = 0;
+		int knownCount = 0;
+		for (final Description test : tests)
+		{
+			if (distinctTests.add(test))
+			{
+				final String className = FailedTests.getClassName(test);
+				final String name = FailedTests.getName(test);
+				final Long duration = durations.get(name);
+				final int tier;
+				if (failedTests.contains(name) || failedTests.contains(className))
+				{
+					tier = FAILED_TIER;
+				}
+				else if ((duration == null) || changedClasses.contains(className))
+				{
+					tier = CHANGED_TIER;
+				}
+				else
+				{
+					tier = OTHER_TIER;
+				}
+				candidates.add(new Candidate(test, name, tier, (duration == null) ? -1 : duration.longValue()));
+				
+				if (duration != null)
+				{
+					knownTotal += duration.longValue();
+					knownCount++;
+				}
+			}
+		}
+		
+		final long averageDuration = (knownCount == 0) ? 0 : (knownTotal / knownCount);
+		final Candidate[] sorted = candidates.toArray(new Candidate[candidates.size()]);
+		for (final Candidate candidate : sorted)
+		{
+			if (candidate.fDuration < 0)
+			{
+				candidate.fDuration = averageDuration;
+			}
+		}
+		Arrays.sort(sorted, new Comparator<Candidate>()
+		{
+			@Override
+			public int compare(final Candidate a, final Candidate b)
+			{
+				if (a.fTier != b.fTier)
+				{
+					return (a.fTier < b.fTier) ? -1 : 1;
+				}
+				final int result = Long.compare(a.fDuration, b.fDuration);
+				return (result != 0) ? result : a.fName.compareTo(b.fName);
+			}
+		});
+		
+		for (final Candidate candidate : sorted)
+		{
+			if (candidate.fDuration <= (fBudget - fSelectedDuration))
+			{
+				fSelected.add(candidate.fDescription);
+				fSelectedDuration += candidate.fDuration;
+			}
+			else
+			{
+				fRemainder.add(candidate.fName);
+				fRemainderDuration += candidate.fDuration;
+			}
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * A test that can be selected.
+	 * 
+	 **/
+	private static final class Candidate
+	{
+		private final Description fDescription;
+		private final String fName;
+		private final int fTier;
+		private long fDuration;
+		
+		
+		/**
+		 * 
+		 * Constructor.
+		 * 
+		 * @param description The description of the test.
+		 * @param name The name of the class and the method of the test.
+		 * @param tier The tier of the test.
+		 * @param duration The duration of the test in microseconds, -1 if it is not known.
+		 * 
+		 **/
+		Candidate(final Description description, final String name, final int tier, final long duration)
+		{
+			fDescription = description;
+			fName = name;
+			fTier = tier;
+			fDuration = duration;
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,546 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 
+ * The compiled rules of a filter: the snapshot of the rule tree, the options of the rules, the directives and, unless it
+ * would be too large, the automaton.
+ * 
+ * Every test JVM that uses a filter file would parse the file and compile the same rules again. The compiled rules can
+ * therefore be cached in a directory, in a binary file named after a hash of the contents of the filter file. As long as
+ * the filter file does not change, later runs map the cache file in memory and read the compiled rules from it, which
+ * skips parsing the file, building the tree and compiling the automaton. The cache only keeps the files that were used
+ * most recently, a filter file that changes often does not fill the directory. The directory is created readable by its
+ * owner only, where the file system supports it.
+ * 
+ * @author cvesters
+ */
+final class CompiledRules
+{
+	/**
+	 * The first bytes of a cache file.
+	 **/
+	private static final int MAGIC = 0x52554c45;
+	
+	/**
+	 * The version of the format of the cache files. The version is part of the hash, so files written in another
+	 * format are never read.
+	 **/
+	private static final int VERSION = 3;
+	
+	/**
+	 * The extension of the cache files.
+	 **/
+	private static final String EXTENSION = ".rules";
+	
+	/**
+	 * The maximum number of cache files that are kept. When a new file is added to the cache, the files that were used
+	 * least recently are deleted beyond this number.
+	 **/
+	private static final int MAX_CACHE_FILES = 16;
+	
+	/**
+	 * The snapshot of the rule tree.
+	 **/
+	private final FrozenRuleTree fTree;
+	
+	/**
+	 * The rules compiled into an automaton, null if the automaton would be too large.
+	 **/
+	private final RuleAutomaton fAutomaton;
+	
+	/**
+	 * The options of the rules.
+	 **/
+	private final RuleOptions fOptions;
+	
+	/**
+	 * The values of the directives, by their key without the '@'.
+	 **/
+	private final Map<String, String> fDirectives;
+	
+	/**
+	 * The number of rules.
+	 **/
+	private final int fRuleCount;
+	
+	
+	/**
+	 * 
+	 * Constructor. Compile a tree of rules.
+	 * 
+	 * @param rootRule The tree of rules. The tree is no longer modified after this.
+	 * @param options The options of the rules.
+	 * @param directives The values of the directives, by their key without the '@'.
+	 * @param ruleCount The number of rules in the tree.
+	 * @param maxStates The maximum number of states of the automaton.
+	 * 
+	 **/
+	CompiledRules(final RuleNode rootRule, final RuleOptions options, final Map<String, String> directives, final int ruleCount, final int maxStates)
+	{
+		fTree = rootRule.freeze();
+		fAutomaton = fTree.compile(maxStates);
+		fOptions = options;
+		fDirectives = Collections.unmodifiableMap(new TreeMap<String, String>(directives));
+		fRuleCount = ruleCount;
+	}
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param tree The snapshot of the rule tree.
+	 * @param automaton The automaton, null if it would be too large.
+	 * @param options The options of the rules.
+	 * @param directives The values of the directives, by their key without the '@'.
+	 * @param ruleCount The number of rules in the tree.
+	 * 
+	 **/
+	private CompiledRules(final FrozenRuleTree tree, final RuleAutomaton automaton, final RuleOptions options, final Map<String, String> directives, final int ruleCount)
+	{
+		fTree = tree;
+		fAutomaton = automaton;
+		fOptions = options;
+		fDirectives = directives;
+		fRuleCount = ruleCount;
+	}
+	
+	
+	/**
+	 * @return The snapshot of the rule tree.
+	 **/
+	FrozenRuleTree getTree()
+	{
+		return fTree;
+	}
+	
+	
+	/**
+	 * @return The automaton, null if it would be too large.
+	 **/
+	RuleAutomaton getAutomaton()
+	{
+		return fAutomaton;
+	}
+	
+	
+	/**
+	 * @return The options of the rules.
+	 **/
+	RuleOptions getOptions()
+	{
+		return fOptions;
+	}
+	
+	
+	/**
+	 * @return The values of the directives, by their key without the '@'.
+	 **/
+	Map<String, String> getDirectives()
+	{
+		return fDirectives;
+	}
+	
+	
+	/**
+	 * @return The number of rules.
+	 **/
+	int getRuleCount()
+	{
+		return fRuleCount;
+	}
+	
+	
+	/**
+	 * 
+	 * Read the rules of a filter file and compile them.
+	 * 
+	 * @param filterFile The filter file.
+	 * @param maxStates The maximum number of states of the automaton.
+	 * @return The compiled rules.
+	 * @throws IOException If the filter file could not be read.
+	 * 
+	 **/
+	static CompiledRules read(final Path filterFile, final int maxStates) throws IOException
+	{
+		final RuleNode rootRule = new RuleNode();
+		try (final BufferedReader reader = RuleReader.open(filterFile))
+		{
+			final RuleReader rules = new RuleReader(reader);
+			final int ruleCount = rules.read(rootRule);
+			return new CompiledRules(rootRule, RuleOptions.read(filterFile, rules.getOptionNames()), rules.getDirectives(), ruleCount, maxStates);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Get the compiled rules of a filter file from the cache. If they are not in the cache yet, the rules are read and
+	 * compiled, and added to the cache, unless the file changed while it was read. A cache file that cannot be read or
+	 * written is reported and the rules are compiled instead.
+	 * 
+	 * @param filterFile The filter file.
+	 * @param cacheDirectory The directory of the cache.
+	 * @param maxStates The maximum number of states of the automaton.
+	 * @return The compiled rules.
+	 * @throws IOException If the filter file could not be read.
+	 * 
+	 **/
+	static CompiledRules load(final Path filterFile, final Path cacheDirectory, final int maxStates) throws IOException
+	{
+		final String key = computeKey(filterFile, maxStates);
+		final Path cacheFile = cacheDirectory.resolve(key + EXTENSION);
+		if (Files.exists(cacheFile))
+		{
+			try
+			{
+				final CompiledRules rules = readCache(cacheFile);
+				markUsed(cacheFile);
+				return rules;
+			}
+			catch (final IOException | RuntimeException e)
+			{
+				System.out.println("[WARNING] Failed to read the cached rules '" + cacheFile + "': " + e);
+			}
+		}
+		
+		final CompiledRules rules = read(filterFile, maxStates);
+		if (!computeKey(filterFile, maxStates).equals(key))
+		{
+			// The file changed while it was read, so the rules may not be those of the key.
+			System.out.println("[WARNING] The filter file '" + filterFile + "' changed while it was read, the rules are not cached.");
+			return rules;
+		}
+		try
+		{
+			rules.writeCache(cacheDirectory, cacheFile);
+			evict(cacheDirectory, cacheFile);
+		}
+		catch (final IOException e)
+		{
+			System.out.println("[WARNING] Failed to cache the rules in '" + cacheFile + "': " + e);
+		}
+		return rules;
+	}
+	
+	
+	/**
+	 * 
+	 * Mark a cache file as used now, so it is evicted after the files that were used before.
+	 * 
+	 * @param cacheFile The cache file.
+	 * 
+	 **/
+	private static void markUsed(final Path cacheFile)
+	{
+		try
+		{
+			Files.setLastModifiedTime(cacheFile, FileTime.fromMillis(System.currentTimeMillis()));
+		}
+		catch (final IOException e)
+		{
+			// The file can still be used, it may only be evicted sooner.
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Delete the cache files that were used least recently, beyond the maximum number of cache files. Other JVMs may
+	 * delete the same files at the same time, files that are already gone are skipped.
+	 * 
+	 * @param cacheDirectory The directory of the cache.
+	 * @param cacheFile The cache file that was just written, which is always kept.
+	 * @throws IOException If the directory could not be listed.
+	 * 
+	 **/
+	private static void evict(final Path cacheDirectory, final Path cacheFile) throws IOException
+	{
+		final List<Path> files = new ArrayList<Path>();
+		final Map<Path, Long> lastUsed = new HashMap<Path, Long>();
+		try (final DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDirectory, "*" + EXTENSION))
+		{
+			for (final Path file : stream)
+			{
+				try
+				{
+					lastUsed.put(file, Long.valueOf(Files.getLastModifiedTime(file).toMillis()));
+					files.add(file);
+				}
+				catch (final IOException e)
+				{
+					// Deleted by another JVM.
+				}
+			}
+		}
+		
+		if (files.size() <= MAX_CACHE_FILES)
+		{
+			return;
+		}
+		
+		Collections.sort(files, new Comparator<Path>()
+		{
+			@Override
+			public int compare(final Path a, final Path b)
+			{
+				return lastUsed.get(b).compareTo(lastUsed.get(a));
+			}
+		});
+		for (final Path file : files.subList(MAX_CACHE_FILES, files.size()))
+		{
+			if (!file.equals(cacheFile))
+			{
+				try
+				{
+					Files.deleteIfExists(file);
+				}
+				catch (final IOException e)
+				{
+					// A file that is in use cannot be deleted on every platform, it is deleted by a later run.
+				}
+			}
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Compute the key of the compiled rules of a filter file: a hash of the contents of the file, the format of the
+	 * cache and the maximum number of states of the automaton.
+	 * 
+	 * @param filterFile The filter file.
+	 * @param maxStates The maximum number of states of the automaton.
+	 * @return The key, in hexadecimal.
+	 * @throws IOException If the filter file could not be read.
+	 * 
+	 **/
+	private static String computeKey(final Path filterFile, final int maxStates) throws IOException
+	{
+		final MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (final NoSuchAlgorithmException e)
+		{
+			// Every Java platform supports SHA-256.
+			throw new IllegalStateException(e);
+		}
+		
+		final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		buffer.putInt(VERSION).putInt(maxStates).flip();
+		digest.update(buffer);
+		try (final FileChannel channel = FileChannel.open(filterFile, StandardOpenOption.READ))
+		{
+			buffer.clear();
+			while (channel.read(buffer) >= 0)
+			{
+				buffer.flip();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		}
+		
+		final StringBuilder key = new StringBuilder();
+		for (final byte b : digest.digest())
+		{
+			key.append(String.format("%02x", Integer.valueOf(b & 0xff)));
+		}
+		return key.toString();
+	}
+	
+	
+	/**
+	 * 
+	 * Read compiled rules from a cache file, by mapping it in memory.
+	 * 
+	 * @param cacheFile The cache file.
+	 * @return The compiled rules.
+	 * @throws IOException If the cache file could not be read or is not a cache file.
+	 * 
+	 **/
+	private static CompiledRules readCache(final Path cacheFile) throws IOException
+	{
+		final MappedByteBuffer buffer;
+		try (final FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ))
+		{
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		
+		if ((buffer.getInt() != MAGIC) || (buffer.getInt() != VERSION))
+		{
+			throw new IOException("Not a cache file of the current version.");
+		}
+		final int ruleCount = buffer.getInt();
+		final FrozenRuleTree tree = FrozenRuleTree.read(buffer);
+		final RuleAutomaton automaton = (buffer.get() != 0) ? RuleAutomaton.read(buffer) : null;
+		final RuleOptions options = RuleOptions.read(buffer);
+		final Map<String, String> directives = new TreeMap<String, String>();
+		for (int count = buffer.getInt(); count > 0; count--)
+		{
+			directives.put(readString(buffer), readString(buffer));
+		}
+		if (buffer.hasRemaining())
+		{
+			throw new IOException("Unexpected data at the end of the cache file.");
+		}
+		
+		return new CompiledRules(tree, automaton, options, Collections.unmodifiableMap(directives), ruleCount);
+	}
+	
+	
+	/**
+	 * 
+	 * Write the compiled rules to a cache file. The rules are written to a temporary file first, which is then moved in
+	 * place, so other JVMs never read a cache file that is only partially written.
+	 * 
+	 * @param cacheDirectory The directory of the cache.
+	 * @param cacheFile The cache file.
+	 * @throws IOException If the cache file could not be written.
+	 * 
+	 **/
+	private void writeCache(final Path cacheDirectory, final Path cacheFile) throws IOException
+	{
+		createDirectory(cacheDirectory);
+		final Path temporaryFile = Files.createTempFile(cacheDirectory, null, EXTENSION + ".tmp");
+		try
+		{
+			try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile))))
+			{
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(fRuleCount);
+				fTree.write(out);
+				out.writeBoolean(fAutomaton != null);
+				if (fAutomaton != null)
+				{
+					fAutomaton.write(out);
+				}
+				fOptions.write(out);
+				out.writeInt(fDirectives.size());
+				for (final Map.Entry<String, String> directive : fDirectives.entrySet())
+				{
+					writeString(out, directive.getKey());
+					writeString(out, directive.getValue());
+				}
+			}
+			
+			try
+			{
+				Files.move(temporaryFile, cacheFile, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (final AtomicMoveNotSupportedException e)
+			{
+				Files.move(temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Create the directory of the cache, readable and writable by its owner only if the file system supports POSIX
+	 * permissions. Other users cannot then replace the cache files with rules of their own.
+	 * 
+	 * @param cacheDirectory The directory of the cache.
+	 * @throws IOException If the directory could not be created.
+	 * 
+	 **/
+	private static void createDirectory(final Path cacheDirectory) throws IOException
+	{
+		if (Files.isDirectory(cacheDirectory))
+		{
+			return;
+		}
+		
+		final Path parent = cacheDirectory.toAbsolutePath().getParent();
+		if (parent != null)
+		{
+			Files.createDirectories(parent);
+		}
+		try
+		{
+			if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+			{
+				Files.createDirectory(cacheDirectory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			}
+			else
+			{
+				Files.createDirectory(cacheDirectory);
+			}
+		}
+		catch (final FileAlreadyExistsException e)
+		{
+			// Created by another JVM.
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Write a string, in the format read by {@link #readString(ByteBuffer)}.
+	 * 
+	 * @param out The output.
+	 * @param string The string.
+	 * @throws IOException If the string could not be written.
+	 * 
+	 **/
+	private static void writeString(final DataOutputStream out, final String string) throws IOException
+	{
+		out.writeInt(string.length());
+		out.writeChars(string);
+	}
+	
+	
+	/**
+	 * 
+	 * Read a string that was written by {@link #writeString(DataOutputStream, String)}.
+	 * 
+	 * @param buffer The buffer, positioned at the start of the string.
+	 * @return The string.
+	 * 
+	 **/
+	private static String readString(final ByteBuffer buffer)
+	{
+		final char[] chars = new char[buffer.getInt()];
+		buffer.asCharBuffer().get(chars);
+		buffer.position(buffer.position() + (chars.length * 2));
+		return new String(chars);
+	}
+}
\ No newline at end of file
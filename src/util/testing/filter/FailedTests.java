@@ -0,0 +1,182 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.runner.Description;
+
+/**
+ * 
+ * The tests that failed in the previous run, so they can be run again without the others. The tests are kept in a
+ * text file, one name per line: the name of the class and the method of a test, 'package.Class.method', or the name of
+ * a class if the class itself failed. The file is 'testfilter.failures' in the working directory, unless another file
+ * is set with the system property 'testfilter.failures'. It can be edited by hand, lines that are empty or start with
+ * '#' are skipped.
+ * 
+ * @author cvesters
+ */
+public final class FailedTests
+{
+	/**
+	 * The system property with the file of the failed tests.
+	 **/
+	public static final String FILE_PROPERTY = "testfilter.failures";
+	
+	
+	/**
+	 * Constructor. Only static methods.
+	 **/
+	private FailedTests()
+	{
+	}
+	
+	
+	/**
+	 * @return The file of the failed tests.
+	 **/
+	public static Path getFile()
+	{
+		return Paths.get(System.getProperty(FILE_PROPERTY, "testfilter.failures"));
+	}
+	
+	
+	/**
+	 * 
+	 * Get the name under which a failure is kept.
+	 * 
+	 * @param description The description of the test or the class that failed.
+	 * @return The name of the class and the method of a test, or the name of a class.
+	 * 
+	 **/
+	public static String getName(final Description description)
+	{
+		final String displayName = description.getDisplayName();
+		final int start = getMethodEnd(displayName);
+		return (start < 0) ? displayName : (displayName.substring(start + 1, displayName.length() - 1) + "." + displayName.substring(0, start));
+	}
+	
+	
+	/**
+	 * 
+	 * Get the name of the class of a test or a class.
+	 * 
+	 * @param description The description of the test or the class.
+	 * @return The name of the class.
+	 * 
+	 **/
+	public static String getClassName(final Description description)
+	{
+		final String displayName = description.getDisplayName();
+		final int start = getMethodEnd(displayName);
+		return (start < 0) ? displayName : displayName.substring(start + 1, displayName.length() - 1);
+	}
+	
+	
+	/**
+	 * 
+	 * Find the end of the method in the display name of a test, 'method(package.Class)'. This is what
+	 * {@link Description#getMethodName()} parses with a regular expression, which costs more than the rest of the
+	 * selection when there are many tests.
+	 * 
+	 * @param displayName The display name.
+	 * @return The index of the parenthesis after the method, -1 if the display name is not that of a test.
+	 * 
+	 **/
+	private static int getMethodEnd(final String displayName)
+	{
+		final int start = displayName.lastIndexOf('(');
+		final int end = displayName.length() - 1;
+		if ((start < 0) || (end <= start) || (displayName.charAt(end) != ')') || (displayName.indexOf('\n', start) >= 0))
+		{
+			return -1;
+		}
+		
+		return start;
+	}
+	
+	
+	/**
+	 * 
+	 * Write the failed tests. The file is written next to the old one first and then moved in place, so a run that
+	 * reads it never sees it half written.
+	 * 
+	 * @param file The file of the failed tests.
+	 * @param names The names of the tests and classes that failed.
+	 * @throws IOException If the file could not be written.
+	 * 
+	 **/
+	public static void write(final Path file, final Collection<String> names) throws IOException
+	{
+		final Path directory = file.toAbsolutePath().getParent();
+		Files.createDirectories(directory);
+		final Path temporaryFile = Files.createTempFile(directory, null, ".failures.tmp");
+		try
+		{
+			try (final BufferedWriter writer = Files.newBufferedWriter(temporaryFile, StandardCharsets.UTF_8))
+			{
+				for (final String name : new TreeSet<String>(names))
+				{
+					writer.write(name);
+					writer.newLine();
+				}
+			}
+			
+			try
+			{
+				Files.move(temporaryFile, file, StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch (final AtomicMoveNotSupportedException e)
+			{
+				Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally
+		{
+			Files.deleteIfExists(temporaryFile);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Read the failed tests.
+	 * 
+	 * @param file The file of the failed tests.
+	 * @return The names of the tests and classes that failed.
+	 * @throws IOException If the file could not be read.
+	 * 
+	 **/
+	public static Set<String> read(final Path file) throws IOException
+	{
+		final Set<String> names = new HashSet<String>();
+		try (final BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+		{
+			String line;
+			while ((line = reader.readLine()) != null)
+			{
+				line = line.trim();
+				if (!line.isEmpty() && !line.startsWith("#"))
+				{
+					names.add(line);
+				}
+			}
+		}
+		
+		return names;
+	}
+}
\ No newline at end of file
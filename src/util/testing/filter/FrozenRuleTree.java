@@ -0,0 +1,568 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 
+ * An immutable snapshot of a {@link RuleNode} tree, stored in flat arrays. The nodes are numbered breadth first, the
+ * root being node 0, so the children of every node are numbered consecutively. The literal children of a node come
+ * first, sorted by their subpart so they can be found with a binary search, followed by the children with wildcards
+ * ordered by descending score.
+ * 
+ * All state is final and never modified after construction, so a snapshot can be published and read from any number
+ * of threads without locking. The snapshot gives the same verdicts as the tree it was taken from. A snapshot can be
+ * written to a file and read back from it without building the tree again.
+ * 
+ * @author cvesters
+ */
+public final class FrozenRuleTree
+{
+	/**
+	 * The verdict of a node without a value.
+	 **/
+	static final byte NO_VALUE = 0;
+	
+	/**
+	 * The verdict of a node that excludes tests.
+	 **/
+	static final byte EXCLUDED = 1;
+	
+	/**
+	 * The verdict of a node that includes tests.
+	 **/
+	static final byte INCLUDED = 2;
+	
+	/**
+	 * The distinct subparts of the tree. Subparts that occur in several rules are stored once.
+	 **/
+	private final String[] fSegments;
+	
+	/**
+	 * The index in {@link #fSegments} of the subpart of each node. The root has no subpart.
+	 **/
+	private final int[] fSegmentIds;
+	
+	/**
+	 * The compiled glob of each node with wildcards, null for literal nodes.
+	 **/
+	private final Glob[] fGlobs;
+	
+	/**
+	 * The number of characters in the subpart of each node that are not wildcards.
+	 **/
+	private final int[] fScores;
+	
+	/**
+	 * The verdict of each node: {@link #NO_VALUE}, {@link #EXCLUDED} or {@link #INCLUDED}.
+	 **/
+	private final byte[] fVerdicts;
+	
+	/**
+	 * The number of the first child of each node.
+	 **/
+	private final int[] fFirstChild;
+	
+	/**
+	 * The number of the first child with wildcards of each node.
+	 **/
+	private final int[] fFirstWildcard;
+	
+	/**
+	 * The number following the last child of each node.
+	 **/
+	private final int[] fEndChild;
+	
+	/**
+	 * For each node, the verdicts the tests below it can get, as a mask with the bit <code>1 << verdict</code> of every
+	 * verdict. Computed when first needed.
+	 **/
+	private volatile byte[] fReachableVerdicts;
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param subParts The subpart of each node. The subpart of the root is ignored.
+	 * @param scores The score of each node.
+	 * @param included The value of each node, <code>null</code> if the node has no value.
+	 * @param firstChild The number of the first child of each node.
+	 * @param firstWildcard The number of the first child with wildcards of each node.
+	 * @param endChild The number following the last child of each node.
+	 * 
+	 **/
+	FrozenRuleTree(final String[] subParts, final int[] scores, final Boolean[] included, final int[] firstChild,
+		final int[] firstWildcard, final int[] endChild)
+	{
+		final int nodeCount = subParts.length;
+		final Map<String, Integer> segmentIds = new HashMap<String, Integer>();
+		fSegmentIds = new int[nodeCount];
+		fGlobs = new Glob[nodeCount];
+		fVerdicts = new byte[nodeCount];
+		for (int node = 0; node < nodeCount; node++)
+		{
+			if (node == 0)
+			{
+				fSegmentIds[node] = -1;
+			}
+			else
+			{
+				Integer id = segmentIds.get(subParts[node]);
+				if (id == null)
+				{
+					id = Integer.valueOf(segmentIds.size());
+					segmentIds.put(subParts[node], id);
+				}
+				fSegmentIds[node] = id.intValue();
+				fGlobs[node] = Glob.isWildcard(subParts[node]) ? new Glob(subParts[node]) : null;
+			}
+			
+			fVerdicts[node] = (included[node] == null) ? NO_VALUE : (included[node].booleanValue() ? INCLUDED : EXCLUDED);
+		}
+		
+		fSegments = new String[segmentIds.size()];
+		for (final Map.Entry<String, Integer> entry : segmentIds.entrySet())
+		{
+			fSegments[entry.getValue().intValue()] = entry.getKey();
+		}
+		
+		fScores = scores.clone();
+		fFirstChild = firstChild.clone();
+		fFirstWildcard = firstWildcard.clone();
+		fEndChild = endChild.clone();
+	}
+	
+	
+	/**
+	 * 
+	 * Constructor. Create a snapshot from its arrays, which are not copied.
+	 * 
+	 * @param segments The distinct subparts of the tree.
+	 * @param segmentIds The index of the subpart of each node.
+	 * @param scores The score of each node.
+	 * @param verdicts The verdict of each node.
+	 * @param firstChild The number of the first child of each node.
+	 * @param firstWildcard The number of the first child with wildcards of each node.
+	 * @param endChild The number following the last child of each node.
+	 * 
+	 **/
+	private FrozenRuleTree(final String[] segments, final int[] segmentIds, final int[] scores, final byte[] verdicts,
+		final int[] firstChild, final int[] firstWildcard, final int[] endChild)
+	{
+		fSegments = segments;
+		fSegmentIds = segmentIds;
+		fScores = scores;
+		fVerdicts = verdicts;
+		fFirstChild = firstChild;
+		fFirstWildcard = firstWildcard;
+		fEndChild = endChild;
+		
+		fGlobs = new Glob[segmentIds.length];
+		for (int node = 1; node < segmentIds.length; node++)
+		{
+			final String subPart = segments[segmentIds[node]];
+			fGlobs[node] = Glob.isWildcard(subPart) ? new Glob(subPart) : null;
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Get the best matching value for a certain test. If there is no valued set for this expression, true is returned.
+	 * 
+	 * @param expression The expression that identifies the test.
+	 * @return True or false depending on the best matching rule.
+	 * 
+	 **/
+	public boolean getBestMatchingValue(final CharSequence expression)
+	{
+		assert ((expression != null) && (expression.length() > 0));
+		
+		return findBestMatchingValue(0, expression, 0) == INCLUDED;
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether any test of a class can be included. The parts of the class name are matched as in a search for a
+	 * test, and every test below the children that can give the best match is taken into account. This may find that a
+	 * test of a class can be included while the rules exclude all of them, but never the other way around.
+	 * 
+	 * @param className The name of the class.
+	 * @return False if no test of the class can be included, true if some test may be included.
+	 * 
+	 **/
+	public boolean canInclude(final CharSequence className)
+	{
+		assert ((className != null) && (className.length() > 0));
+		
+		byte[] reachable = fReachableVerdicts;
+		if (reachable == null)
+		{
+			// Computing the verdicts twice from several threads gives the same result, so no locking is needed.
+			reachable = findReachableVerdicts();
+			fReachableVerdicts = reachable;
+		}
+		
+		return (findPossibleVerdicts(0, className, 0, reachable) & (1 << INCLUDED)) != 0;
+	}
+	
+	
+	/**
+	 * 
+	 * Compile the snapshot into a deterministic automaton that gives the same verdicts.
+	 * 
+	 * @return The compiled automaton.
+	 * 
+	 **/
+	public RuleAutomaton compile()
+	{
+		return compile(Integer.MAX_VALUE);
+	}
+	
+	
+	/**
+	 * 
+	 * Compile the snapshot into a deterministic automaton that gives the same verdicts, unless the automaton becomes
+	 * too large. Many overlapping wildcards can make the number of states, and the time needed to compile them, grow
+	 * quickly.
+	 * 
+	 * @param maxStates The maximum number of states.
+	 * @return The compiled automaton, null if it needs more than the maximum number of states.
+	 * 
+	 **/
+	public RuleAutomaton compile(final int maxStates)
+	{
+		final int nodeCount = fSegmentIds.length;
+		final String[] subParts = new String[nodeCount];
+		final Boolean[] included = new Boolean[nodeCount];
+		for (int node = 0; node < nodeCount; node++)
+		{
+			subParts[node] = (node == 0) ? null : fSegments[fSegmentIds[node]];
+			included[node] = (fVerdicts[node] == NO_VALUE) ? null : Boolean.valueOf(fVerdicts[node] == INCLUDED);
+		}
+		
+		return RuleAutomaton.compile(subParts, fScores, included, fFirstChild, fEndChild, maxStates);
+	}
+	
+	
+	/**
+	 * @return The number of nodes in the snapshot, including the root.
+	 **/
+	public int getNodeCount()
+	{
+		return fSegmentIds.length;
+	}
+	
+	
+	/**
+	 * 
+	 * Write the snapshot, in the format read by {@link #read(ByteBuffer)}.
+	 * 
+	 * @param out The output.
+	 * @throws IOException If the snapshot could not be written.
+	 * 
+	 **/
+	void write(final DataOutputStream out) throws IOException
+	{
+		out.writeInt(fSegments.length);
+		for (final String segment : fSegments)
+		{
+			out.writeInt(segment.length());
+			out.writeChars(segment);
+		}
+		
+		out.writeInt(fSegmentIds.length);
+		out.write(fVerdicts);
+		for (final int[] values : new int[][] {fSegmentIds, fScores, fFirstChild, fFirstWildcard, fEndChild})
+		{
+			for (final int value : values)
+			{
+				out.writeInt(value);
+			}
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Read a snapshot that was written by {@link #write(DataOutputStream)}, starting at the position of a buffer. The
+	 * position of the buffer is moved past the snapshot.
+	 * 
+	 * @param buffer The buffer, positioned at the start of the snapshot.
+	 * @return The snapshot.
+	 * 
+	 **/
+	static FrozenRuleTree read(final ByteBuffer buffer)
+	{
+		final String[] segments = new String[buffer.getInt()];
+		for (int i = 0; i < segments.length; i++)
+		{
+			final char[] chars = new char[buffer.getInt()];
+			buffer.asCharBuffer().get(chars);
+			buffer.position(buffer.position() + (chars.length * 2));
+			segments[i] = new String(chars);
+		}
+		
+		final int nodeCount = buffer.getInt();
+		final byte[] verdicts = new byte[nodeCount];
+		buffer.get(verdicts);
+		final int[][] values = new int[5][nodeCount];
+		for (final int[] array : values)
+		{
+			buffer.asIntBuffer().get(array);
+			buffer.position(buffer.position() + (nodeCount * 4));
+		}
+		
+		return new FrozenRuleTree(segments, values[0], values[1], verdicts, values[2], values[3], values[4]);
+	}
+	
+	
+	/**
+	 * 
+	 * Get the best matching value for the expression, starting from a given part.
+	 * 
+	 * @param node The node whose children should match the part.
+	 * @param expression The expression that identifies the test.
+	 * @param start The start of the part of the expression that should be matched by the children of the node.
+	 * @return The verdict of the best match, {@link #NO_VALUE} if the expression did not match anything.
+	 * 
+	 **/
+	private byte findBestMatchingValue(final int node, final CharSequence expression, final int start)
+	{
+		int end = start;
+		while ((end < expression.length()) && (expression.charAt(end) != '.'))
+		{
+			end++;
+		}
+		
+		int bestScore = Integer.MIN_VALUE;
+		byte bestResult = NO_VALUE;
+		
+		final int literalPart = findLiteralPart(node, expression, start, end);
+		if (literalPart >= 0)
+		{
+			final byte result = getSubPartValue(literalPart, expression, end);
+			if (result != NO_VALUE)
+			{
+				bestScore = fScores[literalPart];
+				bestResult = result;
+			}
+		}
+		
+		for (int child = fFirstWildcard[node]; child < fEndChild[node]; child++)
+		{
+			// The remaining children score lower, or can only tie with a result that is already included.
+			final int score = fScores[child];
+			if ((score < bestScore) || ((score == bestScore) && (bestResult == INCLUDED)))
+			{
+				break;
+			}
+			
+			if (!fGlobs[child].matches(expression, start, end))
+			{
+				continue;
+			}
+			
+			final byte result = getSubPartValue(child, expression, end);
+			if (result == NO_VALUE)
+			{
+				continue;
+			}
+			else if (score == bestScore)
+			{
+				bestResult = ((bestResult == INCLUDED) || (result == INCLUDED)) ? INCLUDED : EXCLUDED;
+			}
+			else
+			{
+				bestScore = score;
+				bestResult = result;
+			}
+		}
+		
+		return (bestResult != NO_VALUE) ? bestResult : fVerdicts[node];
+	}
+	
+	
+	/**
+	 * 
+	 * Find the verdicts the tests of a class can get, starting from a given part of the class name. The tests have at
+	 * least one part after the class name, which can be anything.
+	 * 
+	 * @param node The node whose children should match the part.
+	 * @param className The name of the class.
+	 * @param start The start of the part of the class name that should be matched by the children of the node, past
+	 * the end of the class name for the parts of the test.
+	 * @param reachable The verdicts below each node.
+	 * @return The mask of the verdicts the best match can have.
+	 * 
+	 **/
+	private int findPossibleVerdicts(final int node, final CharSequence className, final int start, final byte[] reachable)
+	{
+		if (start > className.length())
+		{
+			return reachable[node];
+		}
+		
+		int end = start;
+		while ((end < className.length()) && (className.charAt(end) != '.'))
+		{
+			end++;
+		}
+		
+		final int[] children = new int[(fEndChild[node] - fFirstWildcard[node]) + 1];
+		int count = 0;
+		final int literalPart = findLiteralPart(node, className, start, end);
+		if (literalPart >= 0)
+		{
+			children[count++] = literalPart;
+		}
+		for (int child = fFirstWildcard[node]; child < fEndChild[node]; child++)
+		{
+			if (fGlobs[child].matches(className, start, end))
+			{
+				children[count++] = child;
+			}
+		}
+		
+		// A child that always has a verdict hides the children with a lower score.
+		int definiteScore = Integer.MIN_VALUE;
+		final int[] verdicts = new int[count];
+		for (int i = 0; i < count; i++)
+		{
+			verdicts[i] = findPossibleVerdicts(children[i], className, end + 1, reachable);
+			if ((verdicts[i] & (1 << NO_VALUE)) == 0)
+			{
+				definiteScore = Math.max(definiteScore, fScores[children[i]]);
+			}
+		}
+		
+		int possible = 0;
+		for (int i = 0; i < count; i++)
+		{
+			if (fScores[children[i]] >= definiteScore)
+			{
+				possible |= verdicts[i] & ~(1 << NO_VALUE);
+			}
+		}
+		
+		// Unless a child always has a verdict, all children may have none, and the verdict of the node is used.
+		return (definiteScore == Integer.MIN_VALUE) ? (possible | (1 << fVerdicts[node])) : possible;
+	}
+	
+	
+	/**
+	 * 
+	 * Find the verdicts the tests below every node can get, whatever the parts of the tests are. A child can only give
+	 * a test no verdict if its parent gives it one instead.
+	 * 
+	 * @return The mask of the verdicts of every node.
+	 * 
+	 **/
+	private byte[] findReachableVerdicts()
+	{
+		// The children of a node are numbered after the node, so they are done first.
+		final byte[] reachable = new byte[fSegmentIds.length];
+		for (int node = reachable.length - 1; node >= 0; node--)
+		{
+			int verdicts = 1 << fVerdicts[node];
+			for (int child = fFirstChild[node]; child < fEndChild[node]; child++)
+			{
+				verdicts |= ((1 << fVerdicts[child]) | reachable[child]) & ~(1 << NO_VALUE);
+			}
+			reachable[node] = (byte) verdicts;
+		}
+		
+		return reachable;
+	}
+	
+	
+	/**
+	 * 
+	 * Get the value of a node for an expression of which a part matched the node.
+	 * 
+	 * @param node The node that matched.
+	 * @param expression The expression that identifies the test.
+	 * @param end The end of the part that matched the node.
+	 * @return The verdict of the best match within the node, {@link #NO_VALUE} if there is none.
+	 * 
+	 **/
+	private byte getSubPartValue(final int node, final CharSequence expression, final int end)
+	{
+		return (end == expression.length()) ? fVerdicts[node] : findBestMatchingValue(node, expression, end + 1);
+	}
+	
+	
+	/**
+	 * 
+	 * Find the literal child of a node whose subpart equals a range of characters.
+	 * 
+	 * @param node The parent node.
+	 * @param expression The expression that contains the range.
+	 * @param start The start of the range, inclusive.
+	 * @param end The end of the range, exclusive.
+	 * @return The number of the child, -1 if there is none.
+	 * 
+	 **/
+	private int findLiteralPart(final int node, final CharSequence expression, final int start, final int end)
+	{
+		int low = fFirstChild[node];
+		int high = fFirstWildcard[node] - 1;
+		while (low <= high)
+		{
+			final int middle = (low + high) >>> 1;
+			final int comparison = compare(fSegments[fSegmentIds[middle]], expression, start, end);
+			if (comparison < 0)
+			{
+				low = middle + 1;
+			}
+			else if (comparison > 0)
+			{
+				high = middle - 1;
+			}
+			else
+			{
+				return middle;
+			}
+		}
+		
+		return -1;
+	}
+	
+	
+	/**
+	 * 
+	 * Compare a subpart with a range of characters, in the order of {@link String#compareTo(String)}.
+	 * 
+	 * @param segment The subpart.
+	 * @param expression The expression that contains the range.
+	 * @param start The start of the range, inclusive.
+	 * @param end The end of the range, exclusive.
+	 * @return A negative number, zero or a positive number if the subpart is less than, equal to or greater than the
+	 * range.
+	 * 
+	 **/
+	private static int compare(final String segment, final CharSequence expression, final int start, final int end)
+	{
+		final int length = Math.min(segment.length(), end - start);
+		for (int i = 0; i < length; i++)
+		{
+			final char c = segment.charAt(i);
+			final char other = expression.charAt(start + i);
+			if (c != other)
+			{
+				return c - other;
+			}
+		}
+		
+		return segment.length() - (end - start);
+	}
+}
\ No newline at end of file
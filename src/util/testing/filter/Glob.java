@@ -0,0 +1,331 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.util.Arrays;
+
+/**
+ * 
+ * A glob for a single subpart of an expression. A '*' matches any sequence of characters and a '?' matches exactly
+ * one character, following the semantics of the default file system glob matcher for a single path element: these
+ * wildcards never match a '/', while two or more consecutive '*' match any sequence including '/'. A backslash escapes
+ * the character that follows it. All other characters, including '[', ']', '{' and '}', are literals.
+ * 
+ * A glob is matched against a range of characters, so no substrings have to be created for matching. The glob is
+ * compiled into a nondeterministic automaton with one state per token, which is simulated with bit operations: a
+ * match reads every character once and never backtracks.
+ * 
+ * @author cvesters
+ */
+final class Glob
+{
+	/**
+	 * The token that matches any sequence of characters, except for '/'.
+	 **/
+	static final int ANY_SEQUENCE = -1;
+	
+	/**
+	 * The token that matches exactly one character, except for '/'.
+	 **/
+	static final int ANY_CHARACTER = -2;
+	
+	/**
+	 * The token that matches any sequence of characters, including '/'.
+	 **/
+	static final int ANY_PATH = -3;
+	
+	/**
+	 * The number of tokens that fit in the single word the automaton is simulated in.
+	 **/
+	private static final int WORD_TOKENS = Long.SIZE - 1;
+	
+	/**
+	 * The tokens of the glob. Literal characters are represented by themselves, the wildcards by
+	 * {@link #ANY_SEQUENCE}, {@link #ANY_CHARACTER} and {@link #ANY_PATH}.
+	 **/
+	private final int[] fTokens;
+	
+	/**
+	 * For each ASCII character, the states that are reached by reading the character as a literal. State i means that
+	 * the first i tokens matched, so a token at position i leads to state i + 1.
+	 **/
+	private final long[] fAsciiMasks;
+	
+	/**
+	 * The literal characters outside of ASCII, sorted, and the states reached by reading each of them.
+	 **/
+	private final char[] fOtherChars;
+	private final long[] fOtherMasks;
+	
+	/**
+	 * The states reached by reading any character other than '/' for a '?'.
+	 **/
+	private final long fAnyCharacterMask;
+	
+	/**
+	 * The states before a '*' and before a sequence of '*', which stay active when a character is read.
+	 **/
+	private final long fAnySequenceMask;
+	private final long fAnyPathMask;
+	
+	
+	/**
+	 * 
+	 * Constructor. Compile a subpart into a glob.
+	 * 
+	 * @param subPart The subpart to compile.
+	 * 
+	 **/
+	Glob(final String subPart)
+	{
+		final int[] tokens = new int[subPart.length()];
+		int count = 0;
+		for (int i = 0; i < subPart.length(); i++)
+		{
+			final char c = subPart.charAt(i);
+			if (c == '*')
+			{
+				// A sequence of '*' is a single token, which also matches '/' if there are several.
+				if ((count > 0) && ((tokens[count - 1] == ANY_SEQUENCE) || (tokens[count - 1] == ANY_PATH)))
+				{
+					tokens[count - 1] = ANY_PATH;
+				}
+				else
+				{
+					tokens[count++] = ANY_SEQUENCE;
+				}
+			}
+			else if (c == '?')
+			{
+				tokens[count++] = ANY_CHARACTER;
+			}
+			else if ((c == '\\') && ((i + 1) < subPart.length()))
+			{
+				tokens[count++] = subPart.charAt(++i);
+			}
+			else
+			{
+				tokens[count++] = c;
+			}
+		}
+		fTokens = Arrays.copyOf(tokens, count);
+		
+		final long[] asciiMasks = new long[128];
+		final char[] otherChars = new char[fTokens.length];
+		int otherCount = 0;
+		long anyCharacterMask = 0;
+		long anySequenceMask = 0;
+		long anyPathMask = 0;
+		for (int position = 0; (position < fTokens.length) && (position < WORD_TOKENS); position++)
+		{
+			final int token = fTokens[position];
+			final long next = 1L << (position + 1);
+			if (token == ANY_CHARACTER)
+			{
+				anyCharacterMask |= next;
+			}
+			else if (token == ANY_SEQUENCE)
+			{
+				anySequenceMask |= 1L << position;
+			}
+			else if (token == ANY_PATH)
+			{
+				anyPathMask |= 1L << position;
+			}
+			else if (token < asciiMasks.length)
+			{
+				asciiMasks[token] |= next;
+			}
+			else if (Arrays.binarySearch(otherChars, 0, otherCount, (char) token) < 0)
+			{
+				otherChars[otherCount++] = (char) token;
+				Arrays.sort(otherChars, 0, otherCount);
+			}
+		}
+		
+		fAsciiMasks = asciiMasks;
+		fOtherChars = Arrays.copyOf(otherChars, otherCount);
+		fOtherMasks = new long[otherCount];
+		for (int position = 0; (position < fTokens.length) && (position < WORD_TOKENS); position++)
+		{
+			final int index = (fTokens[position] >= asciiMasks.length) ? Arrays.binarySearch(fOtherChars, (char) fTokens[position]) : -1;
+			if (index >= 0)
+			{
+				fOtherMasks[index] |= 1L << (position + 1);
+			}
+		}
+		
+		fAnyCharacterMask = anyCharacterMask;
+		fAnySequenceMask = anySequenceMask;
+		fAnyPathMask = anyPathMask;
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether a subpart contains wildcards. A backslash is considered a wildcard as well, since it escapes the
+	 * character that follows it.
+	 * 
+	 * @param subPart The subpart to check.
+	 * @return True if the subpart must be matched as a glob, false if it only matches itself.
+	 * 
+	 **/
+	static boolean isWildcard(final String subPart)
+	{
+		return (subPart.indexOf('*') >= 0) || (subPart.indexOf('?') >= 0) || (subPart.indexOf('\\') >= 0);
+	}
+	
+	
+	/**
+	 * @return A copy of the tokens of the glob.
+	 **/
+	int[] getTokens()
+	{
+		return fTokens.clone();
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether the glob matches a range of characters completely.
+	 * 
+	 * @param text The text that contains the range.
+	 * @param start The start of the range, inclusive.
+	 * @param end The end of the range, exclusive.
+	 * @return True if the glob matches the range.
+	 * 
+	 **/
+	boolean matches(final CharSequence text, final int start, final int end)
+	{
+		if (fTokens.length > WORD_TOKENS)
+		{
+			return matchesTokens(text, start, end);
+		}
+		
+		final long accept = 1L << fTokens.length;
+		final long wildcards = fAnySequenceMask | fAnyPathMask;
+		long states = closure(1L, wildcards);
+		for (int i = start; (i < end) && (states != 0); i++)
+		{
+			final char c = text.charAt(i);
+			final long shifted = states << 1;
+			if (c == '/')
+			{
+				states = (shifted & getLiteralMask(c)) | (states & fAnyPathMask);
+			}
+			else
+			{
+				states = (shifted & (getLiteralMask(c) | fAnyCharacterMask)) | (states & wildcards);
+			}
+			states = closure(states, wildcards);
+		}
+		
+		return (states & accept) != 0;
+	}
+	
+	
+	/**
+	 * 
+	 * Get the states reached by reading a character as a literal.
+	 * 
+	 * @param c The character.
+	 * @return The states, relative to the states before the tokens that match the character.
+	 * 
+	 **/
+	private long getLiteralMask(final char c)
+	{
+		if (c < fAsciiMasks.length)
+		{
+			return fAsciiMasks[c];
+		}
+		
+		final int index = Arrays.binarySearch(fOtherChars, c);
+		return (index >= 0) ? fOtherMasks[index] : 0;
+	}
+	
+	
+	/**
+	 * 
+	 * Add the states that are reached without reading a character: a sequence wildcard can match nothing. Sequences
+	 * of '*' are a single token, so a wildcard is never followed by another one and a single step is enough.
+	 * 
+	 * @param states The active states.
+	 * @param wildcards The states before a sequence wildcard.
+	 * @return The active states, including the ones reached without reading a character.
+	 * 
+	 **/
+	private static long closure(final long states, final long wildcards)
+	{
+		return states | ((states & wildcards) << 1);
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether the glob matches a range of characters completely, for globs with more tokens than fit in a word.
+	 * The automaton is simulated in the same way, one state per token, but with the states held in an array.
+	 * 
+	 * @param text The text that contains the range.
+	 * @param start The start of the range, inclusive.
+	 * @param end The end of the range, exclusive.
+	 * @return True if the glob matches the range.
+	 * 
+	 **/
+	private boolean matchesTokens(final CharSequence text, final int start, final int end)
+	{
+		boolean[] states = new boolean[fTokens.length + 1];
+		boolean[] next = new boolean[fTokens.length + 1];
+		states[0] = true;
+		closure(states);
+		for (int i = start; i < end; i++)
+		{
+			final char c = text.charAt(i);
+			Arrays.fill(next, false);
+			for (int position = 0; position < fTokens.length; position++)
+			{
+				if (!states[position])
+				{
+					continue;
+				}
+				
+				final int token = fTokens[position];
+				if ((token == ANY_PATH) || ((token == ANY_SEQUENCE) && (c != '/')))
+				{
+					next[position] = true;
+				}
+				else if ((token == c) || ((token == ANY_CHARACTER) && (c != '/')))
+				{
+					next[position + 1] = true;
+				}
+			}
+			
+			final boolean[] previous = states;
+			states = next;
+			next = previous;
+			closure(states);
+		}
+		
+		return states[fTokens.length];
+	}
+	
+	
+	/**
+	 * 
+	 * Add the states that are reached without reading a character to an array of states.
+	 * 
+	 * @param states The active states, updated in place.
+	 * 
+	 **/
+	private void closure(final boolean[] states)
+	{
+		for (int position = 0; position < fTokens.length; position++)
+		{
+			if (states[position] && ((fTokens[position] == ANY_SEQUENCE) || (fTokens[position] == ANY_PATH)))
+			{
+				states[position + 1] = true;
+			}
+		}
+	}
+}
\ No newline at end of file
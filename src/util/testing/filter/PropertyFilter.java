@@ -4,11 +4,24 @@
 
 package util.testing.filter;
 
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import org.junit.runner.Description;
 import org.junit.runner.manipulation.Filter;
@@ -18,14 +31,149 @@ import org.junit.runner.manipulation.Filter;
  * A custom property that filters tests based on a set of properties. The filter reads the local filter file, processes
  * the properties and uses them for determining if a test should run.
  * 
+ * The rules are compiled into an automaton of at most 8192 states. Rules that need more states, such as large rule
+ * files that mix many literal names with wildcards, are matched with the rule tree instead, which gives the same
+ * verdicts more slowly. An '[INFO]' message is printed when that happens.
+ * 
  * @author cvesters
  */
 public class PropertyFilter extends Filter
 {
 	/**
-	 * A tree structure of the properties.
+	 * The maximum number of verdicts that are cached.
+	 **/
+	private static final int CACHE_SIZE = 16384;
+	
+	/**
+	 * The maximum number of descriptions of which the verdict is remembered.
+	 **/
+	private static final int DESCRIPTION_CACHE_SIZE = 1 << 20;
+	
+	/**
+	 * The maximum number of states of the automaton. If the rules need more, the tests are matched with the tree, which
+	 * is slower for large rule files but gives the same verdicts. Many overlapping wildcards, or many literal rules with
+	 * a wildcard among them, can exceed the cap.
+	 **/
+	private static final int MAX_AUTOMATON_STATES = 8192;
+	
+	/**
+	 * The system property with the directory in which compiled rules are cached. An empty value disables the cache.
+	 **/
+	private static final String CACHE_DIRECTORY_PROPERTY = "testfilter.cache.dir";
+	
+	/**
+	 * The option of the rules that marks the classes that must not run concurrently with other classes.
+	 **/
+	private static final String SERIAL_OPTION = "serial";
+	
+	/**
+	 * The option of the rules that marks the test methods that can run concurrently with the other methods of their
+	 * class.
+	 **/
+	private static final String CONCURRENT_OPTION = "concurrent";
+	
+	/**
+	 * The option of the rules that assigns tests to a resource group, for example 'group=db', and the directive that
+	 * limits the number of tests of a group that run at the same time, for example '@group.db = 2'.
+	 **/
+	private static final String GROUP_OPTION = "group=";
+	private static final String GROUP_DIRECTIVE = "group.";
+	
+	/**
+	 * The system property and the directive, '@rerun = true', that only run the tests that failed in the previous run.
 	 **/
-	private final RuleNode fRootRule = new RuleNode();
+	private static final String RERUN_PROPERTY = "testfilter.rerun";
+	private static final String RERUN_DIRECTIVE = "rerun";
+	
+	/**
+	 * The filter files. The local filter file overrides the general one.
+	 **/
+	private static final String GENERAL_FILTER_FILE = "testfilter.properties";
+	private static final String LOCAL_FILTER_FILE = "local." + GENERAL_FILTER_FILE;
+	
+	/**
+	 * The filter shared by all suites of the JVM, and the state of the filter files it was read from. Guarded by the
+	 * class.
+	 **/
+	private static PropertyFilter fgSharedFilter;
+	private static List<String> fgSharedFilterFiles;
+	
+	/**
+	 * An immutable snapshot of the tree structure of the properties.
+	 **/
+	private final FrozenRuleTree fRuleTree;
+	
+	/**
+	 * The properties compiled into an automaton, used for matching the tests. Null if the automaton would be too large,
+	 * in which case the snapshot of the tree is used.
+	 **/
+	private final RuleAutomaton fRules;
+	
+	/**
+	 * The options of the rules.
+	 **/
+	private final RuleOptions fOptions;
+	
+	/**
+	 * The maximum number of tests of each resource group that run at the same time, by the name of the group.
+	 **/
+	private final Map<String, Integer> fGroupLimits = new HashMap<String, Integer>();
+	
+	/**
+	 * In rerun mode, the names of the tests and classes that failed in the previous run, and the names of their
+	 * classes. Only these tests run, as if the rules were '* = excluded' followed by an included rule for every
+	 * failure. Null if the filter is not in rerun mode.
+	 **/
+	private final Set<String> fRerunTests;
+	private final Set<String> fRerunClasses;
+	
+	/**
+	 * The verdicts of the tests that were matched recently, the least recently used verdicts are evicted first.
+	 **/
+	private final VerdictCache fVerdicts = new VerdictCache();
+	
+	/**
+	 * The verdicts of the descriptions that were filtered, by identity. Descriptions are compared by their display
+	 * name, which does not identify their children, so equal descriptions can have different verdicts. The verdicts are
+	 * only needed while a hierarchy of suites is built, the outermost suite forgets them when it is done, so the
+	 * descriptions are not kept for the life of the JVM.
+	 **/
+	private final Map<Description, Boolean> fDescriptionVerdicts = new IdentityHashMap<Description, Boolean>();
+	
+	/**
+	 * The number of verdicts that were found in the cache.
+	 **/
+	private long fCacheHits;
+	
+	/**
+	 * The number of verdicts that had to be matched.
+	 **/
+	private long fCacheMisses;
+	
+	/**
+	 * The name of the class of the last test that was matched on each thread, and the state of the automaton after that
+	 * class name and the separator. The tests of a class are filtered one after the other, so the class name is matched
+	 * once. Each thread has its own, so matching needs no lock.
+	 **/
+	private final ThreadLocal<ClassState> fClassState = new ThreadLocal<ClassState>()
+	{
+		@Override
+		protected ClassState initialValue()
+		{
+			return new ClassState();
+		}
+	};
+	
+	
+	/**
+	 * Constructor. The properties are read from the local filter file, or the general filter file if there is no
+	 * local one.
+	 * 
+	 **/
+	public PropertyFilter()
+	{
+		this(readFilters(LOCAL_FILTER_FILE, GENERAL_FILTER_FILE));
+	}
 	
 	
 	/**
@@ -33,14 +181,112 @@ public class PropertyFilter extends Filter
 	 * @param properties The properties used to filter.
 	 * 
 	 **/
-	public PropertyFilter()
+	public PropertyFilter(final Properties properties)
 	{
-		readFilters();
+		this(new CompiledRules(processProperties(properties), RuleOptions.create(properties), getDirectives(properties), properties.size(), MAX_AUTOMATON_STATES));
+	}
+	
+	
+	/**
+	 * Constructor.
+	 * @param rules The compiled rules used to filter.
+	 * 
+	 **/
+	private PropertyFilter(final CompiledRules rules)
+	{
+		fRuleTree = rules.getTree();
+		fRules = rules.getAutomaton();
+		if (fRules == null)
+		{
+			System.out.println("[INFO] The " + rules.getRuleCount() + " rules need more than " + MAX_AUTOMATON_STATES + " automaton states, the tests are matched with the rule tree.");
+		}
+		fOptions = rules.getOptions();
+		boolean rerun = Boolean.getBoolean(RERUN_PROPERTY);
+		for (final Map.Entry<String, String> directive : rules.getDirectives().entrySet())
+		{
+			if (directive.getKey().startsWith(GROUP_DIRECTIVE))
+			{
+				final String group = directive.getKey().substring(GROUP_DIRECTIVE.length()).toLowerCase(Locale.ENGLISH);
+				try
+				{
+					fGroupLimits.put(group, Integer.valueOf(Math.max(1, Integer.parseInt(directive.getValue()))));
+				}
+				catch (final NumberFormatException e)
+				{
+					System.out.println("[WARNING] The limit of the resource group '" + group + "' is not a number: '" + directive.getValue() + "'.");
+				}
+			}
+			else if (directive.getKey().equals(RERUN_DIRECTIVE))
+			{
+				rerun |= Boolean.parseBoolean(directive.getValue());
+			}
+			else
+			{
+				System.out.println("[WARNING] Unknown directive '@" + directive.getKey() + "'.");
+			}
+		}
+		
+		fRerunTests = rerun ? readFailedTests() : null;
+		fRerunClasses = rerun ? new HashSet<String>() : null;
+		if (rerun)
+		{
+			for (final String name : fRerunTests)
+			{
+				// A name is either a test or a class. The name of a method may contain dots as well, so every part
+				// before a dot may be the class.
+				fRerunClasses.add(name);
+				for (int end = name.indexOf('.'); end > 0; end = name.indexOf('.', end + 1))
+				{
+					fRerunClasses.add(name.substring(0, end));
+				}
+			}
+		}
 	}
 	
 	
 	/**
-	 * Determines if a test should run based on properties.
+	 * 
+	 * Get the filter shared by all suites of the JVM. The filter is read from the filter files the first time, and read
+	 * again only when a filter file or the file of the failed tests is created, deleted or modified, as seen from its
+	 * modification time and size, or when rerun mode is switched.
+	 * 
+	 * @return The shared filter.
+	 * 
+	 **/
+	public static PropertyFilter getShared()
+	{
+		return getShared(LOCAL_FILTER_FILE, GENERAL_FILTER_FILE);
+	}
+	
+	
+	/**
+	 * 
+	 * Get the filter shared by all suites of the JVM, read from the given filter files.
+	 * 
+	 * @param localFilterFile The name of the local filter file.
+	 * @param generalFilterFile The name of the general filter file.
+	 * @return The shared filter.
+	 * @see #getShared()
+	 * 
+	 **/
+	static synchronized PropertyFilter getShared(final String localFilterFile, final String generalFilterFile)
+	{
+		final List<String> filterFiles = Arrays.asList(getFileState(localFilterFile), getFileState(generalFilterFile), getFileState(FailedTests.getFile().toString()), System.getProperty(RERUN_PROPERTY));
+		if ((fgSharedFilter == null) || !filterFiles.equals(fgSharedFilterFiles))
+		{
+			fgSharedFilter = new PropertyFilter(readFilters(localFilterFile, generalFilterFile));
+			fgSharedFilterFiles = filterFiles;
+		}
+		
+		return fgSharedFilter;
+	}
+	
+	
+	/**
+	 * Determines if a test should run based on properties. A description should run if it is an included test, or if
+	 * any of its descendants is. JUnit asks this at every level of nested suites for the same descriptions, so the
+	 * result is remembered for each description. The descriptions are walked with an explicit stack, so a deep
+	 * hierarchy cannot overflow the call stack.
 	 * 
 	 * @param description the {@link Description description} of the test to be run.
 	 * @return <code>true</code> if the test should be run, false otherwise.
@@ -49,19 +295,172 @@ public class PropertyFilter extends Filter
 	@Override
 	public boolean shouldRun(final Description description)
 	{
-		boolean shouldRun = false;
-		for (final Description child : description.getChildren())
+		final Boolean known = getDescriptionVerdict(description);
+		if (known != null)
 		{
-			shouldRun = shouldRun || shouldRun(child);
+			return known.booleanValue();
 		}
 		
-		if (description.isTest())
+		final ArrayDeque<DescriptionWalk> stack = new ArrayDeque<DescriptionWalk>();
+		stack.push(new DescriptionWalk(description));
+		boolean shouldRun = false;
+		while (true)
 		{
-			final String fullTestName = description.getClassName() + "." + description.getMethodName();
-			return shouldRun || fRootRule.getBestMatchingValue(fullTestName);
+			final DescriptionWalk walk = stack.peek();
+			
+			// Once a descendant should run, the remaining children do not matter.
+			if (!shouldRun && walk.fChildren.hasNext())
+			{
+				final Description child = walk.fChildren.next();
+				final Boolean childVerdict = getDescriptionVerdict(child);
+				if (childVerdict != null)
+				{
+					shouldRun = childVerdict.booleanValue();
+				}
+				else
+				{
+					stack.push(new DescriptionWalk(child));
+				}
+				continue;
+			}
+			
+			if (!shouldRun && walk.fDescription.isTest())
+			{
+				shouldRun = isIncluded(walk.fDescription.getClassName(), walk.fDescription.getMethodName());
+			}
+			putDescriptionVerdict(walk.fDescription, shouldRun);
+			
+			stack.pop();
+			if (stack.isEmpty())
+			{
+				return shouldRun;
+			}
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether any test of a class can be included by the rules. Suites use this to skip classes before a runner
+	 * is built for them.
+	 * 
+	 * @param className The name of the class.
+	 * @return False if no test of the class can be included, true if some test may be included.
+	 * 
+	 **/
+	public boolean canInclude(final String className)
+	{
+		if (fRerunClasses != null)
+		{
+			return fRerunClasses.contains(className);
+		}
+		if (fRules == null)
+		{
+			return fRuleTree.canInclude(className);
 		}
 		
-		return shouldRun;
+		return fRules.canInclude(fRules.advance(fRules.advance(RuleAutomaton.INITIAL_STATE, className), "."));
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether a class must run serially, because the best matching rule of the class lists the option 'serial',
+	 * for example 'com.acme.db = included,serial'. Parallel suites never run such a class concurrently with the other
+	 * classes of the suite.
+	 * 
+	 * @param className The name of the class.
+	 * @return True if the class must run serially.
+	 * 
+	 **/
+	public boolean isSerial(final String className)
+	{
+		return !className.isEmpty() && fOptions.hasOption(SERIAL_OPTION, className);
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether a test method can run concurrently with the other methods of its class, because the best matching
+	 * rule of the test lists the option 'concurrent', for example 'com.acme.io = included,concurrent'.
+	 * 
+	 * @param className The name of the class of the test.
+	 * @param methodName The name of the test method.
+	 * @return True if the test can run concurrently.
+	 * 
+	 **/
+	public boolean isConcurrent(final String className, final String methodName)
+	{
+		return (methodName != null) && fOptions.hasOption(CONCURRENT_OPTION, className + "." + methodName);
+	}
+	
+	
+	/**
+	 * 
+	 * Get the resource group of a class, given by the option 'group=name' of the best matching rule of the class, for
+	 * example 'com.acme.db = included,group=db'.
+	 * 
+	 * @param className The name of the class.
+	 * @return The name of the group in lower case, null if the class is not in a group.
+	 * 
+	 **/
+	public String getGroup(final String className)
+	{
+		return className.isEmpty() ? null : fOptions.getOptionValue(GROUP_OPTION, className);
+	}
+	
+	
+	/**
+	 * 
+	 * Get the maximum number of tests of a resource group that run at the same time, given by the directive
+	 * '@group.name = limit'.
+	 * 
+	 * @param group The name of the group, in lower case.
+	 * @return The limit of the group, {@link Integer#MAX_VALUE} if the group has no limit.
+	 * 
+	 **/
+	public int getGroupLimit(final String group)
+	{
+		final Integer limit = fGroupLimits.get(group);
+		return (limit == null) ? Integer.MAX_VALUE : limit.intValue();
+	}
+	
+	
+	/**
+	 * 
+	 * Forget the verdicts of the descriptions that were filtered. The verdicts of the tests themselves are kept.
+	 * 
+	 **/
+	public void forgetDescriptions()
+	{
+		synchronized (fDescriptionVerdicts)
+		{
+			fDescriptionVerdicts.clear();
+		}
+	}
+	
+	
+	/**
+	 * @return The number of verdicts that were found in the cache.
+	 **/
+	public long getCacheHits()
+	{
+		synchronized (fVerdicts)
+		{
+			return fCacheHits;
+		}
+	}
+	
+	
+	/**
+	 * @return The number of verdicts that were not found in the cache and had to be matched.
+	 **/
+	public long getCacheMisses()
+	{
+		synchronized (fVerdicts)
+		{
+			return fCacheMisses;
+		}
 	}
 	
 	
@@ -77,63 +476,385 @@ public class PropertyFilter extends Filter
 	
 	/**
 	 * 
-	 * Read the filter rules from the file, and process them.
+	 * Get the verdict of a description that was filtered before.
+	 * 
+	 * @param description The description.
+	 * @return True or false if the description should run or not, null if it was not filtered yet.
+	 * 
+	 **/
+	private Boolean getDescriptionVerdict(final Description description)
+	{
+		synchronized (fDescriptionVerdicts)
+		{
+			return fDescriptionVerdicts.get(description);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Remember the verdict of a description. The verdicts are forgotten when there are too many of them.
+	 * 
+	 * @param description The description.
+	 * @param shouldRun True if the description should run.
 	 * 
 	 **/
-	private void readFilters()
+	private void putDescriptionVerdict(final Description description, final boolean shouldRun)
 	{
-		final String generalFilterFile = "testfilter.properties";
-		final String localFilterFile = "local." + generalFilterFile;
+		synchronized (fDescriptionVerdicts)
+		{
+			if (fDescriptionVerdicts.size() >= DESCRIPTION_CACHE_SIZE)
+			{
+				fDescriptionVerdicts.clear();
+			}
+			fDescriptionVerdicts.put(description, Boolean.valueOf(shouldRun));
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Determine if a test is included by the rules. JUnit filters the same tests at every level of nested suites, so
+	 * the verdicts are cached. The cache is only locked to look up and to add a verdict, the rules are matched outside
+	 * of the lock so suites on other threads are not held up.
+	 * 
+	 * @param className The name of the class of the test.
+	 * @param methodName The name of the test method.
+	 * @return True if the test should run, false otherwise.
+	 * 
+	 **/
+	private boolean isIncluded(final String className, final String methodName)
+	{
+		if (fRerunTests != null)
+		{
+			return fRerunTests.contains(className + "." + methodName) || fRerunTests.contains(className);
+		}
+		
+		final VerdictKey key = new VerdictKey(className, methodName);
+		synchronized (fVerdicts)
+		{
+			final Boolean verdict = fVerdicts.get(key);
+			if (verdict != null)
+			{
+				fCacheHits++;
+				return verdict.booleanValue();
+			}
+			fCacheMisses++;
+		}
+		
+		final boolean included;
+		if (fRules == null)
+		{
+			included = fRuleTree.getBestMatchingValue(className + "." + methodName);
+		}
+		else
+		{
+			final ClassState classState = fClassState.get();
+			if ((classState.fClassName == null) || !classState.fClassName.equals(className))
+			{
+				classState.fClassName = className;
+				classState.fState = fRules.advance(fRules.advance(RuleAutomaton.INITIAL_STATE, String.valueOf(className)), ".");
+			}
+			included = fRules.getVerdict(fRules.advance(classState.fState, String.valueOf(methodName)));
+		}
 		
+		synchronized (fVerdicts)
+		{
+			fVerdicts.put(key, Boolean.valueOf(included));
+		}
+		return included;
+	}
+	
+	
+	/**
+	 * 
+	 * Read the filter rules from the file.
+	 * 
+	 * @param localFilterFile The name of the local filter file.
+	 * @param generalFilterFile The name of the general filter file.
+	 * @return The compiled filter rules, without rules if there is no filter file.
+	 * 
+	 **/
+	private static CompiledRules readFilters(final String localFilterFile, final String generalFilterFile)
+	{
 		// Local properties override the general.
 		if (Files.exists(Paths.get(localFilterFile)))
 		{
-			try
+			final CompiledRules localRules = readFilters(localFilterFile);
+			if (localRules != null)
 			{
-				final Properties localProps = new Properties();
-				localProps.load(new FileInputStream(localFilterFile));
-				processProperties(localProps);
-				return;
+				return localRules;
 			}
-			catch (final IOException e)
+			System.out.println("[ERROR] Falling back to '" + generalFilterFile + "'.");
+		}
+		
+		if (Files.exists(Paths.get(generalFilterFile)))
+		{
+			final CompiledRules rules = readFilters(generalFilterFile);
+			if (rules != null)
 			{
-				System.out.println("[ERROR] Failed to load '" + localFilterFile + "': " + e.getMessage());
-				e.printStackTrace(System.out);
-				System.out.println("[ERROR] Falling back to '" + generalFilterFile + "'.");
+				return rules;
 			}
 		}
 		
-		if (Files.exists(Paths.get(generalFilterFile)))
+		return new CompiledRules(new RuleNode(), RuleOptions.NONE, Collections.<String, String> emptyMap(), 0, MAX_AUTOMATON_STATES);
+	}
+	
+	
+	/**
+	 * 
+	 * Read the filter rules from a file. The rules are added to the tree while the file is read, so even very large
+	 * files are never held in memory completely. Unless the cache is disabled, the compiled rules are read from the
+	 * cache if the file did not change since they were cached.
+	 * 
+	 * @param filterFile The name of the file.
+	 * @return The compiled filter rules, null if the file could not be read.
+	 * 
+	 **/
+	private static CompiledRules readFilters(final String filterFile)
+	{
+		final long start = System.nanoTime();
+		try
 		{
-			try
+			final String cacheDirectory = System.getProperty(CACHE_DIRECTORY_PROPERTY, Paths.get(System.getProperty("user.home"), ".testfilter", "cache").toString());
+			final CompiledRules rules;
+			if (cacheDirectory.isEmpty())
 			{
-				final Properties props = new Properties();
-				props.load(new FileInputStream(generalFilterFile));
-				processProperties(props);
-				return;
+				rules = CompiledRules.read(Paths.get(filterFile), MAX_AUTOMATON_STATES);
 			}
-			catch (final IOException e)
+			else
 			{
-				System.out.println("[ERROR] Failed to load '" + generalFilterFile + "': " + e.getMessage());
-				e.printStackTrace(System.out);
+				rules = CompiledRules.load(Paths.get(filterFile), Paths.get(cacheDirectory), MAX_AUTOMATON_STATES);
 			}
+			System.out.println("[INFO] Loaded " + rules.getRuleCount() + " rules from '" + filterFile + "' in " + ((System.nanoTime() - start) / 1000000) + " ms.");
+			return rules;
+		}
+		catch (final IOException e)
+		{
+			System.out.println("[ERROR] Failed to load '" + filterFile + "': " + e.getMessage());
+			e.printStackTrace(System.out);
+			return null;
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Read the tests that failed in the previous run, for rerun mode.
+	 * 
+	 * @return The names of the tests and classes that failed, none if they could not be read.
+	 * 
+	 **/
+	private static Set<String> readFailedTests()
+	{
+		final Path file = FailedTests.getFile();
+		try
+		{
+			final Set<String> failedTests = FailedTests.read(file);
+			System.out.println("[INFO] Rerunning the " + failedTests.size() + " tests listed in '" + file + "'.");
+			return failedTests;
+		}
+		catch (final IOException e)
+		{
+			System.out.println("[WARNING] Failed to read the failed tests '" + file + "', no tests run: " + e);
+			return Collections.emptySet();
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Get the state of a filter file, which changes when the file is created, deleted or modified.
+	 * 
+	 * @param filterFile The name of the file.
+	 * @return The absolute path, the modification time and the size of the file, null if the file does not exist.
+	 * 
+	 **/
+	private static String getFileState(final String filterFile)
+	{
+		final Path path = Paths.get(filterFile).toAbsolutePath().normalize();
+		try
+		{
+			final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			return path + "|" + attributes.lastModifiedTime().toMillis() + "|" + attributes.size();
+		}
+		catch (final IOException e)
+		{
+			return null;
 		}
 	}
 	
 	
 	/**
 	 * 
-	 * Process the properties by adding them to the tree structure.
+	 * Process the properties by adding them to a tree structure.
 	 * 
 	 * @param props The properties to process.
+	 * @return The tree of rules.
+	 * 
+	 **/
+	private static RuleNode processProperties(final Properties props)
+	{
+		final RuleNode rootRule = new RuleNode();
+		for (final String key : props.stringPropertyNames())
+		{
+			if (!key.startsWith("@"))
+			{
+				final String value = props.getProperty(key);
+				rootRule.addMatchRule(key, RuleOptions.isIncluded(value));
+			}
+		}
+		
+		return rootRule;
+	}
+	
+	
+	/**
+	 * 
+	 * Get the directives of the properties, the keys that start with '@'.
+	 * 
+	 * @param props The properties.
+	 * @return The values of the directives, by their key without the '@'.
 	 * 
 	 **/
-	private void processProperties(final Properties props)
+	private static Map<String, String> getDirectives(final Properties props)
 	{
+		final Map<String, String> directives = new HashMap<String, String>();
 		for (final String key : props.stringPropertyNames())
 		{
-			final String value = props.getProperty(key);
-			fRootRule.addMatchRule(key, !"excluded".equalsIgnoreCase(value));
+			if (key.startsWith("@"))
+			{
+				directives.put(key.substring(1), props.getProperty(key).trim());
+			}
+		}
+		
+		return directives;
+	}
+	
+	
+	/**
+	 * 
+	 * The class that was matched last on a thread, and the state of the automaton after its name and the separator.
+	 * 
+	 **/
+	private static final class ClassState
+	{
+		private String fClassName;
+		private int fState;
+	}
+	
+	
+	/**
+	 * 
+	 * The key of a cached verdict.
+	 * 
+	 **/
+	private static final class VerdictKey
+	{
+		private final String fClassName;
+		private final String fMethodName;
+		
+		
+		/**
+		 * 
+		 * Constructor.
+		 * 
+		 * @param className The name of the class of the test.
+		 * @param methodName The name of the test method.
+		 * 
+		 **/
+		VerdictKey(final String className, final String methodName)
+		{
+			fClassName = className;
+			fMethodName = methodName;
+		}
+		
+		
+		@Override
+		public boolean equals(final Object other)
+		{
+			if (!(other instanceof VerdictKey))
+			{
+				return false;
+			}
+			
+			final VerdictKey key = (VerdictKey) other;
+			return equals(fClassName, key.fClassName) && equals(fMethodName, key.fMethodName);
+		}
+		
+		
+		@Override
+		public int hashCode()
+		{
+			return (31 * ((fClassName != null) ? fClassName.hashCode() : 0)) + ((fMethodName != null) ? fMethodName.hashCode() : 0);
+		}
+		
+		
+		/**
+		 * 
+		 * Compare two names that may be null.
+		 * 
+		 * @param a The first name.
+		 * @param b The second name.
+		 * @return True if both names are equal.
+		 * 
+		 **/
+		private static boolean equals(final String a, final String b)
+		{
+			return (a == null) ? (b == null) : a.equals(b);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * A map of verdicts that is limited to {@link PropertyFilter#CACHE_SIZE} entries, evicting the least recently used.
+	 * 
+	 **/
+	private static final class VerdictCache extends LinkedHashMap<VerdictKey, Boolean>
+	{
+		private static final long serialVersionUID = 1L;
+		
+		
+		/**
+		 * Constructor.
+		 **/
+		VerdictCache()
+		{
+			super(16, 0.75f, true);
+		}
+		
+		
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<VerdictKey, Boolean> eldest)
+		{
+			return size() > CACHE_SIZE;
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * A description that is being walked, with the children that were not walked yet.
+	 * 
+	 **/
+	private static final class DescriptionWalk
+	{
+		private final Description fDescription;
+		private final Iterator<Description> fChildren;
+		
+		
+		/**
+		 * 
+		 * Constructor.
+		 * 
+		 * @param description The description to walk.
+		 * 
+		 **/
+		DescriptionWalk(final Description description)
+		{
+			fDescription = description;
+			fChildren = description.getChildren().iterator();
 		}
 	}
 }
\ No newline at end of file
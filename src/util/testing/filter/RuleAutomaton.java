@@ -0,0 +1,767 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 
+ * A deterministic automaton compiled from a {@link RuleNode} tree. The automaton runs over the characters of the fully
+ * qualified name of a test, and every state carries the verdict the tree gives for a name ending in that state.
+ * Classifying a test is therefore a single scan over its name, regardless of the number of rules.
+ * 
+ * The automaton is immutable and can be shared between threads. The tree it was compiled from remains the reference
+ * for the semantics, changes made to the tree after compilation are not reflected. An automaton can be written to a
+ * file and read back from it without compiling it again.
+ * 
+ * @author cvesters
+ */
+public final class RuleAutomaton
+{
+	/**
+	 * The state of the automaton before any character is read.
+	 **/
+	public static final int INITIAL_STATE = 0;
+	
+	/**
+	 * The symbol that represents all characters that do not occur literally in any rule.
+	 **/
+	private static final int OTHER = Integer.MIN_VALUE;
+	
+	/**
+	 * The sorted characters that have their own character class. Class 0 is used for all other characters.
+	 **/
+	private final char[] fClassChars;
+	
+	/**
+	 * The character class of each ASCII character.
+	 **/
+	private final int[] fAsciiClasses = new int[128];
+	
+	/**
+	 * The number of character classes.
+	 **/
+	private final int fClassCount;
+	
+	/**
+	 * The transition table, indexed by state and character class. State 0 is the initial state.
+	 **/
+	private final int[] fTransitions;
+	
+	/**
+	 * The verdict of each state.
+	 **/
+	private final boolean[] fVerdicts;
+	
+	/**
+	 * For each state, whether a state with a verdict of true can be reached from it. Computed when first needed.
+	 **/
+	private volatile boolean[] fIncludedReachable;
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param classChars The sorted characters that have their own character class.
+	 * @param transitions The transition table.
+	 * @param verdicts The verdict of each state.
+	 * 
+	 **/
+	private RuleAutomaton(final char[] classChars, final int[] transitions, final boolean[] verdicts)
+	{
+		fClassChars = classChars;
+		fClassCount = classChars.length + 1;
+		fTransitions = transitions;
+		fVerdicts = verdicts;
+		
+		for (char c = 0; c < fAsciiClasses.length; c++)
+		{
+			fAsciiClasses[c] = lookupClass(c);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Get the best matching value for a certain test. If there is no valued set for this expression, true is returned.
+	 * 
+	 * @param expression The expression that identifies the test.
+	 * @return True or false depending on the best matching rule.
+	 * 
+	 **/
+	public boolean getBestMatchingValue(final CharSequence expression)
+	{
+		assert ((expression != null) && (expression.length() > 0));
+		
+		return fVerdicts[advance(INITIAL_STATE, expression)];
+	}
+	
+	
+	/**
+	 * 
+	 * Advance the automaton over a sequence of characters. Expressions that share a prefix, such as the tests of a
+	 * class, can be matched by advancing over the prefix once and continuing from the resulting state.
+	 * 
+	 * @param state The state to start from.
+	 * @param text The characters to read.
+	 * @return The state after reading the characters.
+	 * 
+	 **/
+	public int advance(final int state, final CharSequence text)
+	{
+		int current = state;
+		for (int i = 0; i < text.length(); i++)
+		{
+			current = fTransitions[(current * fClassCount) + getClass(text.charAt(i))];
+		}
+		
+		return current;
+	}
+	
+	
+	/**
+	 * 
+	 * Get the verdict for an expression that ends in a state.
+	 * 
+	 * @param state The state the expression ends in.
+	 * @return True or false depending on the best matching rule.
+	 * 
+	 **/
+	public boolean getVerdict(final int state)
+	{
+		return fVerdicts[state];
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether an expression that continues from a state can still be included. For example, when the state is
+	 * reached by reading the name of a class and the separator, this tells whether any test of the class can be
+	 * included.
+	 * 
+	 * @param state The state the expression continues from.
+	 * @return True if reading some sequence of characters from the state, possibly none, leads to a verdict of true.
+	 * 
+	 **/
+	public boolean canInclude(final int state)
+	{
+		boolean[] reachable = fIncludedReachable;
+		if (reachable == null)
+		{
+			// Computing the states twice from several threads gives the same result, so no locking is needed.
+			reachable = findIncludedReachable();
+			fIncludedReachable = reachable;
+		}
+		
+		return reachable[state];
+	}
+	
+	
+	/**
+	 * @return The number of states in the automaton.
+	 **/
+	public int getStateCount()
+	{
+		return fVerdicts.length;
+	}
+	
+	
+	/**
+	 * 
+	 * Write the automaton, in the format read by {@link #read(ByteBuffer)}.
+	 * 
+	 * @param out The output.
+	 * @throws IOException If the automaton could not be written.
+	 * 
+	 **/
+	void write(final DataOutputStream out) throws IOException
+	{
+		out.writeInt(fClassChars.length);
+		for (final char c : fClassChars)
+		{
+			out.writeChar(c);
+		}
+		out.writeInt(fVerdicts.length);
+		for (final boolean verdict : fVerdicts)
+		{
+			out.writeBoolean(verdict);
+		}
+		for (final int transition : fTransitions)
+		{
+			out.writeInt(transition);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Read an automaton that was written by {@link #write(DataOutputStream)}, starting at the position of a buffer. The
+	 * position of the buffer is moved past the automaton.
+	 * 
+	 * The transitions are copied from the buffer in bulk rather than read from the buffer while matching: reading an
+	 * int from a buffer is noticeably slower than from an array on the path every test goes through.
+	 * 
+	 * @param buffer The buffer, positioned at the start of the automaton.
+	 * @return The automaton.
+	 * 
+	 **/
+	static RuleAutomaton read(final ByteBuffer buffer)
+	{
+		final char[] classChars = new char[buffer.getInt()];
+		for (int i = 0; i < classChars.length; i++)
+		{
+			classChars[i] = buffer.getChar();
+		}
+		final boolean[] verdicts = new boolean[buffer.getInt()];
+		for (int i = 0; i < verdicts.length; i++)
+		{
+			verdicts[i] = buffer.get() != 0;
+		}
+		
+		final int[] transitions = new int[verdicts.length * (classChars.length + 1)];
+		buffer.asIntBuffer().get(transitions);
+		buffer.position(buffer.position() + (transitions.length * 4));
+		
+		return new RuleAutomaton(classChars, transitions, verdicts);
+	}
+	
+	
+	/**
+	 * 
+	 * Find the states from which a state with a verdict of true can be reached, by searching backwards from those
+	 * states.
+	 * 
+	 * @return For each state, whether a state with a verdict of true can be reached from it.
+	 * 
+	 **/
+	private boolean[] findIncludedReachable()
+	{
+		final int stateCount = fVerdicts.length;
+		
+		// The predecessors of each state, as linked lists of transitions in arrays.
+		final int[] firstPredecessor = new int[stateCount];
+		Arrays.fill(firstPredecessor, -1);
+		final int[] nextPredecessor = new int[fTransitions.length];
+		for (int transition = 0; transition < fTransitions.length; transition++)
+		{
+			final int target = fTransitions[transition];
+			nextPredecessor[transition] = firstPredecessor[target];
+			firstPredecessor[target] = transition;
+		}
+		
+		final boolean[] reachable = new boolean[stateCount];
+		final int[] pending = new int[stateCount];
+		int pendingCount = 0;
+		for (int state = 0; state < stateCount; state++)
+		{
+			if (fVerdicts[state])
+			{
+				reachable[state] = true;
+				pending[pendingCount++] = state;
+			}
+		}
+		
+		while (pendingCount > 0)
+		{
+			final int state = pending[--pendingCount];
+			for (int transition = firstPredecessor[state]; transition >= 0; transition = nextPredecessor[transition])
+			{
+				final int source = transition / fClassCount;
+				if (!reachable[source])
+				{
+					reachable[source] = true;
+					pending[pendingCount++] = source;
+				}
+			}
+		}
+		
+		return reachable;
+	}
+	
+	
+	/**
+	 * 
+	 * Get the character class of a character.
+	 * 
+	 * @param c The character.
+	 * @return The character class.
+	 * 
+	 **/
+	private int getClass(final char c)
+	{
+		return (c < fAsciiClasses.length) ? fAsciiClasses[c] : lookupClass(c);
+	}
+	
+	
+	/**
+	 * 
+	 * Look up the character class of a character in the sorted class characters.
+	 * 
+	 * @param c The character.
+	 * @return The character class.
+	 * 
+	 **/
+	private int lookupClass(final char c)
+	{
+		final int index = Arrays.binarySearch(fClassChars, c);
+		return (index >= 0) ? (index + 1) : 0;
+	}
+	
+	
+	/**
+	 * 
+	 * Compile a flattened tree into an automaton using the subset construction. The nodes are numbered breadth first,
+	 * the root being node 0, so the children of every node are numbered consecutively.
+	 * 
+	 * A state of the automaton is a set of items. An item either refers to a position in the glob of a node whose
+	 * subpart is being matched, or to a node that matched a preceding subpart of the name completely. The verdict of a
+	 * state is found by applying the best match rules of the tree on the nodes that matched.
+	 * 
+	 * @param subParts The subpart of each node. The subpart of the root is ignored.
+	 * @param scores The score of each node.
+	 * @param included The value of each node, <code>null</code> if the node has no value.
+	 * @param firstChild The number of the first child of each node.
+	 * @param endChild The number following the last child of each node.
+	 * @param maxStates The maximum number of states. Many overlapping wildcards can make the number of states grow
+	 * quickly, together with the time needed to compile them.
+	 * @return The compiled automaton, null if it needs more than the maximum number of states.
+	 * 
+	 **/
+	static RuleAutomaton compile(final String[] subParts, final int[] scores, final Boolean[] included,
+		final int[] firstChild, final int[] endChild, final int maxStates)
+	{
+		return new Compiler(subParts, scores, included, firstChild, endChild).compile(maxStates);
+	}
+	
+	
+	/**
+	 * 
+	 * The state of a single compilation.
+	 * 
+	 **/
+	private static final class Compiler
+	{
+		private final int[] fScores;
+		private final Boolean[] fIncluded;
+		private final int[] fFirstChild;
+		private final int[] fEndChild;
+		
+		// The glob tokens of each node and the first item number of each node.
+		private final int[][] fTokens;
+		private final int[] fItemBase;
+		
+		// Items from this number onwards represent nodes that completely matched a subpart.
+		private final int fMatchedBase;
+		
+		// The symbol of each character class.
+		private final char[] fClassChars;
+		private final int[] fSymbols;
+		
+		private final Map<ItemSet, Integer> fStateNumbers = new HashMap<ItemSet, Integer>();
+		private final List<ItemSet> fStates = new ArrayList<ItemSet>();
+		
+		
+		/**
+		 * 
+		 * Constructor.
+		 * 
+		 * @see RuleAutomaton#compile(String[], int[], Boolean[], int[], int[], int)
+		 * 
+		 **/
+		Compiler(final String[] subParts, final int[] scores, final Boolean[] included, final int[] firstChild,
+			final int[] endChild)
+		{
+			fScores = scores;
+			fIncluded = included;
+			fFirstChild = firstChild;
+			fEndChild = endChild;
+			
+			final int nodeCount = subParts.length;
+			final TreeSet<Character> chars = new TreeSet<Character>();
+			chars.add(Character.valueOf('.'));
+			chars.add(Character.valueOf('/'));
+			
+			fTokens = new int[nodeCount][];
+			fItemBase = new int[nodeCount];
+			int itemCount = 0;
+			for (int node = 0; node < nodeCount; node++)
+			{
+				fTokens[node] = (node == 0) ? new int[0] : new Glob(subParts[node]).getTokens();
+				fItemBase[node] = itemCount;
+				itemCount += fTokens[node].length + 1;
+				
+				for (final int token : fTokens[node])
+				{
+					if (token >= 0)
+					{
+						chars.add(Character.valueOf((char) token));
+					}
+				}
+			}
+			fMatchedBase = itemCount;
+			
+			fClassChars = new char[chars.size()];
+			fSymbols = new int[chars.size() + 1];
+			fSymbols[0] = OTHER;
+			int index = 0;
+			for (final Character c : chars)
+			{
+				fClassChars[index] = c.charValue();
+				fSymbols[index + 1] = c.charValue();
+				index++;
+			}
+		}
+		
+		
+		/**
+		 * 
+		 * Explore all reachable states and build the automaton.
+		 * 
+		 * @param maxStates The maximum number of states.
+		 * @return The automaton, null if it needs more than the maximum number of states.
+		 * 
+		 **/
+		RuleAutomaton compile(final int maxStates)
+		{
+			final ItemSet initial = new ItemSet();
+			addChildren(initial, 0);
+			getState(initial);
+			
+			final int classCount = fSymbols.length;
+			int[] transitions = new int[16 * classCount];
+			for (int state = 0; state < fStates.size(); state++)
+			{
+				if (fStates.size() > maxStates)
+				{
+					return null;
+				}
+				
+				if (transitions.length < ((state + 1) * classCount))
+				{
+					transitions = Arrays.copyOf(transitions, transitions.length * 2);
+				}
+				
+				final ItemSet items = fStates.get(state);
+				for (int charClass = 0; charClass < classCount; charClass++)
+				{
+					transitions[(state * classCount) + charClass] = getState(step(items, fSymbols[charClass]));
+				}
+			}
+			
+			final boolean[] verdicts = new boolean[fStates.size()];
+			for (int state = 0; state < verdicts.length; state++)
+			{
+				verdicts[state] = evaluate(getMatchedNodes(fStates.get(state)), 0).booleanValue();
+			}
+			
+			return new RuleAutomaton(fClassChars, Arrays.copyOf(transitions, fStates.size() * classCount), verdicts);
+		}
+		
+		
+		/**
+		 * 
+		 * Get the number of the state for a set of items, registering it if it is new.
+		 * 
+		 * @param items The items of the state.
+		 * @return The state number.
+		 * 
+		 **/
+		private int getState(final ItemSet items)
+		{
+			final Integer existing = fStateNumbers.get(items);
+			if (existing != null)
+			{
+				return existing.intValue();
+			}
+			
+			final int state = fStates.size();
+			fStates.add(items);
+			fStateNumbers.put(items, Integer.valueOf(state));
+			return state;
+		}
+		
+		
+		/**
+		 * 
+		 * Compute the items that follow a set of items on a symbol.
+		 * 
+		 * @param items The current items.
+		 * @param symbol The symbol read, either a character or {@link RuleAutomaton#OTHER}.
+		 * @return The next items.
+		 * 
+		 **/
+		private ItemSet step(final ItemSet items, final int symbol)
+		{
+			final ItemSet next = new ItemSet();
+			for (int i = 0; i < items.size(); i++)
+			{
+				final int item = items.get(i);
+				if (item >= fMatchedBase)
+				{
+					next.add(item);
+					continue;
+				}
+				
+				final int node = getNode(item);
+				final int position = item - fItemBase[node];
+				final int[] tokens = fTokens[node];
+				if (symbol == '.')
+				{
+					if (position == tokens.length)
+					{
+						next.add(fMatchedBase + node);
+						addChildren(next, node);
+					}
+				}
+				else if (position < tokens.length)
+				{
+					final int token = tokens[position];
+					if ((token == Glob.ANY_PATH) || ((token == Glob.ANY_SEQUENCE) && (symbol != '/')))
+					{
+						addClosure(next, node, position);
+					}
+					else if (((token == Glob.ANY_CHARACTER) && (symbol != '/')) || (token == symbol))
+					{
+						addClosure(next, node, position + 1);
+					}
+				}
+			}
+			
+			return next;
+		}
+		
+		
+		/**
+		 * 
+		 * Add the initial items of all children of a node.
+		 * 
+		 * @param items The items to add to.
+		 * @param node The parent node.
+		 * 
+		 **/
+		private void addChildren(final ItemSet items, final int node)
+		{
+			for (int child = fFirstChild[node]; child < fEndChild[node]; child++)
+			{
+				addClosure(items, child, 0);
+			}
+		}
+		
+		
+		/**
+		 * 
+		 * Add an item and all items that can be reached from it without reading a character. A '*' can match the empty
+		 * sequence, so it can be skipped.
+		 * 
+		 * @param items The items to add to.
+		 * @param node The node of the item.
+		 * @param position The position in the glob of the node.
+		 * 
+		 **/
+		private void addClosure(final ItemSet items, final int node, final int position)
+		{
+			final int[] tokens = fTokens[node];
+			int current = position;
+			items.add(fItemBase[node] + current);
+			while ((current < tokens.length) && ((tokens[current] == Glob.ANY_SEQUENCE) || (tokens[current] == Glob.ANY_PATH)))
+			{
+				current++;
+				items.add(fItemBase[node] + current);
+			}
+		}
+		
+		
+		/**
+		 * 
+		 * Get the nodes that matched, if the name would end in the state with the given items.
+		 * 
+		 * @param items The items of the state.
+		 * @return For each node whether it matched.
+		 * 
+		 **/
+		private boolean[] getMatchedNodes(final ItemSet items)
+		{
+			final boolean[] matched = new boolean[fTokens.length];
+			matched[0] = true;
+			for (int i = 0; i < items.size(); i++)
+			{
+				final int item = items.get(i);
+				if (item >= fMatchedBase)
+				{
+					matched[item - fMatchedBase] = true;
+				}
+				else
+				{
+					final int node = getNode(item);
+					if ((item - fItemBase[node]) == fTokens[node].length)
+					{
+						matched[node] = true;
+					}
+				}
+			}
+			
+			return matched;
+		}
+		
+		
+		/**
+		 * 
+		 * Determine the best matching value of a node, given the nodes that matched. This mirrors the search of the
+		 * tree: the matching children with the highest score determine the value, combined with a logical OR.
+		 * 
+		 * @param matched For each node whether it matched.
+		 * @param node The node to evaluate.
+		 * @return The value, <code>null</code> if neither the node nor its children have a value.
+		 * 
+		 **/
+		private Boolean evaluate(final boolean[] matched, final int node)
+		{
+			int bestScore = Integer.MIN_VALUE;
+			Boolean bestResult = null;
+			for (int child = fFirstChild[node]; child < fEndChild[node]; child++)
+			{
+				if (!matched[child])
+				{
+					continue;
+				}
+				
+				final Boolean result = evaluate(matched, child);
+				if ((result == null) || (fScores[child] < bestScore))
+				{
+					continue;
+				}
+				else if (fScores[child] == bestScore)
+				{
+					bestResult = bestResult || result;
+				}
+				else
+				{
+					bestScore = fScores[child];
+					bestResult = result;
+				}
+			}
+			
+			return (bestResult != null) ? bestResult : fIncluded[node];
+		}
+		
+		
+		/**
+		 * 
+		 * Get the node an item that is not a matched node item belongs to.
+		 * 
+		 * @param item The item.
+		 * @return The node.
+		 * 
+		 **/
+		private int getNode(final int item)
+		{
+			final int index = Arrays.binarySearch(fItemBase, item);
+			return (index >= 0) ? index : (-index - 2);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * A sorted set of items, used as the identity of a state.
+	 * 
+	 **/
+	private static final class ItemSet
+	{
+		private int[] fItems = new int[8];
+		private int fSize;
+		
+		
+		/**
+		 * 
+		 * Add an item to the set.
+		 * 
+		 * @param item The item to add.
+		 * 
+		 **/
+		void add(final int item)
+		{
+			int index = Arrays.binarySearch(fItems, 0, fSize, item);
+			if (index >= 0)
+			{
+				return;
+			}
+			
+			index = -index - 1;
+			if (fSize == fItems.length)
+			{
+				fItems = Arrays.copyOf(fItems, fSize * 2);
+			}
+			System.arraycopy(fItems, index, fItems, index + 1, fSize - index);
+			fItems[index] = item;
+			fSize++;
+		}
+		
+		
+		/**
+		 * @param index The index of the item.
+		 * @return The item at the index.
+		 **/
+		int get(final int index)
+		{
+			return fItems[index];
+		}
+		
+		
+		/**
+		 * @return The number of items.
+		 **/
+		int size()
+		{
+			return fSize;
+		}
+		
+		
+		@Override
+		public boolean equals(final Object other)
+		{
+			if (!(other instanceof ItemSet))
+			{
+				return false;
+			}
+			
+			final ItemSet items = (ItemSet) other;
+			if (fSize != items.fSize)
+			{
+				return false;
+			}
+			
+			for (int i = 0; i < fSize; i++)
+			{
+				if (fItems[i] != items.fItems[i])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		
+		@Override
+		public int hashCode()
+		{
+			int hash = 1;
+			for (int i = 0; i < fSize; i++)
+			{
+				hash = (31 * hash) + fItems[i];
+			}
+			return hash;
+		}
+	}
+}
\ No newline at end of file
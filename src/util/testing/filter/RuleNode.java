@@ -4,9 +4,14 @@
 
 package util.testing.filter;
 
-import java.io.File;
-import java.nio.file.FileSystems;
-import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeMap;
 
 /**
@@ -25,9 +30,32 @@ public class RuleNode
 	private Boolean fIncluded;
 	
 	/**
-	 * A list of subparts. This are the children in the tree.
+	 * The compiled glob of the subpart this node represents. Only subparts that contain wildcards have a glob, the
+	 * root node does not represent a subpart.
+	 **/
+	private final Glob fGlob;
+	
+	/**
+	 * The number of characters in the subpart that are not wildcards.
+	 **/
+	private final int fScore;
+	
+	/**
+	 * The subparts without wildcards. These children are found by an exact lookup.
 	 */
-	private final TreeMap<String, RuleNode> fSubParts = new TreeMap<String, RuleNode>();
+	private final LiteralIndex fLiteralParts = new LiteralIndex();
+	
+	/**
+	 * The subparts with wildcards, sorted. These children must be matched one by one. Most nodes of a large tree are
+	 * leaves, so the map is only created when the first child with wildcards is added.
+	 */
+	private Map<String, RuleNode> fWildcardParts = Collections.emptyMap();
+	
+	/**
+	 * The subparts with wildcards, ordered by descending score. A search can stop as soon as the remaining subparts
+	 * cannot improve the best match found.
+	 */
+	private final List<RuleNode> fWildcardsByScore = new ArrayList<RuleNode>();
 	
 	
 	/**
@@ -37,7 +65,22 @@ public class RuleNode
 	 **/
 	public RuleNode()
 	{
-		fIncluded = Boolean.TRUE;
+		this(true);
+	}
+	
+	
+	/**
+	 * 
+	 * Constructor. Creates the root element of a tree with a given value for the expressions that match no rule.
+	 * 
+	 * @param included The value of the expressions that match no rule.
+	 * 
+	 **/
+	RuleNode(final boolean included)
+	{
+		fIncluded = Boolean.valueOf(included);
+		fGlob = null;
+		fScore = 0;
 	}
 	
 	
@@ -45,12 +88,39 @@ public class RuleNode
 	 * 
 	 * Constructor. Create a new node with a specified value.
 	 * 
+	 * @param subPart The subpart of the expression this node represents.
 	 * @param included Whether the rule is included or excluding tests.
 	 * 
 	 **/
-	private RuleNode(final Boolean included)
+	private RuleNode(final String subPart, final Boolean included)
 	{
 		fIncluded = included;
+		fGlob = Glob.isWildcard(subPart) ? new Glob(subPart) : null;
+		fScore = getScore(subPart);
+	}
+	
+	
+	/**
+	 * 
+	 * Compute the score of a subpart.
+	 * 
+	 * @param subPart The subpart.
+	 * @return The number of characters in the subpart that are not wildcards.
+	 * 
+	 **/
+	private static int getScore(final String subPart)
+	{
+		int score = subPart.length();
+		for (int i = 0; i < subPart.length(); i++)
+		{
+			final char c = subPart.charAt(i);
+			if ((c == '*') || (c == '?'))
+			{
+				score--;
+			}
+		}
+		
+		return score;
 	}
 	
 	
@@ -64,35 +134,65 @@ public class RuleNode
 	 * 
 	 **/
 	public void addMatchRule(final String expression, final boolean included)
+	{
+		addMatchRule(expression, included, false);
+	}
+	
+	
+	/**
+	 * 
+	 * Add a rule to the tree. If a rule with the same expression already exists, its value is replaced, as a later
+	 * line for the same key does in a properties file.
+	 * 
+	 * @param expression The expression of the rule.
+	 * @param included A boolean specifying the value of the expression.
+	 * 
+	 **/
+	void putMatchRule(final String expression, final boolean included)
+	{
+		addMatchRule(expression, included, true);
+	}
+	
+	
+	/**
+	 * 
+	 * Add a rule to the tree.
+	 * 
+	 * @param expression The expression of the rule.
+	 * @param included A boolean specifying the value of the expression.
+	 * @param replace True if the value of an existing rule with the same expression is replaced, false if the values
+	 * are merged with a logical or.
+	 * 
+	 **/
+	private void addMatchRule(final String expression, final boolean included, final boolean replace)
 	{
 		assert ((expression != null) && !expression.isEmpty());
 		assert expression.matches("([a-zA-z0-9]|\\*|\\?|\\.|\\{|\\}|\\[|\\]|\\$)+") : "The test rule contains an invalid character.";
 		
 		final String[] parts = expression.split("\\.", 2);
-		if (fSubParts.containsKey(parts[0]))
+		final RuleNode subPart = getSubPart(parts[0]);
+		if (subPart != null)
 		{
-			final RuleNode subPart = fSubParts.get(parts[0]);
 			if (parts.length == 1)
 			{
-				subPart.fIncluded = (subPart.fIncluded != null) ? (subPart.fIncluded.booleanValue() || included) : included;
+				subPart.fIncluded = (!replace && (subPart.fIncluded != null)) ? (subPart.fIncluded.booleanValue() || included) : included;
 			}
 			else
 			{
-				subPart.addMatchRule(parts[1], included);
+				subPart.addMatchRule(parts[1], included, replace);
 			}
 		}
 		else
 		{
 			if (parts.length == 1)
 			{
-				final RuleNode newRule = new RuleNode(included);
-				fSubParts.put(parts[0], newRule);
+				putSubPart(parts[0], new RuleNode(parts[0], included));
 			}
 			else
 			{
-				final RuleNode newRule = new RuleNode(null);
-				fSubParts.put(parts[0], newRule);
-				newRule.addMatchRule(parts[1], included);
+				final RuleNode newRule = new RuleNode(parts[0], null);
+				putSubPart(parts[0], newRule);
+				newRule.addMatchRule(parts[1], included, replace);
 			}
 		}
 	}
@@ -106,74 +206,549 @@ public class RuleNode
 	 * @return True or false depending on the best matching rule.
 	 * 
 	 **/
-	public boolean getBestMatchingValue(final String expression)
+	public boolean getBestMatchingValue(final CharSequence expression)
 	{
-		assert ((expression != null) && !expression.isEmpty());
+		assert ((expression != null) && (expression.length() > 0));
+		
+		return findBestMatchingValue(expression, 0).booleanValue();
+	}
+	
+	
+	/**
+	 * 
+	 * Get a cursor positioned after a prefix of expressions, for example the name of a test class. The parts of the
+	 * prefix are matched once, the cursor can then be used to match the remainder of many expressions that share the
+	 * prefix, such as the names of the test methods.
+	 * 
+	 * @param prefix The prefix of the expressions, without the trailing separator.
+	 * @return A cursor that matches expressions of the form 'prefix.remainder'.
+	 * 
+	 **/
+	public Cursor getCursor(final CharSequence prefix)
+	{
+		assert ((prefix != null) && (prefix.length() > 0));
 		
-		return findBestMatchingValue(expression).booleanValue();
+		return new Cursor(matchPrefix(prefix, 0, prefix.length()));
 	}
 	
 	
 	/**
 	 * 
-	 * Get the best matching value for the expression.
+	 * Get the best matching values for a collection of tests. The prefix of an expression, the part before the last
+	 * separator that precedes the parameters of a parameterized test, is matched once with a {@link Cursor} for all
+	 * consecutive expressions with the same prefix. Tests are usually listed class by class, so only the method names
+	 * are matched for most of them. The expressions are compared in place, no strings are created for their prefixes.
+	 * 
+	 * @param expressions The expressions that identify the tests, preferably sorted or grouped by their prefix.
+	 * @return A set in which the bit at the position of an expression, in the iteration order of the collection, is
+	 * set if the test should run.
+	 * 
+	 **/
+	public BitSet getBestMatchingValues(final Collection<? extends CharSequence> expressions)
+	{
+		assert (expressions != null);
+		
+		final BitSet values = new BitSet(expressions.size());
+		CharSequence previous = null;
+		int previousSeparator = 0;
+		Candidate cursor = null;
+		int index = 0;
+		for (final CharSequence expression : expressions)
+		{
+			assert ((expression != null) && (expression.length() > 0));
+			
+			// The parameters of a parameterized test may contain separators, they are not part of the prefix.
+			int separator = 0;
+			for (int i = 0; (i < expression.length()) && (expression.charAt(i) != '['); i++)
+			{
+				if (expression.charAt(i) == '.')
+				{
+					separator = i;
+				}
+			}
+			
+			final Boolean value;
+			if ((separator <= 0) || (separator == (expression.length() - 1)))
+			{
+				value = findBestMatchingValue(expression, 0);
+			}
+			else
+			{
+				if ((cursor == null) || (separator != previousSeparator) || !regionMatches(expression, previous, separator))
+				{
+					cursor = matchPrefix(expression, 0, separator);
+					previous = expression;
+					previousSeparator = separator;
+				}
+				value = cursor.getValue(expression, separator + 1);
+			}
+			
+			values.set(index++, value.booleanValue());
+		}
+		
+		return values;
+	}
+	
+	
+	/**
+	 * 
+	 * Determine if two expressions start with the same characters.
+	 * 
+	 * @param a The first expression.
+	 * @param b The second expression.
+	 * @param length The number of characters to compare, no more than the length of either expression.
+	 * @return True if the first characters are equal.
+	 * 
+	 **/
+	private static boolean regionMatches(final CharSequence a, final CharSequence b, final int length)
+	{
+		// Names in the same package differ near the end, so compare from the end.
+		for (int i = length - 1; i >= 0; i--)
+		{
+			if (a.charAt(i) != b.charAt(i))
+			{
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
+	
+	/**
+	 * 
+	 * Compile the tree into a deterministic automaton that gives the same verdicts as
+	 * {@link #getBestMatchingValue(CharSequence)}, but classifies a test in a single scan over its name.
+	 * 
+	 * @return The compiled automaton.
+	 * 
+	 **/
+	public RuleAutomaton compile()
+	{
+		return freeze().compile();
+	}
+	
+	
+	/**
+	 * 
+	 * Take an immutable snapshot of the tree. The snapshot gives the same verdicts as
+	 * {@link #getBestMatchingValue(CharSequence)} and can be shared between threads without locking. Changes made to
+	 * the tree afterwards are not reflected in the snapshot.
+	 * 
+	 * @return The snapshot.
+	 * 
+	 **/
+	public FrozenRuleTree freeze()
+	{
+		// Number the nodes breadth first, so the children of each node are numbered consecutively.
+		final List<RuleNode> nodes = new ArrayList<RuleNode>();
+		final List<String> subParts = new ArrayList<String>();
+		nodes.add(this);
+		subParts.add(null);
+		
+		final int[] firstChild = new int[countNodes()];
+		final int[] firstWildcard = new int[firstChild.length];
+		final int[] endChild = new int[firstChild.length];
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			firstChild[i] = nodes.size();
+			final LiteralIndex literalParts = nodes.get(i).fLiteralParts;
+			final String[] literalKeys = new String[literalParts.size()];
+			for (int entry = 0; entry < literalKeys.length; entry++)
+			{
+				literalKeys[entry] = literalParts.getKey(entry);
+			}
+			
+			// The literal children are sorted, so the snapshot can find them with a binary search.
+			Arrays.sort(literalKeys);
+			for (final String key : literalKeys)
+			{
+				subParts.add(key);
+				nodes.add(literalParts.get(key, 0, key.length()));
+			}
+			
+			// The children with wildcards are ordered by descending score, so the snapshot can stop searching early.
+			firstWildcard[i] = nodes.size();
+			final List<Map.Entry<String, RuleNode>> wildcardParts = new ArrayList<Map.Entry<String, RuleNode>>(nodes.get(i).fWildcardParts.entrySet());
+			Collections.sort(wildcardParts, new Comparator<Map.Entry<String, RuleNode>>()
+			{
+				@Override
+				public int compare(final Map.Entry<String, RuleNode> a, final Map.Entry<String, RuleNode> b)
+				{
+					return b.getValue().fScore - a.getValue().fScore;
+				}
+			});
+			for (final Map.Entry<String, RuleNode> entry : wildcardParts)
+			{
+				subParts.add(entry.getKey());
+				nodes.add(entry.getValue());
+			}
+			endChild[i] = nodes.size();
+		}
+		
+		final int[] scores = new int[nodes.size()];
+		final Boolean[] included = new Boolean[nodes.size()];
+		for (int i = 0; i < nodes.size(); i++)
+		{
+			scores[i] = nodes.get(i).fScore;
+			included[i] = nodes.get(i).fIncluded;
+		}
+		
+		return new FrozenRuleTree(subParts.toArray(new String[nodes.size()]), scores, included, firstChild, firstWildcard, endChild);
+	}
+	
+	
+	/**
+	 * @return The number of nodes in the subtree of this node, including this node.
+	 **/
+	private int countNodes()
+	{
+		int count = 1;
+		for (int entry = 0; entry < fLiteralParts.size(); entry++)
+		{
+			count += fLiteralParts.getNode(entry).countNodes();
+		}
+		for (final RuleNode subPart : fWildcardParts.values())
+		{
+			count += subPart.countNodes();
+		}
+		return count;
+	}
+	
+	
+	/**
+	 * 
+	 * Get the child node for a subpart of a rule.
+	 * 
+	 * @param key The subpart of the rule.
+	 * @return The child node, null if there is none.
+	 * 
+	 **/
+	private RuleNode getSubPart(final String key)
+	{
+		return Glob.isWildcard(key) ? fWildcardParts.get(key) : fLiteralParts.get(key, 0, key.length());
+	}
+	
+	
+	/**
+	 * 
+	 * Add a child node for a subpart of a rule.
+	 * 
+	 * @param key The subpart of the rule.
+	 * @param subPart The child node.
+	 * 
+	 **/
+	private void putSubPart(final String key, final RuleNode subPart)
+	{
+		if (Glob.isWildcard(key))
+		{
+			if (fWildcardParts.isEmpty())
+			{
+				fWildcardParts = new TreeMap<String, RuleNode>();
+			}
+			fWildcardParts.put(key, subPart);
+			
+			// Insert after the subparts with the same score, keeping the order of insertion among equal scores.
+			int index = fWildcardsByScore.size();
+			while ((index > 0) && (fWildcardsByScore.get(index - 1).fScore < subPart.fScore))
+			{
+				index--;
+			}
+			fWildcardsByScore.add(index, subPart);
+		}
+		else
+		{
+			fLiteralParts.put(key, subPart);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Get the best matching value for the expression, starting from a given part. The expression is not split, the
+	 * parts are matched as ranges of characters, so no objects are created while matching.
 	 * 
 	 * @param expression The expression that identifies the test.
+	 * @param start The start of the part of the expression that should be matched by the children of this node.
 	 * @return True if the test should run, false if the test should not run, null if the expression did not match
 	 * anything.
 	 * 
 	 **/
-	private Boolean findBestMatchingValue(final String expression)
+	private Boolean findBestMatchingValue(final CharSequence expression, final int start)
 	{
-		assert ((expression != null) && !expression.isEmpty());
+		int end = start;
+		while ((end < expression.length()) && (expression.charAt(end) != '.'))
+		{
+			end++;
+		}
 		
-		final String[] parts = expression.split("\\.", 2);
 		int bestScore = Integer.MIN_VALUE;
 		Boolean bestResult = null;
 		
-		for (final String key : fSubParts.keySet())
+		// A literal subpart can only match an identical part, so it is found with a single lookup.
+		final RuleNode literalPart = fLiteralParts.get(expression, start, end);
+		if (literalPart != null)
 		{
-			final String globKey = key.replace("[", "\\[").replace("]", "\\]").replace("{", "\\{").replace("}", "\\}");
-			final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + globKey);
-			if (matcher.matches((new File(parts[0])).toPath()))
+			final Boolean result = literalPart.getSubPartValue(expression, end);
+			if (result != null)
 			{
-				// Only determine the result if this is the best option so far.
-				final int score = key.replaceAll("\\*|\\?", "").length();
-				if (score < bestScore)
+				bestScore = literalPart.fScore;
+				bestResult = result;
+			}
+		}
+		
+		for (int i = 0; i < fWildcardsByScore.size(); i++)
+		{
+			// The remaining subparts score lower, or can only tie with a result that is already true.
+			final RuleNode subPart = fWildcardsByScore.get(i);
+			final int score = subPart.fScore;
+			if ((score < bestScore) || ((score == bestScore) && bestResult.booleanValue()))
+			{
+				break;
+			}
+			
+			if (subPart.fGlob.matches(expression, start, end))
+			{
+				final Boolean result = subPart.getSubPartValue(expression, end);
+				
+				// Turns out there was no match after all.
+				if (result == null)
 				{
 					continue;
 				}
-				
-				final Boolean result;
-				if (parts.length == 1)
+				// We already had a match with the same score. Take a logical OR.
+				else if (score == bestScore)
 				{
-					result = fSubParts.get(key).fIncluded;
+					bestResult = bestResult || result;
 				}
 				else
+				// (score > bestScore)
+				{
+					bestScore = score;
+					bestResult = result;
+				}
+			}
+		}
+		
+		// If we did not find any matching child, we are the best match.
+		return bestResult != null ? bestResult : fIncluded;
+	}
+	
+	
+	/**
+	 * 
+	 * Match the part of a prefix starting at a given position against the children of this node, given that this node
+	 * matched the preceding part.
+	 * 
+	 * @param prefix The prefix of the expressions.
+	 * @param start The start of the part of the prefix that should be matched by the children of this node.
+	 * @param prefixEnd The end of the prefix, the expression may continue after it.
+	 * @return The candidate for this node.
+	 * 
+	 **/
+	private Candidate matchPrefix(final CharSequence prefix, final int start, final int prefixEnd)
+	{
+		int end = start;
+		while ((end < prefixEnd) && (prefix.charAt(end) != '.'))
+		{
+			end++;
+		}
+		
+		// Once a candidate always has a value, whatever the remainder, candidates with a lower score can never win.
+		int definiteScore = Integer.MIN_VALUE;
+		final List<Candidate> candidates = new ArrayList<Candidate>();
+		final RuleNode literalPart = fLiteralParts.get(prefix, start, end);
+		if (literalPart != null)
+		{
+			final Candidate candidate = literalPart.matchPrefixRemainder(prefix, end, prefixEnd);
+			candidates.add(candidate);
+			if (candidate.fDefinite)
+			{
+				definiteScore = literalPart.fScore;
+			}
+		}
+		
+		for (int i = 0; i < fWildcardsByScore.size(); i++)
+		{
+			final RuleNode subPart = fWildcardsByScore.get(i);
+			if (subPart.fScore < definiteScore)
+			{
+				break;
+			}
+			
+			if (subPart.fGlob.matches(prefix, start, end))
+			{
+				final Candidate candidate = subPart.matchPrefixRemainder(prefix, end, prefixEnd);
+				candidates.add(candidate);
+				if (candidate.fDefinite)
 				{
-					result = fSubParts.get(key).findBestMatchingValue(parts[1]);
+					definiteScore = Math.max(definiteScore, subPart.fScore);
+				}
+			}
+		}
+		
+		return new Candidate(this, candidates.toArray(new Candidate[candidates.size()]));
+	}
+	
+	
+	/**
+	 * 
+	 * Match the remainder of a prefix of which a part matched this node.
+	 * 
+	 * @param prefix The prefix of the expressions.
+	 * @param end The end of the part that matched this node.
+	 * @param prefixEnd The end of the prefix.
+	 * @return The candidate for this node.
+	 * 
+	 **/
+	private Candidate matchPrefixRemainder(final CharSequence prefix, final int end, final int prefixEnd)
+	{
+		return (end == prefixEnd) ? new Candidate(this, null) : matchPrefix(prefix, end + 1, prefixEnd);
+	}
+	
+	
+	/**
+	 * 
+	 * Get the value of this node for an expression of which a part matched this node.
+	 * 
+	 * @param expression The expression that identifies the test.
+	 * @param end The end of the part that matched this node.
+	 * @return The value of the best match within this node, null if there is none.
+	 * 
+	 **/
+	private Boolean getSubPartValue(final CharSequence expression, final int end)
+	{
+		return (end == expression.length()) ? fIncluded : findBestMatchingValue(expression, end + 1);
+	}
+	
+	
+	/**
+	 * 
+	 * A cursor positioned after a prefix of expressions. The cursor holds the nodes that matched the parts of the
+	 * prefix, so these parts do not have to be matched again for every expression. A cursor does not change, and
+	 * reflects the tree at the time it was created.
+	 * 
+	 **/
+	public static final class Cursor
+	{
+		/**
+		 * The candidate of the root node.
+		 **/
+		private final Candidate fRoot;
+		
+		
+		/**
+		 * 
+		 * Constructor.
+		 * 
+		 * @param root The candidate of the root node.
+		 * 
+		 **/
+		Cursor(final Candidate root)
+		{
+			fRoot = root;
+		}
+		
+		
+		/**
+		 * 
+		 * Get the best matching value for the expression 'prefix.remainder'.
+		 * 
+		 * @param remainder The part of the expression after the prefix of the cursor, without the leading separator.
+		 * @return True or false depending on the best matching rule.
+		 * 
+		 **/
+		public boolean getBestMatchingValue(final CharSequence remainder)
+		{
+			assert ((remainder != null) && (remainder.length() > 0));
+			
+			return fRoot.getValue(remainder, 0).booleanValue();
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * A node that matched the parts of a prefix up to its own level, together with its children that matched the
+	 * next part, ordered by descending score. A candidate without children matched the last part of the prefix.
+	 * 
+	 **/
+	private static final class Candidate
+	{
+		private final RuleNode fNode;
+		private final Candidate[] fChildren;
+		
+		// Whether the candidate has a value for every remainder.
+		private final boolean fDefinite;
+		
+		
+		/**
+		 * 
+		 * Constructor.
+		 * 
+		 * @param node The node that matched.
+		 * @param children The candidates of the children that matched the next part, null if the node matched the last
+		 * part of the prefix.
+		 * 
+		 **/
+		Candidate(final RuleNode node, final Candidate[] children)
+		{
+			fNode = node;
+			fChildren = children;
+			
+			boolean definite = (node.fIncluded != null);
+			for (int i = 0; (children != null) && (i < children.length); i++)
+			{
+				definite = definite || children[i].fDefinite;
+			}
+			fDefinite = definite;
+		}
+		
+		
+		/**
+		 * 
+		 * Get the value of the candidate for the remainder of an expression, with the same semantics as the search in
+		 * the tree.
+		 * 
+		 * @param expression The expression that contains the remainder.
+		 * @param start The start of the part of the expression after the prefix.
+		 * @return The value of the best match, null if there is none.
+		 * 
+		 **/
+		Boolean getValue(final CharSequence expression, final int start)
+		{
+			if (fChildren == null)
+			{
+				return fNode.findBestMatchingValue(expression, start);
+			}
+			
+			int bestScore = Integer.MIN_VALUE;
+			Boolean bestResult = null;
+			for (final Candidate child : fChildren)
+			{
+				final int score = child.fNode.fScore;
+				if ((score < bestScore) || ((score == bestScore) && bestResult.booleanValue()))
+				{
+					break;
 				}
 				
-				// Turns out there was no match after all.
+				final Boolean result = child.getValue(expression, start);
 				if (result == null)
 				{
 					continue;
 				}
-				// We already had a match with the same score. Take a logical OR.
 				else if (score == bestScore)
 				{
 					bestResult = bestResult || result;
 				}
 				else
-				// (score > bestScore)
 				{
 					bestScore = score;
 					bestResult = result;
 				}
 			}
+			
+			return bestResult != null ? bestResult : fNode.fIncluded;
 		}
-		
-		// If we did not find any matching child, we are the best match.
-		return bestResult != null ? bestResult : fIncluded;
 	}
 }
\ No newline at end of file
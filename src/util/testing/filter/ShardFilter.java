@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import org.junit.runner.Description;
+import org.junit.runner.manipulation.Filter;
+
+/**
+ * 
+ * A filter that splits the test classes into a number of shards and only runs the classes of one of them, so the tests
+ * can be divided over several machines without coordination. The shard is selected with the system property
+ * 'testfilter.shard', for example '3/16' for the third of sixteen shards.
+ * 
+ * Every class is assigned to exactly one shard. If the durations of some classes are known, the classes are assigned
+ * longest first, each to the shard with the least total duration so far, so all shards take about the same time. A
+ * class of which the duration is not known counts as the average duration. Otherwise, a class is assigned by the hash
+ * of its name. The assignment only depends on the names and the durations of the classes, so every machine must see
+ * the same classes and the same durations to compute the same assignment.
+ * 
+ * @author cvesters
+ */
+public final class ShardFilter extends Filter
+{
+	/**
+	 * The system property with the shard to run.
+	 **/
+	public static final String SHARD_PROPERTY = "testfilter.shard";
+	
+	/**
+	 * The number of the shard, starting from 1, and the number of shards.
+	 **/
+	private final int fIndex;
+	private final int fCount;
+	
+	/**
+	 * The classes of the shard.
+	 **/
+	private final Set<String> fClassNames = new HashSet<String>();
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param shard The shard, of the form 'index/count', the index starting from 1.
+	 * @param classDurations The durations of all classes to split, by their name, -1 if the duration of a class is not
+	 * known.
+	 * @throws IllegalArgumentException If the shard is not of the form 'index/count'.
+	 * 
+	 **/
+	public ShardFilter(final String shard, final Map<String, Long> classDurations)
+	{
+		final String[] parts = shard.trim().split("/");
+		try
+		{
+			if (parts.length != 2)
+			{
+				throw new NumberFormatException();
+			}
+			fIndex = Integer.parseInt(parts[0].trim());
+			fCount = Integer.parseInt(parts[1].trim());
+		}
+		catch (final NumberFormatException e)
+		{
+			throw new IllegalArgumentException("The shard '" + shard + "' is not of the form 'index/count'.");
+		}
+		if ((fCount < 1) || (fIndex < 1) || (fIndex > fCount))
+		{
+			throw new IllegalArgumentException("The shard '" + shard + "' does not exist.");
+		}
+		
+		assign(classDurations);
+	}
+	
+	
+	/**
+	 * @return The number of the shard, starting from 1.
+	 **/
+	public int getIndex()
+	{
+		return fIndex;
+	}
+	
+	
+	/**
+	 * @return The number of shards.
+	 **/
+	public int getCount()
+	{
+		return fCount;
+	}
+	
+	
+	/**
+	 * @return The names of the classes of the shard.
+	 **/
+	public Set<String> getClassNames()
+	{
+		return Collections.unmodifiableSet(fClassNames);
+	}
+	
+	
+	@Override
+	public boolean shouldRun(final Description description)
+	{
+		if (description.isTest())
+		{
+			return fClassNames.contains(description.getClassName());
+		}
+		
+		for (final Description child : description.getChildren())
+		{
+			if (shouldRun(child))
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	
+	@Override
+	public String describe()
+	{
+		return "Shard " + fIndex + "/" + fCount + ".";
+	}
+	
+	
+	/**
+	 * 
+	 * Assign the classes to the shards, and remember the classes of this shard.
+	 * 
+	 * @param classDurations The durations of all classes, by their name, -1 if the duration of a class is not known.
+	 * 
+	 **/
+	private void assign(final Map<String, Long> classDurations)
+	{
+		long knownTotal = 0;
+		int knownCount = 0;
+		for (final Long duration : classDurations.values())
+		{
+			if (duration.longValue() >= 0)
+			{
+				knownTotal += duration.longValue();
+				knownCount++;
+			}
+		}
+		
+		if (knownCount == 0)
+		{
+			for (final String className : classDurations.keySet())
+			{
+				if (((className.hashCode() & Integer.MAX_VALUE) % fCount) == (fIndex - 1))
+				{
+					fClassNames.add(className);
+				}
+			}
+			return;
+		}
+		
+		// Longest processing time first, the names break the ties so every machine gets the same order.
+		final long averageDuration = knownTotal / knownCount;
+		final List<Map.Entry<String, Long>> classes = new ArrayList<Map.Entry<String, Long>>();
+		for (final Map.Entry<String, Long> entry : classDurations.entrySet())
+		{
+			final long duration = (entry.getValue().longValue() < 0) ? averageDuration : entry.getValue().longValue();
+			classes.add(new AbstractMap.SimpleImmutableEntry<String, Long>(entry.getKey(), Long.valueOf(duration)));
+		}
+		Collections.sort(classes, new Comparator<Map.Entry<String, Long>>()
+		{
+			@Override
+			public int compare(final Map.Entry<String, Long> a, final Map.Entry<String, Long> b)
+			{
+				final int result = Long.compare(b.getValue().longValue(), a.getValue().longValue());
+				return (result != 0) ? result : a.getKey().compareTo(b.getKey());
+			}
+		});
+		
+		// The shards by their total duration, and their number, so the least loaded shard is taken first.
+		final PriorityQueue<long[]> shards = new PriorityQueue<long[]>(fCount, new Comparator<long[]>()
+		{
+			@Override
+			public int compare(final long[] a, final long[] b)
+			{
+				final int result = Long.compare(a[0], b[0]);
+				return (result != 0) ? result : Long.compare(a[1], b[1]);
+			}
+		});
+		for (int i = 0; i < fCount; i++)
+		{
+			shards.add(new long[] {0, i});
+		}
+		
+		for (final Map.Entry<String, Long> entry : classes)
+		{
+			final long[] shard = shards.poll();
+			if (shard[1] == (fIndex - 1))
+			{
+				fClassNames.add(entry.getKey());
+			}
+			shard[0] += entry.getValue().longValue();
+			shards.add(shard);
+		}
+	}
+}
\ No newline at end of file
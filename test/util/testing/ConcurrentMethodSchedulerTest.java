@@ -0,0 +1,337 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.internal.builders.AllDefaultPossibilitiesBuilder;
+import org.junit.rules.Timeout;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Result;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.junit.runners.Suite;
+import org.junit.runners.model.InitializationError;
+
+import util.testing.filter.PropertyFilter;
+
+
+
+/**
+ * 
+ * Test running the methods of a class concurrently.
+ * 
+ * @author cvesters
+ */
+public class ConcurrentMethodSchedulerTest
+{
+	@Rule
+	public Timeout globalTimeout = new Timeout(10000);
+	
+	/**
+	 * The number of concurrent methods that are running and that have finished, and the most that ran at the same time.
+	 **/
+	private static final AtomicInteger fgRunning = new AtomicInteger();
+	private static final AtomicInteger fgFinished = new AtomicInteger();
+	private static final AtomicInteger fgMaxRunning = new AtomicInteger();
+	
+	/**
+	 * The number of concurrent methods that were running and that had finished when the serial method ran.
+	 **/
+	private static volatile int fgRunningAtSerial;
+	private static volatile int fgFinishedAtSerial;
+	
+	/**
+	 * The barrier the concurrent methods wait for, null to let them sleep instead.
+	 **/
+	private static volatile CyclicBarrier fgBarrier;
+	
+	private PropertyFilter fFilter;
+	
+	/**
+	 * The value of the system property of the concurrency cap before the test.
+	 **/
+	private String fPreviousConcurrency;
+	
+	
+	/**
+	 * Set up the test.
+	 **/
+	@Before
+	public void setup()
+	{
+		fgRunning.set(0);
+		fgFinished.set(0);
+		fgMaxRunning.set(0);
+		fgRunningAtSerial = -1;
+		fgFinishedAtSerial = -1;
+		fgBarrier = null;
+		
+		final Properties properties = new Properties();
+		properties.setProperty(ConcurrentMethods.class.getName(), "included,concurrent");
+		properties.setProperty(ConcurrentMethods.class.getName() + ".serial", "included");
+		fFilter = new PropertyFilter(properties);
+		fPreviousConcurrency = System.setProperty("testfilter.concurrency", "4");
+	}
+	
+	
+	/**
+	 * Restore the concurrency cap.
+	 **/
+	@After
+	public void restoreConcurrency()
+	{
+		if (fPreviousConcurrency == null)
+		{
+			System.clearProperty("testfilter.concurrency");
+		}
+		else
+		{
+			System.setProperty("testfilter.concurrency", fPreviousConcurrency);
+		}
+	}
+	
+	
+	/**
+	 * Test that the concurrent methods run at the same time, and that the other methods run alone after them.
+	 **/
+	@Test
+	public void testConcurrentMethodsOverlap() throws InitializationError
+	{
+		fgBarrier = new CyclicBarrier(4);
+		final Result result = run(ConcurrentMethods.class);
+		assertTrue("All tests should pass, the concurrent methods wait for each other.", result.wasSuccessful());
+		assertEquals("All tests should run.", 5, result.getRunCount());
+		assertEquals("All concurrent methods should run at the same time.", 4, fgMaxRunning.get());
+		assertEquals("No concurrent method should run with the serial method.", 0, fgRunningAtSerial);
+		assertEquals("All concurrent methods should finish before the serial method.", 4, fgFinishedAtSerial);
+	}
+	
+	
+	/**
+	 * Test that no more methods run at the same time than the concurrency cap.
+	 **/
+	@Test
+	public void testConcurrencyCap() throws InitializationError
+	{
+		System.setProperty("testfilter.concurrency", "2");
+		final Result result = run(ConcurrentMethods.class);
+		assertTrue("All tests should pass.", result.wasSuccessful());
+		assertEquals("The cap should limit the methods that run at the same time.", 2, fgMaxRunning.get());
+		assertEquals("All concurrent methods should finish before the serial method.", 4, fgFinishedAtSerial);
+	}
+	
+	
+	/**
+	 * Test that the concurrent methods of the classes of a resource group together do not exceed the limit of the
+	 * group.
+	 **/
+	@Test
+	public void testGroupLimit() throws InitializationError
+	{
+		final Properties properties = new Properties();
+		properties.setProperty(GroupedMethods.class.getName(), "included,concurrent,group=methods");
+		properties.setProperty(OtherGroupedMethods.class.getName(), "included,concurrent,group=methods");
+		properties.setProperty("@group.methods", "2");
+		final ParallelPropertySuite suite = new ParallelPropertySuite(GroupedSuite.class, new AllDefaultPossibilitiesBuilder(true), new PropertyFilter(properties));
+		
+		final Result result = new JUnitCore().run(Request.runner(suite));
+		assertTrue("All tests should pass.", result.wasSuccessful());
+		assertEquals("All tests should run.", 6, result.getRunCount());
+		assertTrue("No more methods of the group should run at the same time than its limit.", fgMaxRunning.get() <= 2);
+	}
+	
+	
+	/**
+	 * Test that the classes that run in parallel share the threads of the pool, so besides the threads that run the
+	 * classes no more methods run at the same time than the concurrency cap less one.
+	 **/
+	@Test
+	public void testSharedCap() throws InitializationError
+	{
+		System.setProperty("testfilter.concurrency", "2");
+		final Properties properties = new Properties();
+		properties.setProperty(GroupedMethods.class.getName(), "included,concurrent");
+		properties.setProperty(OtherGroupedMethods.class.getName(), "included,concurrent");
+		final ParallelPropertySuite suite = new ParallelPropertySuite(GroupedSuite.class, new AllDefaultPossibilitiesBuilder(true), new PropertyFilter(properties));
+		
+		final Result result = new JUnitCore().run(Request.runner(suite));
+		assertTrue("All tests should pass.", result.wasSuccessful());
+		assertEquals("All tests should run.", 6, result.getRunCount());
+		assertTrue("The classes should share the threads of the pool.", fgMaxRunning.get() <= 3);
+	}
+	
+	
+	/**
+	 * 
+	 * Run the methods of a class with the scheduler, if the filter lists concurrent methods.
+	 * 
+	 * @param klass The class.
+	 * @return The result of the run.
+	 * @throws InitializationError If the runner could not be built.
+	 * 
+	 **/
+	private Result run(final Class<?> klass) throws InitializationError
+	{
+		final BlockJUnit4ClassRunner runner = new BlockJUnit4ClassRunner(klass);
+		ConcurrentMethodScheduler.install(runner, fFilter);
+		return new JUnitCore().run(Request.runner(runner));
+	}
+	
+	
+	/**
+	 * 
+	 * The body of a concurrent method: wait for the other methods, or sleep, and record how many ran at the same time.
+	 * 
+	 * @throws Exception If the other methods did not arrive in time.
+	 * 
+	 **/
+	static void runConcurrentMethod() throws Exception
+	{
+		final int running = fgRunning.incrementAndGet();
+		int max;
+		while ((max = fgMaxRunning.get()) < running)
+		{
+			fgMaxRunning.compareAndSet(max, running);
+		}
+		
+		try
+		{
+			final CyclicBarrier barrier = fgBarrier;
+			if (barrier != null)
+			{
+				barrier.await(5, TimeUnit.SECONDS);
+			}
+			else
+			{
+				Thread.sleep(200);
+			}
+		}
+		finally
+		{
+			fgRunning.decrementAndGet();
+			fgFinished.incrementAndGet();
+		}
+	}
+	
+	
+	/**
+	 * A class with four concurrent methods and one other method.
+	 **/
+	public static class ConcurrentMethods
+	{
+		@Test
+		public void testA() throws Exception
+		{
+			runConcurrentMethod();
+		}
+		
+		
+		@Test
+		public void testB() throws Exception
+		{
+			runConcurrentMethod();
+		}
+		
+		
+		@Test
+		public void testC() throws Exception
+		{
+			runConcurrentMethod();
+		}
+		
+		
+		@Test
+		public void testD() throws Exception
+		{
+			runConcurrentMethod();
+		}
+		
+		
+		@Test
+		public void serial()
+		{
+			fgRunningAtSerial = fgRunning.get();
+			fgFinishedAtSerial = fgFinished.get();
+		}
+	}
+	
+	
+	/**
+	 * A class in a resource group with three concurrent methods.
+	 **/
+	public static class GroupedMethods
+	{
+		@Test
+		public void testA() throws Exception
+		{
+			runConcurrentMethod();
+		}
+		
+		
+		@Test
+		public void testB() throws Exception
+		{
+			runConcurrentMethod();
+		}
+		
+		
+		@Test
+		public void testC() throws Exception
+		{
+			runConcurrentMethod();
+		}
+	}
+	
+	
+	/**
+	 * Another class in the same resource group with three concurrent methods.
+	 **/
+	public static class OtherGroupedMethods
+	{
+		@Test
+		public void testA() throws Exception
+		{
+			runConcurrentMethod();
+		}
+		
+		
+		@Test
+		public void testB() throws Exception
+		{
+			runConcurrentMethod();
+		}
+		
+		
+		@Test
+		public void testC() throws Exception
+		{
+			runConcurrentMethod();
+		}
+	}
+	
+	
+	/**
+	 * A suite of the classes of the resource group.
+	 **/
+	@Suite.SuiteClasses
+	({
+		GroupedMethods.class,
+		OtherGroupedMethods.class
+	})
+	public static class GroupedSuite
+	{
+	}
+}
\ No newline at end of file
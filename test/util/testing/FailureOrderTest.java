@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import org.junit.runner.Description;
+import org.junit.runner.Runner;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.junit.runners.model.InitializationError;
+
+
+
+/**
+ * 
+ * Test running the children that failed most recently first.
+ * 
+ * @author cvesters
+ */
+public class FailureOrderTest
+{
+	@Rule
+	public Timeout globalTimeout = new Timeout(1000);
+	
+	@Rule
+	public TemporaryFolder fFolder = new TemporaryFolder();
+	
+	/**
+	 * The history of two runs: a test of Old failed in the first, a test of Recent in the second.
+	 **/
+	private DurationHistory fHistory;
+	
+	
+	/**
+	 * Record the history of the runs.
+	 **/
+	@Before
+	public void setup() throws IOException
+	{
+		final Path file = fFolder.getRoot().toPath().resolve("testfilter.history");
+		final Map<String, Long> durations = new HashMap<String, Long>();
+		durations.put(Quiet.class.getName(), Long.valueOf(5000));
+		durations.put(Quiet.class.getName() + ".test", Long.valueOf(5000));
+		durations.put(Old.class.getName(), Long.valueOf(10));
+		durations.put(Old.class.getName() + ".test", Long.valueOf(10));
+		durations.put(Recent.class.getName(), Long.valueOf(400));
+		durations.put(Recent.class.getName() + ".testA", Long.valueOf(100));
+		durations.put(Recent.class.getName() + ".testB", Long.valueOf(10));
+		durations.put(Recent.class.getName() + ".testC", Long.valueOf(300));
+		DurationHistory.merge(file, durations, Collections.singleton(Old.class.getName() + ".test"));
+		DurationHistory.merge(file, durations, Collections.singleton(Recent.class.getName() + ".testB"));
+		fHistory = DurationHistory.read(file);
+	}
+	
+	
+	/**
+	 * Test that the failures of the runs are read back, the most recent in the highest bit.
+	 **/
+	@Test
+	public void testFailures()
+	{
+		assertEquals("The failure of the last run should be in the highest bit.", 0x80, fHistory.getFailures(Recent.class.getName() + ".testB"));
+		assertEquals("The failure of the run before should be in the next bit.", 0x40, fHistory.getFailures(Old.class.getName() + ".test"));
+		assertEquals("A test that passed should have no failures.", 0, fHistory.getFailures(Quiet.class.getName() + ".test"));
+	}
+	
+	
+	/**
+	 * Test that the class that failed most recently runs first, and that the slow class that did not fail runs last.
+	 **/
+	@Test
+	public void testRunnerOrder() throws InitializationError
+	{
+		final List<Runner> runners = new ArrayList<Runner>();
+		runners.add(new BlockJUnit4ClassRunner(Quiet.class));
+		runners.add(new BlockJUnit4ClassRunner(Old.class));
+		runners.add(new BlockJUnit4ClassRunner(Recent.class));
+		PropertySuite.sortByFailures(runners, fHistory);
+		
+		final List<String> classes = new ArrayList<String>();
+		for (final Runner runner : runners)
+		{
+			classes.add(runner.getDescription().getClassName());
+		}
+		assertEquals("The classes should run by their most recent failure.", Arrays.asList(Recent.class.getName(), Old.class.getName(), Quiet.class.getName()), classes);
+	}
+	
+	
+	/**
+	 * Test that the method that failed runs first, then the others by descending duration, and the new method last.
+	 **/
+	@Test
+	public void testMethodOrder() throws InitializationError
+	{
+		final List<Runner> runners = new ArrayList<Runner>();
+		runners.add(new BlockJUnit4ClassRunner(Recent.class));
+		PropertySuite.sortByFailures(runners, fHistory);
+		
+		final List<String> methods = new ArrayList<String>();
+		for (final Description child : runners.get(0).getDescription().getChildren())
+		{
+			methods.add(child.getMethodName());
+		}
+		assertEquals("The methods should run by their failures and then by their duration.", Arrays.asList("testB", "testC", "testA", "testD"), methods);
+	}
+	
+	
+	/**
+	 * A slow class that did not fail.
+	 **/
+	public static class Quiet
+	{
+		@Test
+		public void test()
+		{
+		}
+	}
+	
+	
+	/**
+	 * A class of which a test failed in the run before the last.
+	 **/
+	public static class Old
+	{
+		@Test
+		public void test()
+		{
+		}
+	}
+	
+	
+	/**
+	 * A class of which a test failed in the last run, and with a new test.
+	 **/
+	public static class Recent
+	{
+		@Test
+		public void testA()
+		{
+		}
+		
+		
+		@Test
+		public void testB()
+		{
+		}
+		
+		
+		@Test
+		public void testC()
+		{
+		}
+		
+		
+		@Test
+		public void testD()
+		{
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+import org.junit.runner.Result;
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+import util.testing.filter.FailedTests;
+
+
+
+/**
+ * 
+ * Test running the shards of a suite in child JVMs.
+ * 
+ * @author cvesters
+ */
+public class ForkedLauncherTest
+{
+	@Rule
+	public Timeout globalTimeout = new Timeout(60000);
+	
+	@Rule
+	public TemporaryFolder fFolder = new TemporaryFolder();
+	
+	/**
+	 * The values of the system properties of the history and the failed tests before the test.
+	 **/
+	private String fPreviousHistory;
+	private String fPreviousFailures;
+	
+	
+	/**
+	 * Let the launcher and its children write the history and the failed tests in the temporary folder.
+	 **/
+	@Before
+	public void setup()
+	{
+		fPreviousHistory = System.setProperty(DurationHistory.HISTORY_PROPERTY, fFolder.getRoot().toPath().resolve("testfilter.history").toString());
+		fPreviousFailures = System.setProperty(FailedTests.FILE_PROPERTY, fFolder.getRoot().toPath().resolve("testfilter.failures").toString());
+	}
+	
+	
+	/**
+	 * Restore the system properties.
+	 **/
+	@After
+	public void restoreProperties()
+	{
+		restore(DurationHistory.HISTORY_PROPERTY, fPreviousHistory);
+		restore(FailedTests.FILE_PROPERTY, fPreviousFailures);
+	}
+	
+	
+	/**
+	 * Test that the results of two shards are merged into one result, in which every test ran once.
+	 **/
+	@Test
+	public void testMergedResult() throws IOException, InterruptedException
+	{
+		// The launcher reports the run, with the failure on purpose, on the standard output, which is kept out of the
+		// report of these tests.
+		final PrintStream out = System.out;
+		final Result result;
+		try
+		{
+			System.setOut(new PrintStream(new ByteArrayOutputStream(), true));
+			result = ForkedLauncher.run(2, ForkedSuite.class);
+		}
+		finally
+		{
+			System.setOut(out);
+		}
+		assertEquals("Every test should run once, in one of the shards.", 4, result.getRunCount());
+		assertEquals("The failure of the child should be reported.", 1, result.getFailureCount());
+		assertEquals("The failure should be that of the failing test.", Failing.class.getName(), result.getFailures().get(0).getDescription().getClassName());
+		assertTrue("The failure should carry the message of the child.", result.getFailures().get(0).getMessage().contains("The test fails on purpose."));
+		assertEquals("The ignored test should be reported.", 1, result.getIgnoreCount());
+		
+		final Path failures = FailedTests.getFile();
+		assertTrue("The failed tests should be written.", Files.exists(failures));
+		final Set<String> failed = FailedTests.read(failures);
+		assertEquals("The failed test should be written.", 1, failed.size());
+		assertTrue("The failed test should be written.", failed.contains(Failing.class.getName() + ".test"));
+		assertTrue("The durations should be merged into the history.", DurationHistory.read(DurationHistory.getFile()).getDuration(Passing.class.getName() + ".testFirst") >= 0);
+	}
+	
+	
+	/**
+	 * Test that the children run with the options of the JVM of the launcher, such as '-ea'.
+	 **/
+	@Test
+	public void testJvmOptions() throws IOException, InterruptedException
+	{
+		boolean assertions = false;
+		assert assertions = true;
+		final String previous = System.setProperty(AssertionStatus.PROPERTY, Boolean.toString(assertions));
+		final PrintStream out = System.out;
+		final Result result;
+		try
+		{
+			System.setOut(new PrintStream(new ByteArrayOutputStream(), true));
+			result = ForkedLauncher.run(1, AssertionStatus.class);
+		}
+		finally
+		{
+			System.setOut(out);
+			restore(AssertionStatus.PROPERTY, previous);
+		}
+		assertEquals("The test of the child should run.", 1, result.getRunCount());
+		assertTrue("The child should enable the assertions like the launcher.", result.wasSuccessful());
+	}
+	
+	
+	/**
+	 * 
+	 * Restore a system property.
+	 * 
+	 * @param key The key of the system property.
+	 * @param value The value before the test, null if it was not set.
+	 * 
+	 **/
+	private static void restore(final String key, final String value)
+	{
+		if (value == null)
+		{
+			System.clearProperty(key);
+		}
+		else
+		{
+			System.setProperty(key, value);
+		}
+	}
+	
+	
+	/**
+	 * A class with two tests that pass.
+	 **/
+	public static class Passing
+	{
+		@Test
+		public void testFirst()
+		{
+		}
+		
+		
+		@Test
+		public void testSecond()
+		{
+		}
+	}
+	
+	
+	/**
+	 * A class with a test that fails.
+	 **/
+	public static class Failing
+	{
+		@Test
+		public void test()
+		{
+			fail("The test fails on purpose.");
+		}
+	}
+	
+	
+	/**
+	 * A class with a test that passes and a test that is ignored.
+	 **/
+	public static class PartlyIgnored
+	{
+		@Test
+		public void test()
+		{
+		}
+		
+		
+		@Ignore
+		@Test
+		public void testIgnored()
+		{
+		}
+	}
+	
+	
+	/**
+	 * A class with a test that checks that the assertions are enabled in the child if they are in the launcher.
+	 **/
+	public static class AssertionStatus
+	{
+		/**
+		 * The system property with the assertion status of the launcher, passed on to the children.
+		 **/
+		private static final String PROPERTY = "testfilter.test.assertions";
+		
+		
+		@Test
+		public void test()
+		{
+			boolean assertions = false;
+			assert assertions = true;
+			assertEquals("The assertions should be enabled as in the launcher.", Boolean.getBoolean(PROPERTY), assertions);
+		}
+	}
+	
+	
+	/**
+	 * A suite of the classes, divided over the shards.
+	 **/
+	@RunWith(Suite.class)
+	@Suite.SuiteClasses
+	({
+		Passing.class,
+		Failing.class,
+		PartlyIgnored.class
+	})
+	public static class ForkedSuite
+	{
+	}
+}
\ No newline at end of file
@@ -4,27 +4,61 @@
 
 package util.testing.filter;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
 
+import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import org.junit.ClassRule;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
+import org.junit.runner.Description;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 import org.junit.runners.Suite;
 
 import util.testing.PropertySuite;
+import util.testing.filter.RuleNodeTest.TestBatchClassification;
+import util.testing.filter.RuleNodeTest.TestBudget;
+import util.testing.filter.RuleNodeTest.TestClassPruning;
 import util.testing.filter.RuleNodeTest.TestCollidingExpressions;
+import util.testing.filter.RuleNodeTest.TestCompiledAutomaton;
+import util.testing.filter.RuleNodeTest.TestCursor;
+import util.testing.filter.RuleNodeTest.TestDescriptionWalk;
+import util.testing.filter.RuleNodeTest.TestGlobBacktracking;
 import util.testing.filter.RuleNodeTest.TestGlobRegex;
 import util.testing.filter.RuleNodeTest.TestHierarchicalExpressions;
 import util.testing.filter.RuleNodeTest.TestInvalidExpressions;
+import util.testing.filter.RuleNodeTest.TestRerun;
+import util.testing.filter.RuleNodeTest.TestRuleOptions;
+import util.testing.filter.RuleNodeTest.TestRuleReader;
+import util.testing.filter.RuleNodeTest.TestSharding;
+import util.testing.filter.RuleNodeTest.TestSharedFilter;
 import util.testing.filter.RuleNodeTest.TestSingleExpression;
 
 
@@ -40,9 +74,21 @@ import util.testing.filter.RuleNodeTest.TestSingleExpression;
 ({
 	TestSingleExpression.class,
 	TestGlobRegex.class,
+	TestGlobBacktracking.class,
 	TestHierarchicalExpressions.class,
 	TestCollidingExpressions.class,
-	TestInvalidExpressions.class
+	TestInvalidExpressions.class,
+	TestCompiledAutomaton.class,
+	TestCursor.class,
+	TestBatchClassification.class,
+	TestRuleReader.class,
+	TestSharedFilter.class,
+	TestClassPruning.class,
+	TestDescriptionWalk.class,
+	TestRuleOptions.class,
+	TestSharding.class,
+	TestRerun.class,
+	TestBudget.class
 })
 public class RuleNodeTest
 {
@@ -233,6 +279,53 @@ public class RuleNodeTest
 			fNode.addMatchRule("*.TestA", false);
 			assertTrue("The expression should not match '*.TestA' and be included.", fNode.getBestMatchingValue(fTestCase));
 		}
+		
+		
+		/**
+		 * Test that a '*' wildcard does not match a '/', while a sequence of '*' does.
+		 **/
+		@Test
+		public void testAsterixSequenceMatchesSlash()
+		{
+			fNode.addMatchRule("unit.Test*", false);
+			assertTrue("The expression should not match 'unit.Test*' and be included.", fNode.getBestMatchingValue("unit.Test/A"));
+			fNode.addMatchRule("unit.T**A", false);
+			assertFalse("The expression should match 'unit.T**A' and be excluded.", fNode.getBestMatchingValue("unit.Test/A"));
+		}
+	}
+	
+	
+	/**
+	 * Tests that globs with many wildcards are matched without backtracking. Backtracking would take far longer than the
+	 * timeout, which leaves room for a cold JVM.
+	 **/
+	public static class TestGlobBacktracking
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(1000);
+		
+		
+		/**
+		 * Test using a glob with many wildcards, which must be matched without backtracking.
+		 **/
+		@Test
+		public void testManyWildcards()
+		{
+			final StringBuilder rule = new StringBuilder("unit.");
+			final StringBuilder expression = new StringBuilder("unit.");
+			for (int i = 0; i < 40; i++)
+			{
+				rule.append("*a");
+				expression.append("aa");
+			}
+			rule.append("b");
+			
+			final RuleNode node = new RuleNode();
+			node.addMatchRule(rule.toString(), false);
+			assertTrue("The expression should not match the rule and be included.", node.getBestMatchingValue(expression.toString()));
+			node.addMatchRule(expression.toString(), false);
+			assertFalse("The expression should match itself and be excluded.", node.getBestMatchingValue(expression.toString()));
+		}
 	}
 	
 	
@@ -466,4 +559,816 @@ public class RuleNodeTest
 			fNode.getBestMatchingValue("");
 		}
 	}
+	
+	
+	/**
+	 * Test that the compiled automaton and the frozen snapshot give the same verdicts as the tree.
+	 **/
+	@RunWith(Parameterized.class)
+	public static class TestCompiledAutomaton
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(10);
+		
+		
+		@Parameters(name = "{0}")
+		public static Collection<Object[]> data()
+		{
+			return Arrays.asList(new Object[][]
+				{
+					{"UnitTests"},
+					{"unit"},
+					{"unit.TestA"},
+					{"unit.TestB"},
+					{"unit.TestA.test"},
+					{"unit.OtherTest"},
+					{"unit.Tests.test[abc]"},
+					{"unit.Tests.test{abs}"},
+					{"other.Test"},
+					{"other.obsolete"},
+					{"other.obsolete.test"},
+					{"com.id.unit.TestA"},
+					{"com.id.unit.TestAB"},
+					{"com.id.x.TestAB"}
+				});
+		}
+		
+		private static final RuleNode fgNode = new RuleNode();
+		private static RuleAutomaton fgAutomaton;
+		private static FrozenRuleTree fgFrozenTree;
+		
+		// The expression under test.
+		private final String fExpression;
+		
+		
+		/**
+		 * 
+		 * Constructor
+		 * 
+		 * @param expression The expression to verify.
+		 * 
+		 **/
+		public TestCompiledAutomaton(final String expression)
+		{
+			fExpression = expression;
+		}
+		
+		
+		/**
+		 * Set up the test environment.
+		 **/
+		@BeforeClass
+		public static void setupOnce()
+		{
+			fgNode.addMatchRule("*", false);
+			fgNode.addMatchRule("unit", true);
+			fgNode.addMatchRule("unit.Test*", false);
+			fgNode.addMatchRule("unit.TestA", true);
+			fgNode.addMatchRule("unit.Tests.test[abc]", false);
+			fgNode.addMatchRule("other.obsolete", true);
+			fgNode.addMatchRule("other.obsolete.*", false);
+			fgNode.addMatchRule("*.*.unit.Test?", true);
+			fgNode.addMatchRule("com.id.*.Test*B", false);
+			fgNode.addMatchRule("com.id.?.Tes*AB", true);
+			fgAutomaton = fgNode.compile();
+			fgFrozenTree = fgNode.freeze();
+		}
+		
+		
+		/**
+		 * Test that the automaton and the tree agree on the expression.
+		 **/
+		@Test
+		public void testSameVerdict()
+		{
+			assertEquals("The automaton should give the same verdict as the tree.", fgNode.getBestMatchingValue(fExpression), fgAutomaton.getBestMatchingValue(fExpression));
+		}
+		
+		
+		/**
+		 * Test that the frozen snapshot and the tree agree on the expression.
+		 **/
+		@Test
+		public void testFrozenTree()
+		{
+			assertEquals("The snapshot should give the same verdict as the tree.", fgNode.getBestMatchingValue(fExpression), fgFrozenTree.getBestMatchingValue(fExpression));
+		}
+	}
+	
+	
+	/**
+	 * Test that matching from a cursor gives the same verdicts as matching the complete expression.
+	 **/
+	@RunWith(Parameterized.class)
+	public static class TestCursor
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(1000);
+		
+		
+		@Parameters(name = "{0}.{1}")
+		public static Collection<Object[]> data()
+		{
+			return Arrays.asList(new Object[][]
+				{
+					{"unit", "TestA"},
+					{"unit", "TestB"},
+					{"unit.TestA", "test"},
+					{"unit.TestB", "testA"},
+					{"unit.TestB", "testB[1.5]"},
+					{"unit.OtherTest", "test"},
+					{"other", "obsolete"},
+					{"other.obsolete", "test"},
+					{"com.id.unit", "TestAB"},
+					{"com.id.unit.TestA", "test"}
+				});
+		}
+		
+		private static final RuleNode fgNode = new RuleNode();
+		private static RuleAutomaton fgAutomaton;
+		
+		// The prefix and remainder of the expression under test.
+		private final String fPrefix;
+		private final String fRemainder;
+		
+		
+		/**
+		 * 
+		 * Constructor
+		 * 
+		 * @param prefix The prefix of the expression.
+		 * @param remainder The remainder of the expression.
+		 * 
+		 **/
+		public TestCursor(final String prefix, final String remainder)
+		{
+			fPrefix = prefix;
+			fRemainder = remainder;
+		}
+		
+		
+		/**
+		 * Set up the test environment.
+		 **/
+		@BeforeClass
+		public static void setupOnce()
+		{
+			fgNode.addMatchRule("*", false);
+			fgNode.addMatchRule("unit", true);
+			fgNode.addMatchRule("unit.Test*", false);
+			fgNode.addMatchRule("unit.TestA", true);
+			fgNode.addMatchRule("unit.TestB.*", true);
+			fgNode.addMatchRule("unit.TestB.testB[1", false);
+			fgNode.addMatchRule("other.obsolete", true);
+			fgNode.addMatchRule("other.obsolete.*", false);
+			fgNode.addMatchRule("*.*.unit.Test?", true);
+			fgNode.addMatchRule("com.id.*.Test*B", false);
+			fgAutomaton = fgNode.compile();
+		}
+		
+		
+		/**
+		 * Test that the cursor of the tree gives the same verdict as the tree.
+		 **/
+		@Test
+		public void testTreeCursor()
+		{
+			final boolean expected = fgNode.getBestMatchingValue(fPrefix + "." + fRemainder);
+			assertEquals("The cursor should give the same verdict as the tree.", expected, fgNode.getCursor(fPrefix).getBestMatchingValue(fRemainder));
+		}
+		
+		
+		/**
+		 * Test that advancing the automaton over the prefix gives the same verdict as the tree.
+		 **/
+		@Test
+		public void testAutomatonState()
+		{
+			final boolean expected = fgNode.getBestMatchingValue(fPrefix + "." + fRemainder);
+			final int state = fgAutomaton.advance(fgAutomaton.advance(RuleAutomaton.INITIAL_STATE, fPrefix), ".");
+			assertEquals("The automaton should give the same verdict as the tree.", expected, fgAutomaton.getVerdict(fgAutomaton.advance(state, fRemainder)));
+		}
+	}
+	
+	
+	/**
+	 * Test classifying a collection of expressions at once.
+	 **/
+	public static class TestBatchClassification
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(1000);
+		
+		private RuleNode fNode;
+		
+		
+		/**
+		 * Set up the test.
+		 **/
+		@Before
+		public void setup()
+		{
+			fNode = new RuleNode();
+			fNode.addMatchRule("*", false);
+			fNode.addMatchRule("unit", true);
+			fNode.addMatchRule("unit.Test*", false);
+			fNode.addMatchRule("unit.TestA", true);
+			fNode.addMatchRule("unit.TestB.testB", true);
+		}
+		
+		
+		/**
+		 * Test that every expression gets the same verdict as when it is matched on its own.
+		 **/
+		@Test
+		public void testSameVerdicts()
+		{
+			final List<String> expressions = Arrays.asList("unit", "unit.TestA.testA", "unit.TestB.testA", "unit.TestB.testB", "unit.TestA.testB", "other.TestA.testA", "unit.OtherTest.test");
+			final BitSet values = fNode.getBestMatchingValues(expressions);
+			for (int i = 0; i < expressions.size(); i++)
+			{
+				assertEquals("The verdict of '" + expressions.get(i) + "' should not change.", fNode.getBestMatchingValue(expressions.get(i)), values.get(i));
+			}
+		}
+		
+		
+		/**
+		 * Test that consecutive expressions with a prefix of the same length but other characters are not matched with
+		 * the cursor of the previous prefix.
+		 **/
+		@Test
+		public void testChangingPrefix()
+		{
+			final List<String> expressions = Arrays.asList("unit.TestA.testB", "unit.TestA.testA", "unit.TestB.testB", "unit.TestC.testB", "unit.TestAB.testB", "unit.TestB.testB");
+			final BitSet values = fNode.getBestMatchingValues(expressions);
+			for (int i = 0; i < expressions.size(); i++)
+			{
+				assertEquals("The verdict of '" + expressions.get(i) + "' should not change.", fNode.getBestMatchingValue(expressions.get(i)), values.get(i));
+			}
+		}
+		
+		
+		/**
+		 * Test that an empty collection gives no verdicts.
+		 **/
+		@Test
+		public void testEmpty()
+		{
+			assertTrue("No verdicts should be set.", fNode.getBestMatchingValues(Collections.<String>emptyList()).isEmpty());
+		}
+	}
+	
+	
+	/**
+	 * Test reading rules in the properties file format.
+	 **/
+	public static class TestRuleReader
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(10);
+		
+		
+		/**
+		 * Test that comments and blank lines are skipped, and that a line can be continued on the next one.
+		 **/
+		@Test
+		public void testSyntax() throws IOException
+		{
+			final RuleNode node = new RuleNode();
+			final String rules = "# A comment\n\n  unit.TestA = excluded\n! Another comment\nunit.TestB:EXCLUDED\nunit.\\\n  TestC excluded\n";
+			assertEquals("Three rules should be read.", 3, new RuleReader(new StringReader(rules)).read(node));
+			assertFalse("'unit.TestA' should be excluded.", node.getBestMatchingValue("unit.TestA"));
+			assertFalse("'unit.TestB' should be excluded.", node.getBestMatchingValue("unit.TestB"));
+			assertFalse("'unit.TestC' should be excluded.", node.getBestMatchingValue("unit.TestC"));
+			assertTrue("'unit.TestD' should be included.", node.getBestMatchingValue("unit.TestD"));
+		}
+		
+		
+		/**
+		 * Test that the last value of a key that occurs several times is used.
+		 **/
+		@Test
+		public void testLastValueWins() throws IOException
+		{
+			final RuleNode node = new RuleNode();
+			new RuleReader(new StringReader("unit.TestA=included\nunit.TestA=excluded\n")).read(node);
+			assertFalse("The last value should be used.", node.getBestMatchingValue("unit.TestA"));
+		}
+	}
+	
+	
+	/**
+	 * Test that the filter shared by all suites is reused until a filter file changes.
+	 **/
+	public static class TestSharedFilter
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(1000);
+		
+		@Rule
+		public TemporaryFolder fFolder = new TemporaryFolder();
+		
+		/**
+		 * The value of the system property of the cache directory before the tests.
+		 **/
+		private static String fgPreviousCacheDirectory;
+		
+		
+		/**
+		 * Disable the cache, so the tests do not add files to the cache of the user.
+		 **/
+		@BeforeClass
+		public static void disableCache()
+		{
+			fgPreviousCacheDirectory = System.setProperty("testfilter.cache.dir", "");
+		}
+		
+		
+		/**
+		 * Restore the cache.
+		 **/
+		@AfterClass
+		public static void restoreCache()
+		{
+			if (fgPreviousCacheDirectory == null)
+			{
+				System.clearProperty("testfilter.cache.dir");
+			}
+			else
+			{
+				System.setProperty("testfilter.cache.dir", fgPreviousCacheDirectory);
+			}
+		}
+		
+		
+		/**
+		 * Test that the filter is reused while the filter files are unchanged, and read again after one of them changed.
+		 **/
+		@Test
+		public void testReloadAfterChange() throws IOException
+		{
+			final Path localFile = fFolder.getRoot().toPath().resolve("local.testfilter.properties");
+			final Path generalFile = fFolder.getRoot().toPath().resolve("testfilter.properties");
+			final Description test = Description.createTestDescription("unit.TestA", "testA");
+			Files.write(generalFile, Arrays.asList("unit.TestA = excluded"), StandardCharsets.UTF_8);
+			
+			final PropertyFilter filter = PropertyFilter.getShared(localFile.toString(), generalFile.toString());
+			assertFalse("The general filter file excludes the test.", filter.shouldRun(test));
+			assertSame("The filter should be reused while the files are unchanged.", filter, PropertyFilter.getShared(localFile.toString(), generalFile.toString()));
+			
+			Files.write(generalFile, Arrays.asList("unit.TestA = included", "unit.TestB = excluded"), StandardCharsets.UTF_8);
+			Files.setLastModifiedTime(generalFile, FileTime.fromMillis(Files.getLastModifiedTime(generalFile).toMillis() + 2000));
+			final PropertyFilter modifiedFilter = PropertyFilter.getShared(localFile.toString(), generalFile.toString());
+			assertNotSame("The filter should be read again after the file was modified.", filter, modifiedFilter);
+			assertTrue("The modified filter file includes the test.", modifiedFilter.shouldRun(test));
+			
+			Files.write(localFile, Arrays.asList("unit = excluded"), StandardCharsets.UTF_8);
+			final PropertyFilter localFilter = PropertyFilter.getShared(localFile.toString(), generalFile.toString());
+			assertNotSame("The filter should be read again after the local file was created.", modifiedFilter, localFilter);
+			assertFalse("The local filter file overrides the general one.", localFilter.shouldRun(test));
+		}
+	}
+	
+	
+	/**
+	 * Test checking whether the tests of a class can be included, before any of them is matched.
+	 **/
+	public static class TestClassPruning
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(10000);
+		
+		
+		/**
+		 * Test that only classes of which no test can be included are pruned.
+		 **/
+		@Test
+		public void testCanInclude()
+		{
+			final RuleNode node = new RuleNode();
+			node.addMatchRule("unit", false);
+			node.addMatchRule("unit.TestA.testA", true);
+			node.addMatchRule("unit.TestB.*", false);
+			final RuleAutomaton automaton = node.compile();
+			
+			assertTrue("A test of 'unit.TestA' is included.", canInclude(automaton, "unit.TestA"));
+			assertFalse("No test of 'unit.TestC' can be included.", canInclude(automaton, "unit.TestC"));
+			assertTrue("A test of 'other.TestA' is included by default.", canInclude(automaton, "other.TestA"));
+		}
+		
+		
+		/**
+		 * Test that the snapshot of the tree prunes the same classes as the automaton, also when a rule with a higher
+		 * score hides a rule that would include tests.
+		 **/
+		@Test
+		public void testTreeCanInclude()
+		{
+			final RuleNode node = new RuleNode();
+			node.addMatchRule("*", false);
+			node.addMatchRule("unit", false);
+			node.addMatchRule("unit.TestA.testA", true);
+			node.addMatchRule("unit.TestB.*", false);
+			node.addMatchRule("com.acme.Foo", true);
+			node.addMatchRule("com.acme.Bar", false);
+			node.addMatchRule("com.*.Bar.test*", true);
+			final FrozenRuleTree tree = node.freeze();
+			final RuleAutomaton automaton = tree.compile();
+			
+			assertTrue("A test of 'unit.TestA' is included.", tree.canInclude("unit.TestA"));
+			assertFalse("No test of 'unit.TestC' can be included.", tree.canInclude("unit.TestC"));
+			assertTrue("A test of 'com.acme.Foo' is included.", tree.canInclude("com.acme.Foo"));
+			assertTrue("A test of 'com.other.Bar' is included by the wildcard.", tree.canInclude("com.other.Bar"));
+			assertFalse("The literal rule of 'com.acme.Bar' hides the wildcard.", tree.canInclude("com.acme.Bar"));
+			assertFalse("No test of 'org.Foo' can be included.", tree.canInclude("org.Foo"));
+			for (final String className : Arrays.asList("unit.TestA", "unit.TestB", "unit.TestC", "unit", "com", "com.acme", "com.acme.Foo", "com.acme.Foo.Inner", "com.acme.Bar", "com.other.Bar", "com.other.Baz", "org.Foo"))
+			{
+				assertEquals("The tree and the automaton should agree on '" + className + "'.", canInclude(automaton, className), tree.canInclude(className));
+			}
+		}
+		
+		
+		/**
+		 * Test that classes are pruned when the rules need too many states for an automaton.
+		 **/
+		@Test
+		public void testCanIncludeWithoutAutomaton()
+		{
+			final Properties properties = new Properties();
+			properties.setProperty("*", "excluded");
+			for (int i = 0; i < 5000; i++)
+			{
+				properties.setProperty("com.acme.p" + (i % 50) + ".Test" + i, "included");
+			}
+			final PropertyFilter filter = new PropertyFilter(properties);
+			
+			assertTrue("A listed class can include tests.", filter.canInclude("com.acme.p3.Test3"));
+			assertFalse("A class that is not listed cannot include tests.", filter.canInclude("com.acme.other.FooTest"));
+			assertFalse("A class that is listed in another package cannot include tests.", filter.canInclude("com.acme.p3.Test4"));
+		}
+		
+		
+		/**
+		 * 
+		 * Check whether a test of a class can be included.
+		 * 
+		 * @param automaton The automaton of the rules.
+		 * @param className The name of the class.
+		 * @return True if some test of the class can be included.
+		 * 
+		 **/
+		private static boolean canInclude(final RuleAutomaton automaton, final String className)
+		{
+			return automaton.canInclude(automaton.advance(automaton.advance(RuleAutomaton.INITIAL_STATE, className), "."));
+		}
+	}
+	
+	
+	/**
+	 * Test filtering a hierarchy of descriptions.
+	 **/
+	public static class TestDescriptionWalk
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(10000);
+		
+		private PropertyFilter fFilter;
+		
+		
+		/**
+		 * Set up the test.
+		 **/
+		@Before
+		public void setup()
+		{
+			final Properties properties = new Properties();
+			properties.setProperty("unit", "excluded");
+			properties.setProperty("unit.TestA.testA", "included");
+			fFilter = new PropertyFilter(properties);
+		}
+		
+		
+		/**
+		 * Test that a hierarchy deeper than the call stack allows is filtered.
+		 **/
+		@Test
+		public void testDeepNesting()
+		{
+			final Description included = Description.createSuiteDescription("included");
+			final Description excluded = Description.createSuiteDescription("excluded");
+			Description includedLeaf = included;
+			Description excludedLeaf = excluded;
+			for (int i = 0; i < 100000; i++)
+			{
+				final Description includedChild = Description.createSuiteDescription("included" + i);
+				includedLeaf.addChild(includedChild);
+				includedLeaf = includedChild;
+				final Description excludedChild = Description.createSuiteDescription("excluded" + i);
+				excludedLeaf.addChild(excludedChild);
+				excludedLeaf = excludedChild;
+			}
+			includedLeaf.addChild(Description.createTestDescription("unit.TestA", "testA"));
+			excludedLeaf.addChild(Description.createTestDescription("unit.TestA", "testB"));
+			
+			assertTrue("The included test at the bottom should run.", fFilter.shouldRun(included));
+			assertFalse("The excluded test at the bottom should not run.", fFilter.shouldRun(excluded));
+			fFilter.forgetDescriptions();
+			assertTrue("The verdict should not change after the descriptions were forgotten.", fFilter.shouldRun(included));
+		}
+		
+		
+		/**
+		 * Test that the walk stops at the first test that should run, without matching the remaining tests.
+		 **/
+		@Test
+		public void testStopAtFirstIncludedTest()
+		{
+			final Description suite = Description.createSuiteDescription("unit.TestA");
+			suite.addChild(Description.createTestDescription("unit.TestA", "testA"));
+			for (int i = 0; i < 10; i++)
+			{
+				suite.addChild(Description.createTestDescription("unit.TestA", "test" + i));
+			}
+			
+			assertTrue("The first test should run.", fFilter.shouldRun(suite));
+			assertEquals("Only the first test should have been matched.", 1, fFilter.getCacheMisses());
+			assertTrue("The suite should be remembered.", fFilter.shouldRun(suite));
+			assertEquals("The suite should not be walked again.", 1, fFilter.getCacheMisses() + fFilter.getCacheHits());
+		}
+	}
+	
+	
+	/**
+	 * Test the options listed in the values of the rules.
+	 **/
+	public static class TestRuleOptions
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(1000);
+		
+		
+		/**
+		 * Test that the verdict is the first part of the value and that the options follow it.
+		 **/
+		@Test
+		public void testParseValue()
+		{
+			final List<String> options = new ArrayList<String>();
+			RuleOptions.addOptions("excluded, Serial ,,group=db", options);
+			assertEquals("The options should be trimmed and in lower case.", Arrays.asList("serial", "group=db"), options);
+			assertFalse("The verdict should be 'excluded'.", RuleOptions.isIncluded(" Excluded ,serial"));
+			assertTrue("The verdict should be 'included'.", RuleOptions.isIncluded("included,excluded"));
+		}
+		
+		
+		/**
+		 * Test that an option applies if the best matching rule lists it.
+		 **/
+		@Test
+		public void testBestMatch()
+		{
+			final Properties properties = new Properties();
+			properties.setProperty("unit", "included,serial");
+			properties.setProperty("unit.TestA", "included");
+			properties.setProperty("unit.Test*", "excluded,serial");
+			final PropertyFilter filter = new PropertyFilter(properties);
+			
+			assertTrue("'unit.TestB' should match 'unit.Test*'.", filter.isSerial("unit.TestB"));
+			assertFalse("'unit.TestA' should not be serial.", filter.isSerial("unit.TestA"));
+			assertTrue("'unit.Other' should match 'unit'.", filter.isSerial("unit.Other"));
+			assertFalse("'other.TestA' should match no rule.", filter.isSerial("other.TestA"));
+		}
+		
+		
+		/**
+		 * Test that the option of a method is matched with the name of the class and the method.
+		 **/
+		@Test
+		public void testConcurrentMethods()
+		{
+			final Properties properties = new Properties();
+			properties.setProperty("unit.TestA", "included,concurrent");
+			properties.setProperty("unit.TestA.testB", "included");
+			final PropertyFilter filter = new PropertyFilter(properties);
+			
+			assertTrue("'unit.TestA.testA' should be concurrent.", filter.isConcurrent("unit.TestA", "testA"));
+			assertFalse("'unit.TestA.testB' should not be concurrent.", filter.isConcurrent("unit.TestA", "testB"));
+			assertFalse("'unit.TestA' should not be serial.", filter.isSerial("unit.TestA"));
+		}
+		
+		
+		/**
+		 * Test that a class is assigned to the group of its best matching rule, and that the limit of a group is read
+		 * from a directive.
+		 **/
+		@Test
+		public void testGroups() throws IOException
+		{
+			final RuleReader reader = new RuleReader(new StringReader("unit = included,group=DB\nunit.TestA = included\n@group.db = 2\n"));
+			final RuleNode node = new RuleNode();
+			assertEquals("A directive is not a rule.", 2, reader.read(node));
+			assertEquals("The directive should be read.", "2", reader.getDirectives().get("group.db"));
+			
+			final Properties properties = new Properties();
+			properties.setProperty("unit", "included,group=DB");
+			properties.setProperty("unit.TestA", "included");
+			properties.setProperty("@group.db", "2");
+			final PropertyFilter filter = new PropertyFilter(properties);
+			assertEquals("'unit.TestB' should be in the group.", "db", filter.getGroup("unit.TestB"));
+			assertEquals("'unit.TestA' should not be in a group.", null, filter.getGroup("unit.TestA"));
+			assertEquals("The limit of the group should be read.", 2, filter.getGroupLimit("db"));
+			assertEquals("A group without a directive has no limit.", Integer.MAX_VALUE, filter.getGroupLimit("other"));
+		}
+	}
+	
+	
+	/**
+	 * Test splitting the test classes into shards.
+	 **/
+	public static class TestSharding
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(1000);
+		
+		
+		/**
+		 * Test that every class is in exactly one shard, with and without durations.
+		 **/
+		@Test
+		public void testEveryClassOnce()
+		{
+			final Map<String, Long> durations = new TreeMap<String, Long>();
+			for (int i = 0; i < 100; i++)
+			{
+				durations.put("unit.Test" + i, Long.valueOf(-1));
+			}
+			assertEveryClassOnce(durations);
+			
+			durations.put("unit.Test7", Long.valueOf(1000));
+			durations.put("unit.Test8", Long.valueOf(10));
+			assertEveryClassOnce(durations);
+		}
+		
+		
+		/**
+		 * Test that the classes are balanced by their durations.
+		 **/
+		@Test
+		public void testBalanced()
+		{
+			final Map<String, Long> durations = new TreeMap<String, Long>();
+			durations.put("unit.TestA", Long.valueOf(400));
+			durations.put("unit.TestB", Long.valueOf(200));
+			durations.put("unit.TestC", Long.valueOf(100));
+			durations.put("unit.TestD", Long.valueOf(100));
+			
+			assertEquals("The longest class should be alone.", Collections.singleton("unit.TestA"), new ShardFilter("1/2", durations).getClassNames());
+			assertEquals("The other classes should be together.", 3, new ShardFilter("2/2", durations).getClassNames().size());
+		}
+		
+		
+		/**
+		 * 
+		 * Check that every class is in exactly one of three shards.
+		 * 
+		 * @param durations The durations of the classes.
+		 * 
+		 **/
+		private static void assertEveryClassOnce(final Map<String, Long> durations)
+		{
+			final Set<String> classNames = new HashSet<String>();
+			int count = 0;
+			for (int i = 1; i <= 3; i++)
+			{
+				final Set<String> shard = new ShardFilter(i + "/3", durations).getClassNames();
+				classNames.addAll(shard);
+				count += shard.size();
+			}
+			assertEquals("Every class should be in a shard.", durations.keySet(), classNames);
+			assertEquals("No class should be in two shards.", durations.size(), count);
+		}
+	}
+	
+	
+	/**
+	 * Test running only the tests that failed in the previous run.
+	 **/
+	public static class TestRerun
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(1000);
+		
+		/**
+		 * The folder of the file of the failed tests, so a test that times out cannot touch the file of the real run.
+		 **/
+		@ClassRule
+		public static TemporaryFolder fgFolder = new TemporaryFolder();
+		
+		/**
+		 * The value of the system property of the file of the failed tests before the tests.
+		 **/
+		private static String fgPreviousFile;
+		
+		
+		/**
+		 * Write the failed tests, before the timeout of the tests starts.
+		 **/
+		@BeforeClass
+		public static void writeFailedTests() throws IOException
+		{
+			final Path file = fgFolder.getRoot().toPath().resolve("testfilter.failures");
+			FailedTests.write(file, Arrays.asList("unit.TestA.testA", "unit.TestB", "unit.TestC.test[1.5]"));
+			fgPreviousFile = System.setProperty(FailedTests.FILE_PROPERTY, file.toString());
+		}
+		
+		
+		/**
+		 * Restore the file of the failed tests. The file itself is deleted with its folder.
+		 **/
+		@AfterClass
+		public static void restoreFailedTests()
+		{
+			if (fgPreviousFile == null)
+			{
+				System.clearProperty(FailedTests.FILE_PROPERTY);
+			}
+			else
+			{
+				System.setProperty(FailedTests.FILE_PROPERTY, fgPreviousFile);
+			}
+		}
+		
+		
+		/**
+		 * Test that only the failed tests and the tests of the failed classes run, whatever the rules are.
+		 **/
+		@Test
+		public void testFailedTestsOnly()
+		{
+			final Properties properties = new Properties();
+			properties.setProperty("unit", "excluded");
+			properties.setProperty("@rerun", "true");
+			final PropertyFilter filter = new PropertyFilter(properties);
+			assertTrue("'unit.TestA.testA' failed.", filter.shouldRun(Description.createTestDescription("unit.TestA", "testA")));
+			assertFalse("'unit.TestA.testB' did not fail.", filter.shouldRun(Description.createTestDescription("unit.TestA", "testB")));
+			assertTrue("'unit.TestB' failed.", filter.shouldRun(Description.createTestDescription("unit.TestB", "testA")));
+			assertTrue("'unit.TestC.test[1.5]' failed.", filter.shouldRun(Description.createTestDescription("unit.TestC", "test[1.5]")));
+			assertTrue("A test of 'unit.TestC' failed.", filter.canInclude("unit.TestC"));
+			assertFalse("No test of 'unit.TestD' failed.", filter.canInclude("unit.TestD"));
+		}
+	}
+	
+	
+	/**
+	 * Test selecting the tests that fit in a time budget.
+	 **/
+	public static class TestBudget
+	{
+		@Rule
+		public Timeout globalTimeout = new Timeout(1000);
+		
+		
+		/**
+		 * Test that the budget is read with its unit, in microseconds.
+		 **/
+		@Test
+		public void testParseBudget()
+		{
+			assertEquals("A number without a unit is in seconds.", 300000000L, BudgetFilter.parseBudget("300"));
+			assertEquals("'s' is seconds.", 300000000L, BudgetFilter.parseBudget(" 300s "));
+			assertEquals("'m' is minutes.", 90000000L, BudgetFilter.parseBudget("1.5m"));
+			assertEquals("'ms' is milliseconds.", 250000L, BudgetFilter.parseBudget("250MS"));
+		}
+		
+		
+		/**
+		 * Test that the failed tests are selected first, then the changed and new tests, then the shortest others.
+		 **/
+		@Test
+		public void testTiers()
+		{
+			final List<Description> tests = new ArrayList<Description>();
+			final Map<String, Long> durations = new TreeMap<String, Long>();
+			for (final String name : Arrays.asList("testA", "testB", "testC", "testD"))
+			{
+				tests.add(Description.createTestDescription("unit.TestA", name));
+				tests.add(Description.createTestDescription("unit.TestB", name));
+				durations.put("unit.TestA." + name, Long.valueOf(1000000));
+				durations.put("unit.TestB." + name, Long.valueOf(2000000));
+			}
+			durations.remove("unit.TestA.testD");
+			durations.put("unit.TestA.testC", Long.valueOf(4000000));
+			
+			// The new test counts as the average of 2 s. After 2 s failed, 2 s new and 2 s changed, only a test of 1 s of
+			// the others still fits in the budget of 7 s.
+			final BudgetFilter filter = new BudgetFilter("7s", tests, durations, Collections.singleton("unit.TestB.testA"), Collections.singleton("unit.TestB"));
+			assertTrue("The failed test should run.", filter.shouldRun(Description.createTestDescription("unit.TestB", "testA")));
+			assertTrue("The new test should run.", filter.shouldRun(Description.createTestDescription("unit.TestA", "testD")));
+			assertTrue("A changed test should run.", filter.shouldRun(Description.createTestDescription("unit.TestB", "testB")));
+			assertTrue("A short test should fill the budget.", filter.shouldRun(Description.createTestDescription("unit.TestA", "testA")));
+			assertFalse("The longest test should not run.", filter.shouldRun(Description.createTestDescription("unit.TestA", "testC")));
+			assertEquals("The remainder should be in the order of selection.", Arrays.asList("unit.TestB.testC", "unit.TestB.testD", "unit.TestA.testB", "unit.TestA.testC"), filter.getRemainder());
+			assertEquals("The selected tests should take 7 s.", 7000000L, filter.getSelectedDuration());
+		}
+	}
 }
\ No newline at end of file
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * 
+ * A minimal benchmark harness. An operation is warmed up and then measured in a number of timed iterations. For each
+ * operation the throughput, the average latency and the allocation rate are reported. The allocations are counted per
+ * thread, which requires a JVM that supports {@code com.sun.management.ThreadMXBean}.
+ * 
+ * @author cvesters
+ */
+public final class Benchmark
+{
+	/**
+	 * 
+	 * An operation to measure.
+	 * 
+	 **/
+	public interface Operation
+	{
+		/**
+		 * 
+		 * Run the operation once.
+		 * 
+		 * @return A value that depends on the work done, so the work cannot be optimized away.
+		 * 
+		 **/
+		long run();
+	}
+	
+	
+	/**
+	 * The time spent warming up an operation, in milliseconds.
+	 **/
+	private final long fWarmupMillis;
+	
+	/**
+	 * The time spent in each measurement iteration, in milliseconds.
+	 **/
+	private final long fIterationMillis;
+	
+	/**
+	 * The number of measurement iterations.
+	 **/
+	private final int fIterations;
+	
+	/**
+	 * The values returned by the operations.
+	 **/
+	private long fSink;
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param warmupMillis The time spent warming up an operation, in milliseconds.
+	 * @param iterationMillis The time spent in each measurement iteration, in milliseconds.
+	 * @param iterations The number of measurement iterations.
+	 * 
+	 **/
+	public Benchmark(final long warmupMillis, final long iterationMillis, final int iterations)
+	{
+		fWarmupMillis = warmupMillis;
+		fIterationMillis = iterationMillis;
+		fIterations = iterations;
+	}
+	
+	
+	/**
+	 * 
+	 * Print the header of the report.
+	 * 
+	 **/
+	public static void printHeader()
+	{
+		System.out.println(String.format("%-60s %16s %14s %14s %12s", "Benchmark", "Throughput", "Latency", "Allocated", "Alloc. rate"));
+		System.out.println(String.format("%-60s %16s %14s %14s %12s", "", "(ops/s)", "(ns/op)", "(B/op)", "(MB/s)"));
+	}
+	
+	
+	/**
+	 * 
+	 * Measure an operation and print the result.
+	 * 
+	 * @param name The name of the benchmark.
+	 * @param operation The operation to measure.
+	 * @param opsPerRun The number of operations a single run consists of, for example the number of lookups.
+	 * 
+	 **/
+	public void measure(final String name, final Operation operation, final int opsPerRun)
+	{
+		runFor(operation, fWarmupMillis);
+		
+		final long startBytes = getAllocatedBytes();
+		long runs = 0;
+		long nanos = 0;
+		for (int i = 0; i < fIterations; i++)
+		{
+			final long start = System.nanoTime();
+			runs += runFor(operation, fIterationMillis);
+			nanos += System.nanoTime() - start;
+		}
+		final long bytes = getAllocatedBytes() - startBytes;
+		
+		final double ops = (double) runs * opsPerRun;
+		final double seconds = nanos / 1e9;
+		final String allocated = (startBytes < 0) ? "n/a" : String.format("%.1f", bytes / ops);
+		final String allocationRate = (startBytes < 0) ? "n/a" : String.format("%.1f", bytes / seconds / (1024 * 1024));
+		System.out.println(String.format("%-60s %16.0f %14.1f %14s %12s", name, ops / seconds, nanos / ops, allocated, allocationRate));
+	}
+	
+	
+	/**
+	 * @return The values returned by the operations, to be printed at the end so they are not optimized away.
+	 **/
+	public long getSink()
+	{
+		return fSink;
+	}
+	
+	
+	/**
+	 * 
+	 * Run an operation repeatedly for a period of time.
+	 * 
+	 * @param operation The operation to run.
+	 * @param millis The period of time, in milliseconds.
+	 * @return The number of runs.
+	 * 
+	 **/
+	private long runFor(final Operation operation, final long millis)
+	{
+		final long deadline = System.nanoTime() + (millis * 1000000L);
+		long runs = 0;
+		long sink = 0;
+		do
+		{
+			sink += operation.run();
+			runs++;
+		}
+		while (System.nanoTime() < deadline);
+		
+		fSink += sink;
+		return runs;
+	}
+	
+	
+	/**
+	 * @return The number of bytes allocated by the current thread, -1 if the JVM does not report it.
+	 **/
+	private static long getAllocatedBytes()
+	{
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+		{
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		
+		return -1;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,225 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.bench;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.runner.Description;
+
+import util.testing.filter.FrozenRuleTree;
+import util.testing.filter.PropertyFilter;
+import util.testing.filter.RuleAutomaton;
+import util.testing.filter.RuleNode;
+
+/**
+ * 
+ * Benchmarks for the hot paths of the filtering: looking up a test in the rules, inserting rules, building a filter
+ * from the rules and filtering a complete suite with a filter that already knows the verdicts of the tests. Every
+ * benchmark runs for each combination of the parameters, which are given as arguments of the form 'name=value1,value2'.
+ * The parameters and their defaults are:
+ * 
+ * <ul>
+ * <li>rules=100,10000: the number of rules.</li>
+ * <li>literalRatio=1.0,0.5: the fraction of the rules without wildcards.</li>
+ * <li>depth=4,8: the number of parts in a test name.</li>
+ * <li>naming=plain,valued: how test methods are named, 'plain', 'indexed' or 'valued' for parameterized tests.</li>
+ * <li>tests=10000: the number of tests in the inventory.</li>
+ * <li>warmup=1000, time=1000, iterations=5: the warm up time and iteration time in milliseconds, and the number of
+ * iterations.</li>
+ * </ul>
+ * 
+ * For example:
+ * 
+ * <pre>
+ * java -cp ... util.testing.bench.RuleBenchmarks rules=1000 literalRatio=0.9 naming=indexed
+ * </pre>
+ * 
+ * @author cvesters
+ */
+public final class RuleBenchmarks
+{
+	/**
+	 * 
+	 * Constructor. Not used.
+	 * 
+	 **/
+	private RuleBenchmarks()
+	{
+	}
+	
+	
+	/**
+	 * 
+	 * Run the benchmarks.
+	 * 
+	 * @param args The parameters, of the form 'name=value1,value2'.
+	 * 
+	 **/
+	public static void main(final String[] args)
+	{
+		final Map<String, String> params = new HashMap<String, String>();
+		params.put("rules", "100,10000");
+		params.put("literalRatio", "1.0,0.5");
+		params.put("depth", "4,8");
+		params.put("naming", "plain,valued");
+		params.put("tests", "10000");
+		params.put("warmup", "1000");
+		params.put("time", "1000");
+		params.put("iterations", "5");
+		for (final String arg : args)
+		{
+			final String[] parts = arg.split("=", 2);
+			if ((parts.length != 2) || !params.containsKey(parts[0]))
+			{
+				System.out.println("[ERROR] Unknown parameter '" + arg + "'.");
+				return;
+			}
+			params.put(parts[0], parts[1]);
+		}
+		
+		final Benchmark benchmark = new Benchmark(Long.parseLong(params.get("warmup")), Long.parseLong(params.get("time")), Integer.parseInt(params.get("iterations")));
+		final int tests = Integer.parseInt(params.get("tests"));
+		Benchmark.printHeader();
+		for (final String rules : params.get("rules").split(","))
+		{
+			for (final String literalRatio : params.get("literalRatio").split(","))
+			{
+				for (final String depth : params.get("depth").split(","))
+				{
+					for (final String naming : params.get("naming").split(","))
+					{
+						final SyntheticRules data = new SyntheticRules(Integer.parseInt(rules), Double.parseDouble(literalRatio), Integer.parseInt(depth), naming, tests);
+						final String suffix = " [rules=" + rules + ", literal=" + literalRatio + ", depth=" + depth + ", " + naming + "]";
+						run(benchmark, data, suffix);
+					}
+				}
+			}
+		}
+		
+		System.out.println("(" + benchmark.getSink() + ")");
+	}
+	
+	
+	/**
+	 * 
+	 * Run all benchmarks for one set of data.
+	 * 
+	 * @param benchmark The harness.
+	 * @param data The rules and tests.
+	 * @param suffix The description of the parameters, appended to the name of every benchmark.
+	 * 
+	 **/
+	private static void run(final Benchmark benchmark, final SyntheticRules data, final String suffix)
+	{
+		final List<String> names = data.getTestNames();
+		final String[] testNames = names.toArray(new String[names.size()]);
+		final Properties properties = data.getRules();
+		final String[] expressions = properties.stringPropertyNames().toArray(new String[0]);
+		Arrays.sort(expressions);
+		final boolean[] values = new boolean[expressions.length];
+		for (int i = 0; i < expressions.length; i++)
+		{
+			values[i] = !"excluded".equals(properties.getProperty(expressions[i]));
+		}
+		
+		final RuleNode tree = new RuleNode();
+		for (int i = 0; i < expressions.length; i++)
+		{
+			tree.addMatchRule(expressions[i], values[i]);
+		}
+		final FrozenRuleTree frozenTree = tree.freeze();
+		final RuleAutomaton automaton = tree.compile();
+		final Description suite = data.createDescription();
+		final PropertyFilter filter = new PropertyFilter(properties);
+		
+		benchmark.measure("lookup.tree" + suffix, new Benchmark.Operation()
+		{
+			@Override
+			public long run()
+			{
+				long included = 0;
+				for (final String name : testNames)
+				{
+					included += tree.getBestMatchingValue(name) ? 1 : 0;
+				}
+				return included;
+			}
+		}, testNames.length);
+		
+		benchmark.measure("lookup.frozen" + suffix, new Benchmark.Operation()
+		{
+			@Override
+			public long run()
+			{
+				long included = 0;
+				for (final String name : testNames)
+				{
+					included += frozenTree.getBestMatchingValue(name) ? 1 : 0;
+				}
+				return included;
+			}
+		}, testNames.length);
+		
+		benchmark.measure("lookup.automaton" + suffix, new Benchmark.Operation()
+		{
+			@Override
+			public long run()
+			{
+				long included = 0;
+				for (final String name : testNames)
+				{
+					included += automaton.getBestMatchingValue(name) ? 1 : 0;
+				}
+				return included;
+			}
+		}, testNames.length);
+		
+		benchmark.measure("lookup.batch" + suffix, new Benchmark.Operation()
+		{
+			@Override
+			public long run()
+			{
+				return tree.getBestMatchingValues(names).cardinality();
+			}
+		}, testNames.length);
+		
+		benchmark.measure("insert" + suffix, new Benchmark.Operation()
+		{
+			@Override
+			public long run()
+			{
+				final RuleNode node = new RuleNode();
+				for (int i = 0; i < expressions.length; i++)
+				{
+					node.addMatchRule(expressions[i], values[i]);
+				}
+				return node.hashCode();
+			}
+		}, expressions.length);
+		
+		benchmark.measure("filter.build" + suffix, new Benchmark.Operation()
+		{
+			@Override
+			public long run()
+			{
+				return new PropertyFilter(properties).hashCode();
+			}
+		}, expressions.length);
+		
+		benchmark.measure("filter.suite" + suffix, new Benchmark.Operation()
+		{
+			@Override
+			public long run()
+			{
+				filter.forgetDescriptions();
+				return filter.shouldRun(suite) ? 1 : 0;
+			}
+		}, testNames.length);
+	}
+}
\ No newline at end of file
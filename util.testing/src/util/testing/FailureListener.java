@@ -0,0 +1,95 @@
+package util.testing;
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+
+import util.testing.filter.FailedTests;
+
+
+/**
+ * 
+ * A listener that records the tests that failed, and writes them to the {@link FailedTests file of the failed tests}
+ * when the run has finished, replacing the failures of the previous run. A later run can then run only these tests
+ * with the system property 'testfilter.rerun'. A run without failures leaves an empty file.
+ * 
+ * For example:
+ * 
+ * <pre>
+ * {@code
+ * final JUnitCore core = new JUnitCore();
+ * core.addListener(new FailureListener());
+ * core.run(ExampleSuite.class);
+ * }
+ * </pre>
+ * 
+ * @author cvesters
+ * 
+ **/
+@RunListener.ThreadSafe
+public class FailureListener extends RunListener
+{
+	/**
+	 * The file of the failed tests.
+	 **/
+	private final Path fFile;
+	
+	/**
+	 * The names of the tests and classes that failed.
+	 **/
+	private final Set<String> fFailures = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	
+	
+	/**
+	 * Constructor. The failures are written to the file given by the system property 'testfilter.failures'.
+	 * 
+	 **/
+	public FailureListener()
+	{
+		this(FailedTests.getFile());
+	}
+	
+	
+	/**
+	 * Constructor.
+	 * 
+	 * @param file The file the failures are written to.
+	 * 
+	 **/
+	public FailureListener(final Path file)
+	{
+		fFile = file;
+	}
+	
+	
+	@Override
+	public void testFailure(final Failure failure)
+	{
+		fFailures.add(FailedTests.getName(failure.getDescription()));
+	}
+	
+	
+	@Override
+	public void testRunFinished(final Result result)
+	{
+		try
+		{
+			FailedTests.write(fFile, fFailures);
+		}
+		catch (final IOException e)
+		{
+			System.out.println("[WARNING] Failed to write the failed tests '" + fFile + "': " + e);
+		}
+	}
+}
\ No newline at end of file
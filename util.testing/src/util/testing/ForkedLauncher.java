@@ -0,0 +1,598 @@
+package util.testing;
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.internal.TextListener;
+import org.junit.runner.Description;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Result;
+import org.junit.runner.Runner;
+import org.junit.runner.manipulation.NoTestsRemainException;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.junit.runner.notification.RunNotifier;
+
+import util.testing.filter.ShardFilter;
+
+
+/**
+ * 
+ * A launcher that runs tests in several JVMs on the local machine, for tests that cannot run concurrently in one JVM.
+ * The launcher builds the suites to find the test classes that remain after filtering, and starts a child JVM for
+ * every shard, see {@link ShardFilter}. The children report the events of their tests over a pipe,
+ * and the launcher fires them on one notifier, so the result and the report cover all shards. The output of the tests
+ * is passed on to the standard error of the launcher.
+ * 
+ * The number of child JVMs is the number of processors, unless it is set with the system property 'testfilter.forks',
+ * but never more than the number of test classes. The children use the class path, the options of the JVM, such as
+ * '-ea' and '-Xmx', and the 'testfilter' system properties of the launcher. The durations of the tests are merged into
+ * the {@link DurationHistory history}, so later runs balance the shards by duration, and the failed tests are recorded
+ * by a {@link FailureListener}.
+ * 
+ * For example:
+ * 
+ * <pre>
+ * {@code
+ * java -cp bin:junit.jar -Dtestfilter.forks=4 util.testing.ForkedLauncher com.util.ExampleSuite
+ * }
+ * </pre>
+ * 
+ * @author cvesters
+ * 
+ **/
+public final class ForkedLauncher
+{
+	/**
+	 * The system property with the number of child JVMs.
+	 **/
+	private static final String FORKS_PROPERTY = "testfilter.forks";
+	
+	/**
+	 * The system property with the shard of a child JVM.
+	 **/
+	private static final String FORK_PROPERTY = "testfilter.fork";
+	
+	/**
+	 * The kinds of events reported by the children.
+	 **/
+	private static final byte TEST_STARTED = 1;
+	private static final byte TEST_FINISHED = 2;
+	private static final byte TEST_FAILURE = 3;
+	private static final byte TEST_ASSUMPTION_FAILURE = 4;
+	private static final byte TEST_IGNORED = 5;
+	private static final byte RUN_FINISHED = 6;
+	
+	
+	/**
+	 * Constructor. Only static methods.
+	 **/
+	private ForkedLauncher()
+	{
+	}
+	
+	
+	/**
+	 * 
+	 * Run test classes in child JVMs and exit with 0 if all tests succeeded, 1 otherwise.
+	 * 
+	 * @param args The names of the test classes or suites.
+	 * @throws Exception If a class could not be loaded or a child could not be started.
+	 * 
+	 **/
+	public static void main(final String[] args) throws Exception
+	{
+		final Class<?>[] classes = new Class<?>[args.length];
+		for (int i = 0; i < args.length; i++)
+		{
+			classes[i] = Class.forName(args[i]);
+		}
+		
+		final int forks = Integer.getInteger(FORKS_PROPERTY, Runtime.getRuntime().availableProcessors()).intValue();
+		System.exit(run(forks, classes).wasSuccessful() ? 0 : 1);
+	}
+	
+	
+	/**
+	 * 
+	 * Run test classes in child JVMs.
+	 * 
+	 * @param forks The maximum number of child JVMs.
+	 * @param classes The test classes or suites.
+	 * @return The result of all tests.
+	 * @throws IOException If a child could not be started.
+	 * @throws InterruptedException If the launcher was interrupted while waiting for the children.
+	 * 
+	 **/
+	public static Result run(final int forks, final Class<?>... classes) throws IOException, InterruptedException
+	{
+		final Runner runner = Request.classes(classes).getRunner();
+		final Description description = runner.getDescription();
+		final int shardCount = Math.max(1, Math.min(forks, getClassDurations(runner).size()));
+		System.out.println("[INFO] Running " + description.testCount() + " tests in " + shardCount + " JVMs.");
+		
+		final Result result = new Result();
+		final RunNotifier notifier = new RunNotifier();
+		notifier.addFirstListener(result.createListener());
+		notifier.addListener(new TextListener(System.out));
+		notifier.addListener(new DurationListener());
+		notifier.addListener(new FailureListener());
+		notifier.fireTestRunStarted(description);
+		
+		final List<Process> children = new ArrayList<Process>();
+		final List<Thread> readers = new ArrayList<Thread>();
+		boolean finished = false;
+		try
+		{
+			for (int shard = 1; shard <= shardCount; shard++)
+			{
+				final Process child = start(shard + "/" + shardCount, classes);
+				children.add(child);
+				final String name = "shard " + shard + "/" + shardCount;
+				final Thread reader = new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						readEvents(name, child, notifier);
+					}
+				}, "testfilter-fork-" + shard);
+				reader.start();
+				readers.add(reader);
+			}
+			
+			for (final Thread reader : readers)
+			{
+				reader.join();
+			}
+			finished = true;
+		}
+		finally
+		{
+			if (!finished)
+			{
+				// A child could not be started or the launcher was interrupted, so the children that run are stopped.
+				for (final Process child : children)
+				{
+					child.destroy();
+				}
+				for (final Thread reader : readers)
+				{
+					reader.join();
+				}
+			}
+		}
+		notifier.fireTestRunFinished(result);
+		return result;
+	}
+	
+	
+	/**
+	 * 
+	 * Get the durations of the test classes of a runner. The launcher and the children read the same history before
+	 * the launcher merges the durations of the run, so they all assign the classes to the same shards.
+	 * 
+	 * @param runner The runner of all tests.
+	 * @return The durations of the test classes in microseconds, by their name, -1 if the duration of a class is not
+	 * known.
+	 * 
+	 **/
+	private static Map<String, Long> getClassDurations(final Runner runner)
+	{
+		return PropertySuite.getClassDurations(Collections.singletonList(runner), DurationHistory.getShared());
+	}
+	
+	
+	/**
+	 * 
+	 * Start a child JVM that runs one shard of the tests.
+	 * 
+	 * @param shard The shard, of the form 'index/count'.
+	 * @param classes The test classes or suites.
+	 * @return The process of the child.
+	 * @throws IOException If the child could not be started.
+	 * 
+	 **/
+	private static Process start(final String shard, final Class<?>... classes) throws IOException
+	{
+		final List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		for (final String argument : ManagementFactory.getRuntimeMXBean().getInputArguments())
+		{
+			// A debugger can only listen on its port in one JVM, and the shard is set for every child below.
+			if (!argument.startsWith("-agentlib:jdwp") && !argument.startsWith("-Xrunjdwp")
+					&& !argument.startsWith("-D" + FORKS_PROPERTY + "=") && !argument.startsWith("-D" + FORK_PROPERTY + "="))
+			{
+				command.add(argument);
+			}
+		}
+		for (final String key : System.getProperties().stringPropertyNames())
+		{
+			if (key.startsWith("testfilter.") && !key.equals(FORKS_PROPERTY) && !key.equals(FORK_PROPERTY))
+			{
+				command.add("-D" + key + "=" + System.getProperty(key));
+			}
+		}
+		command.add("-D" + FORK_PROPERTY + "=" + shard);
+		command.add(Child.class.getName());
+		for (final Class<?> klass : classes)
+		{
+			command.add(klass.getName());
+		}
+		
+		final ProcessBuilder builder = new ProcessBuilder(command);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		builder.redirectInput(ProcessBuilder.Redirect.INHERIT);
+		return builder.start();
+	}
+	
+	
+	/**
+	 * 
+	 * Read the events of a child and fire them on the notifier, until the child has finished. If the child ends before
+	 * the run has finished, the test that was running fails, or the shard if no test was running. A child of which the
+	 * events cannot be read is destroyed.
+	 * 
+	 * @param name The name of the shard of the child.
+	 * @param child The process of the child.
+	 * @param notifier The notifier of the launcher.
+	 * 
+	 **/
+	private static void readEvents(final String name, final Process child, final RunNotifier notifier)
+	{
+		Description running = null;
+		boolean finished = false;
+		try (final DataInputStream in = new DataInputStream(new BufferedInputStream(child.getInputStream())))
+		{
+			while (!finished)
+			{
+				final byte event = in.readByte();
+				if (event == RUN_FINISHED)
+				{
+					finished = true;
+					continue;
+				}
+				
+				final Description description = readDescription(in);
+				switch (event)
+				{
+					case TEST_STARTED:
+						running = description;
+						notifier.fireTestStarted(description);
+						break;
+					case TEST_FINISHED:
+						running = null;
+						notifier.fireTestFinished(description);
+						break;
+					case TEST_FAILURE:
+						notifier.fireTestFailure(new Failure(description, new ForkedFailure(readString(in))));
+						break;
+					case TEST_ASSUMPTION_FAILURE:
+						notifier.fireTestAssumptionFailed(new Failure(description, new ForkedFailure(readString(in))));
+						break;
+					case TEST_IGNORED:
+						notifier.fireTestIgnored(description);
+						break;
+					default:
+						throw new IOException("Unknown event " + event + ".");
+				}
+			}
+		}
+		catch (final EOFException e)
+		{
+			// The child ended, which is reported below.
+		}
+		catch (final IOException e)
+		{
+			System.out.println("[ERROR] Failed to read the events of " + name + ": " + e);
+			// Nobody reads the output of the child anymore, so it could block on a full pipe and never end.
+			child.destroy();
+		}
+		
+		int exitCode;
+		try
+		{
+			exitCode = child.waitFor();
+		}
+		catch (final InterruptedException e)
+		{
+			child.destroy();
+			exitCode = -1;
+		}
+		
+		if (!finished)
+		{
+			final Description description = (running != null) ? running : Description.createSuiteDescription(name);
+			notifier.fireTestFailure(new Failure(description, new IllegalStateException("The JVM of " + name + " ended unexpectedly with exit code " + exitCode + ".")));
+			if (running != null)
+			{
+				notifier.fireTestFinished(running);
+			}
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Write a description, in the format read by {@link #readDescription(DataInputStream)}.
+	 * 
+	 * @param out The output.
+	 * @param description The description.
+	 * @throws IOException If the description could not be written.
+	 * 
+	 **/
+	private static void writeDescription(final DataOutputStream out, final Description description) throws IOException
+	{
+		out.writeBoolean(description.isTest() && (description.getMethodName() != null));
+		if (description.isTest() && (description.getMethodName() != null))
+		{
+			writeString(out, description.getClassName());
+			writeString(out, description.getMethodName());
+		}
+		else
+		{
+			writeString(out, description.getDisplayName());
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Read a description that was written by {@link #writeDescription(DataOutputStream, Description)}.
+	 * 
+	 * @param in The input.
+	 * @return The description.
+	 * @throws IOException If the description could not be read.
+	 * 
+	 **/
+	private static Description readDescription(final DataInputStream in) throws IOException
+	{
+		if (in.readBoolean())
+		{
+			final String className = readString(in);
+			return Description.createTestDescription(className, readString(in));
+		}
+		
+		return Description.createSuiteDescription(readString(in));
+	}
+	
+	
+	/**
+	 * 
+	 * Write a string of any length, in UTF-8.
+	 * 
+	 * @param out The output.
+	 * @param string The string.
+	 * @throws IOException If the string could not be written.
+	 * 
+	 **/
+	private static void writeString(final DataOutputStream out, final String string) throws IOException
+	{
+		final byte[] bytes = String.valueOf(string).getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	
+	/**
+	 * 
+	 * Read a string that was written by {@link #writeString(DataOutputStream, String)}.
+	 * 
+	 * @param in The input.
+	 * @return The string.
+	 * @throws IOException If the string could not be read.
+	 * 
+	 **/
+	private static String readString(final DataInputStream in) throws IOException
+	{
+		final byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+	
+	
+	/**
+	 * 
+	 * A failure of a test in a child JVM. The exception of the child is not passed on, only its stack trace, which is
+	 * printed as the stack trace of this exception.
+	 * 
+	 **/
+	private static final class ForkedFailure extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+		
+		/**
+		 * The stack trace printed by the child.
+		 **/
+		private final String fTrace;
+		
+		
+		/**
+		 * 
+		 * Constructor.
+		 * 
+		 * @param trace The stack trace printed by the child.
+		 * 
+		 **/
+		ForkedFailure(final String trace)
+		{
+			super(trace.split("\\r?\\n", 2)[0], null, false, false);
+			fTrace = trace;
+		}
+		
+		
+		@Override
+		public void printStackTrace(final PrintWriter writer)
+		{
+			writer.print(fTrace);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * The main class of a child JVM, which runs the tests of its shard and writes their events to its standard output.
+	 * The output of the tests is sent to the standard error instead.
+	 * 
+	 **/
+	public static final class Child
+	{
+		/**
+		 * Constructor. Only static methods.
+		 **/
+		private Child()
+		{
+		}
+		
+		
+		/**
+		 * 
+		 * Run the tests of a shard.
+		 * 
+		 * @param args The names of the test classes or suites.
+		 * @throws Exception If a class could not be loaded or the events could not be written.
+		 * 
+		 **/
+		public static void main(final String[] args) throws Exception
+		{
+			final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+			System.setOut(System.err);
+			
+			final Class<?>[] classes = new Class<?>[args.length];
+			for (int i = 0; i < args.length; i++)
+			{
+				classes[i] = Class.forName(args[i]);
+			}
+			
+			final Runner runner = Request.classes(classes).getRunner();
+			try
+			{
+				new ShardFilter(System.getProperty(FORK_PROPERTY), getClassDurations(runner)).apply(runner);
+				final JUnitCore core = new JUnitCore();
+				core.addListener(new EventWriter(out));
+				core.run(runner);
+			}
+			catch (final NoTestsRemainException e)
+			{
+				// The shard has no tests.
+			}
+			
+			out.writeByte(RUN_FINISHED);
+			out.flush();
+			System.exit(0);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * A listener that writes the events of the tests to the launcher.
+	 * 
+	 **/
+	private static final class EventWriter extends RunListener
+	{
+		/**
+		 * The output to the launcher.
+		 **/
+		private final DataOutputStream fOut;
+		
+		
+		/**
+		 * 
+		 * Constructor.
+		 * 
+		 * @param out The output to the launcher.
+		 * 
+		 **/
+		EventWriter(final DataOutputStream out)
+		{
+			fOut = out;
+		}
+		
+		
+		@Override
+		public void testStarted(final Description description) throws IOException
+		{
+			write(TEST_STARTED, description, null);
+		}
+		
+		
+		@Override
+		public void testFinished(final Description description) throws IOException
+		{
+			write(TEST_FINISHED, description, null);
+		}
+		
+		
+		@Override
+		public void testFailure(final Failure failure) throws IOException
+		{
+			write(TEST_FAILURE, failure.getDescription(), failure.getTrace());
+		}
+		
+		
+		@Override
+		public void testAssumptionFailure(final Failure failure)
+		{
+			try
+			{
+				write(TEST_ASSUMPTION_FAILURE, failure.getDescription(), failure.getTrace());
+			}
+			catch (final IOException e)
+			{
+				throw new IllegalStateException(e);
+			}
+		}
+		
+		
+		@Override
+		public void testIgnored(final Description description) throws IOException
+		{
+			write(TEST_IGNORED, description, null);
+		}
+		
+		
+		/**
+		 * 
+		 * Write an event, and flush it so the launcher reports it at once.
+		 * 
+		 * @param event The kind of event.
+		 * @param description The description of the test.
+		 * @param trace The stack trace of a failure, null for other events.
+		 * @throws IOException If the event could not be written.
+		 * 
+		 **/
+		private void write(final byte event, final Description description, final String trace) throws IOException
+		{
+			fOut.writeByte(event);
+			writeDescription(fOut, description);
+			if (trace != null)
+			{
+				writeString(fOut, trace);
+			}
+			fOut.flush();
+		}
+	}
+}
\ No newline at end of file
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.util.Arrays;
+
+/**
+ * 
+ * A hash index of the literal subparts of a node. Unlike a map keyed by strings, the index can be queried with a range
+ * of characters, so finding the child for a part of an expression does not require a substring.
+ * 
+ * The index uses open addressing with linear probing. The entries are kept in insertion order.
+ * 
+ * @author cvesters
+ */
+final class LiteralIndex
+{
+	/**
+	 * The arrays of an index without entries, shared by all such indexes. The table has a single empty slot.
+	 **/
+	private static final String[] EMPTY_KEYS = new String[0];
+	private static final RuleNode[] EMPTY_NODES = new RuleNode[0];
+	private static final int[] EMPTY_TABLE = new int[1];
+	
+	/**
+	 * The keys, in insertion order. Most nodes of a large tree are leaves, so the arrays are only allocated when the
+	 * first entry is added.
+	 **/
+	private String[] fKeys = EMPTY_KEYS;
+	
+	/**
+	 * The nodes, in insertion order.
+	 **/
+	private RuleNode[] fNodes = EMPTY_NODES;
+	
+	/**
+	 * The number of entries.
+	 **/
+	private int fSize;
+	
+	/**
+	 * The hash table. Each slot holds the position of an entry plus one, or 0 if the slot is empty.
+	 **/
+	private int[] fTable = EMPTY_TABLE;
+	
+	
+	/**
+	 * 
+	 * Get the node for a range of characters.
+	 * 
+	 * @param text The text that contains the range.
+	 * @param start The start of the range, inclusive.
+	 * @param end The end of the range, exclusive.
+	 * @return The node of which the key equals the range, null if there is none.
+	 * 
+	 **/
+	RuleNode get(final CharSequence text, final int start, final int end)
+	{
+		final int mask = fTable.length - 1;
+		for (int slot = hash(text, start, end) & mask; fTable[slot] != 0; slot = (slot + 1) & mask)
+		{
+			final int entry = fTable[slot] - 1;
+			if (equals(fKeys[entry], text, start, end))
+			{
+				return fNodes[entry];
+			}
+		}
+		
+		return null;
+	}
+	
+	
+	/**
+	 * 
+	 * Add a node to the index. The key must not be in the index yet.
+	 * 
+	 * @param key The literal subpart.
+	 * @param node The node for the subpart.
+	 * 
+	 **/
+	void put(final String key, final RuleNode node)
+	{
+		assert get(key, 0, key.length()) == null;
+		
+		if (fSize == fKeys.length)
+		{
+			final int capacity = Math.max(4, fSize * 2);
+			fKeys = Arrays.copyOf(fKeys, capacity);
+			fNodes = Arrays.copyOf(fNodes, capacity);
+		}
+		fKeys[fSize] = key;
+		fNodes[fSize] = node;
+		fSize++;
+		
+		// Keep the table at most half full.
+		if ((fSize * 2) > fTable.length)
+		{
+			fTable = new int[Math.max(8, fTable.length * 2)];
+			for (int entry = 0; entry < fSize; entry++)
+			{
+				insert(entry);
+			}
+		}
+		else
+		{
+			insert(fSize - 1);
+		}
+	}
+	
+	
+	/**
+	 * @return The number of entries.
+	 **/
+	int size()
+	{
+		return fSize;
+	}
+	
+	
+	/**
+	 * @param entry The position of the entry.
+	 * @return The key of the entry.
+	 **/
+	String getKey(final int entry)
+	{
+		return fKeys[entry];
+	}
+	
+	
+	/**
+	 * @param entry The position of the entry.
+	 * @return The node of the entry.
+	 **/
+	RuleNode getNode(final int entry)
+	{
+		return fNodes[entry];
+	}
+	
+	
+	/**
+	 * 
+	 * Insert an entry in the hash table.
+	 * 
+	 * @param entry The position of the entry.
+	 * 
+	 **/
+	private void insert(final int entry)
+	{
+		final int mask = fTable.length - 1;
+		int slot = hash(fKeys[entry], 0, fKeys[entry].length()) & mask;
+		while (fTable[slot] != 0)
+		{
+			slot = (slot + 1) & mask;
+		}
+		fTable[slot] = entry + 1;
+	}
+	
+	
+	/**
+	 * 
+	 * Compute the hash of a range of characters.
+	 * 
+	 * @param text The text that contains the range.
+	 * @param start The start of the range, inclusive.
+	 * @param end The end of the range, exclusive.
+	 * @return The hash.
+	 * 
+	 **/
+	private static int hash(final CharSequence text, final int start, final int end)
+	{
+		int hash = 0;
+		for (int i = start; i < end; i++)
+		{
+			hash = (31 * hash) + text.charAt(i);
+		}
+		return hash ^ (hash >>> 16);
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether a key equals a range of characters.
+	 * 
+	 * @param key The key.
+	 * @param text The text that contains the range.
+	 * @param start The start of the range, inclusive.
+	 * @param end The end of the range, exclusive.
+	 * @return True if the key and the range are equal.
+	 * 
+	 **/
+	private static boolean equals(final String key, final CharSequence text, final int start, final int end)
+	{
+		if (key.length() != (end - start))
+		{
+			return false;
+		}
+		
+		for (int i = 0; i < key.length(); i++)
+		{
+			if (key.charAt(i) != text.charAt(start + i))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+}
\ No newline at end of file
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * 
+ * The options of the rules. Besides the verdict, the value of a rule can list options separated by commas, for example
+ * 'com.acme.db = included,serial'. The options are case insensitive.
+ * 
+ * An option applies to a test if the best matching rule lists the option, so options are matched in the same way as
+ * the verdicts. For every option all rules are added to a tree of their own, with the value true if the rule lists the
+ * option, and false otherwise. A more specific rule without the option therefore overrides a general rule with the
+ * option. The trees are only built for the options that occur in the rules.
+ * 
+ * @author cvesters
+ */
+final class RuleOptions
+{
+	/**
+	 * The options of rules that do not list any option.
+	 **/
+	static final RuleOptions NONE = new RuleOptions(new String[0], new FrozenRuleTree[0]);
+	
+	/**
+	 * The names of the options, sorted.
+	 **/
+	private final String[] fNames;
+	
+	/**
+	 * The snapshots of the trees of the options, in the order of their names.
+	 **/
+	private final FrozenRuleTree[] fTrees;
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param names The names of the options, sorted.
+	 * @param trees The snapshots of the trees of the options, in the order of their names.
+	 * 
+	 **/
+	private RuleOptions(final String[] names, final FrozenRuleTree[] trees)
+	{
+		fNames = names;
+		fTrees = trees;
+	}
+	
+	
+	/**
+	 * 
+	 * Constructor. Take a snapshot of the trees of the options.
+	 * 
+	 * @param trees The trees of the options, by name.
+	 * 
+	 **/
+	private RuleOptions(final Map<String, RuleNode> trees)
+	{
+		final TreeMap<String, RuleNode> sortedTrees = new TreeMap<String, RuleNode>(trees);
+		fNames = sortedTrees.keySet().toArray(new String[sortedTrees.size()]);
+		fTrees = new FrozenRuleTree[fNames.length];
+		for (int i = 0; i < fNames.length; i++)
+		{
+			fTrees[i] = sortedTrees.get(fNames[i]).freeze();
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether the value of a rule includes tests. The first part of the value is the verdict, a rule is included
+	 * unless its verdict is 'excluded', ignoring case.
+	 * 
+	 * @param value The value of the rule.
+	 * @return True if the rule includes tests, false if it excludes them.
+	 * 
+	 **/
+	static boolean isIncluded(final CharSequence value)
+	{
+		int end = 0;
+		while ((end < value.length()) && (value.charAt(end) != ','))
+		{
+			end++;
+		}
+		
+		return !"excluded".equalsIgnoreCase(value.subSequence(0, end).toString().trim());
+	}
+	
+	
+	/**
+	 * 
+	 * Add the options listed in the value of a rule to a collection.
+	 * 
+	 * @param value The value of the rule.
+	 * @param options The collection the names of the options are added to, in lower case.
+	 * 
+	 **/
+	static void addOptions(final CharSequence value, final Collection<String> options)
+	{
+		int start = 0;
+		while ((start < value.length()) && (value.charAt(start) != ','))
+		{
+			start++;
+		}
+		
+		while (start < value.length())
+		{
+			int end = start + 1;
+			while ((end < value.length()) && (value.charAt(end) != ','))
+			{
+				end++;
+			}
+			
+			final String option = value.subSequence(start + 1, end).toString().trim();
+			if (!option.isEmpty())
+			{
+				options.add(option.toLowerCase(Locale.ENGLISH));
+			}
+			start = end;
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Build the options of a set of properties.
+	 * 
+	 * @param properties The properties, a rule for every key that is not a directive.
+	 * @return The options of the rules.
+	 * 
+	 **/
+	static RuleOptions create(final Properties properties)
+	{
+		final Set<String> names = new HashSet<String>();
+		for (final String key : properties.stringPropertyNames())
+		{
+			if (!key.startsWith("@"))
+			{
+				addOptions(properties.getProperty(key), names);
+			}
+		}
+		if (names.isEmpty())
+		{
+			return NONE;
+		}
+		
+		final Map<String, RuleNode> trees = createTrees(names);
+		final Set<String> options = new HashSet<String>();
+		for (final String key : properties.stringPropertyNames())
+		{
+			if (!key.startsWith("@"))
+			{
+				addRule(trees, key, properties.getProperty(key), options);
+			}
+		}
+		
+		return new RuleOptions(trees);
+	}
+	
+	
+	/**
+	 * 
+	 * Read the options of the rules of a file. The file is read again for this, but only when its rules list options.
+	 * 
+	 * @param file The file to read.
+	 * @param names The names of the options that occur in the file.
+	 * @return The options of the rules.
+	 * @throws IOException If the file could not be read.
+	 * 
+	 **/
+	static RuleOptions read(final Path file, final Set<String> names) throws IOException
+	{
+		if (names.isEmpty())
+		{
+			return NONE;
+		}
+		
+		final Map<String, RuleNode> trees = createTrees(names);
+		final Set<String> options = new HashSet<String>();
+		try (final BufferedReader reader = RuleReader.open(file))
+		{
+			final RuleReader rules = new RuleReader(reader);
+			while (rules.next())
+			{
+				addRule(trees, rules.getKey(), rules.getValue(), options);
+			}
+		}
+		
+		return new RuleOptions(trees);
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether an option applies to a test or a class.
+	 * 
+	 * @param option The name of the option, in lower case.
+	 * @param expression The name of the test or the class.
+	 * @return True if the best matching rule lists the option.
+	 * 
+	 **/
+	boolean hasOption(final String option, final CharSequence expression)
+	{
+		final int index = Arrays.binarySearch(fNames, option);
+		return (index >= 0) && fTrees[index].getBestMatchingValue(expression);
+	}
+	
+	
+	/**
+	 * 
+	 * Get the value of an option of the form 'name=value' that applies to a test or a class, for example the option
+	 * 'group=db'.
+	 * 
+	 * @param prefix The name of the option followed by '=', in lower case.
+	 * @param expression The name of the test or the class.
+	 * @return The value of the first option with the prefix that applies, null if none applies.
+	 * 
+	 **/
+	String getOptionValue(final String prefix, final CharSequence expression)
+	{
+		for (int i = 0; i < fNames.length; i++)
+		{
+			if (fNames[i].startsWith(prefix) && fTrees[i].getBestMatchingValue(expression))
+			{
+				return fNames[i].substring(prefix.length());
+			}
+		}
+		
+		return null;
+	}
+	
+	
+	/**
+	 * 
+	 * Write the options, in the format read by {@link #read(ByteBuffer)}.
+	 * 
+	 * @param out The output.
+	 * @throws IOException If the options could not be written.
+	 * 
+	 **/
+	void write(final DataOutputStream out) throws IOException
+	{
+		out.writeInt(fNames.length);
+		for (int i = 0; i < fNames.length; i++)
+		{
+			out.writeInt(fNames[i].length());
+			out.writeChars(fNames[i]);
+			fTrees[i].write(out);
+		}
+	}
+	
+	
+	/**
+	 * 
+	 * Read options that were written by {@link #write(DataOutputStream)}, starting at the position of a buffer. The
+	 * position of the buffer is moved past the options.
+	 * 
+	 * @param buffer The buffer, positioned at the start of the options.
+	 * @return The options.
+	 * 
+	 **/
+	static RuleOptions read(final ByteBuffer buffer)
+	{
+		final String[] names = new String[buffer.getInt()];
+		final FrozenRuleTree[] trees = new FrozenRuleTree[names.length];
+		for (int i = 0; i < names.length; i++)
+		{
+			final char[] chars = new char[buffer.getInt()];
+			buffer.asCharBuffer().get(chars);
+			buffer.position(buffer.position() + (chars.length * 2));
+			names[i] = new String(chars);
+			trees[i] = FrozenRuleTree.read(buffer);
+		}
+		
+		return (names.length == 0) ? NONE : new RuleOptions(names, trees);
+	}
+	
+	
+	/**
+	 * 
+	 * Create an empty tree for every option. Tests that match no rule do not have the option.
+	 * 
+	 * @param names The names of the options.
+	 * @return The trees of the options, by name.
+	 * 
+	 **/
+	private static Map<String, RuleNode> createTrees(final Set<String> names)
+	{
+		final Map<String, RuleNode> trees = new TreeMap<String, RuleNode>();
+		for (final String name : names)
+		{
+			trees.put(name, new RuleNode(false));
+		}
+		
+		return trees;
+	}
+	
+	
+	/**
+	 * 
+	 * Add a rule to the tree of every option. When a key occurs several times, the last value is used.
+	 * 
+	 * @param trees The trees of the options, by name.
+	 * @param key The key of the rule.
+	 * @param value The value of the rule.
+	 * @param options A set that is cleared and used to collect the options of the rule.
+	 * 
+	 **/
+	private static void addRule(final Map<String, RuleNode> trees, final String key, final String value, final Set<String> options)
+	{
+		options.clear();
+		addOptions(value, options);
+		for (final Map.Entry<String, RuleNode> entry : trees.entrySet())
+		{
+			entry.getValue().putMatchRule(key, options.contains(entry.getKey()));
+		}
+	}
+}
\ No newline at end of file
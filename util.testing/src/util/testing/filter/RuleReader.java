@@ -0,0 +1,355 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing.filter;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * 
+ * A reader for filter rules in the properties file format, see {@link java.util.Properties#load(Reader)}. The rules
+ * are parsed line by line and added to a tree as soon as they are read, so only a single logical line is held in memory
+ * instead of the complete file. When a key occurs several times, the last value is used, as in a properties file.
+ * 
+ * A rule is included unless its value is 'excluded', ignoring case. The value can list options after the verdict, see
+ * {@link RuleOptions}. Lines without a key are ignored.
+ * 
+ * A key that starts with '@' is a directive instead of a rule, for example '@group.db = 2' which limits the number of
+ * tests of the resource group 'db' that run at the same time. The directives are collected while the rules are read.
+ * 
+ * @author cvesters
+ */
+final class RuleReader
+{
+	/**
+	 * The reader the rules are read from.
+	 **/
+	private final BufferedReader fReader;
+	
+	/**
+	 * The logical line that is being parsed, reused for every line.
+	 **/
+	private final StringBuilder fLine = new StringBuilder();
+	
+	/**
+	 * The key and the value of the last line, reused for every line.
+	 **/
+	private final StringBuilder fKey = new StringBuilder();
+	private final StringBuilder fValue = new StringBuilder();
+	
+	/**
+	 * The names of the options listed by the rules that were read.
+	 **/
+	private final Set<String> fOptionNames = new TreeSet<String>();
+	
+	/**
+	 * The values of the directives that were read, by their key without the '@'.
+	 **/
+	private final Map<String, String> fDirectives = new TreeMap<String, String>();
+	
+	
+	/**
+	 * 
+	 * Constructor.
+	 * 
+	 * @param reader The reader the rules are read from.
+	 * 
+	 **/
+	RuleReader(final Reader reader)
+	{
+		fReader = (reader instanceof BufferedReader) ? (BufferedReader) reader : new BufferedReader(reader);
+	}
+	
+	
+	/**
+	 * 
+	 * Open a file to read rules from. The file is read in the ISO 8859-1 encoding, like
+	 * {@link java.util.Properties#load(java.io.InputStream)}, with unicode escapes for other characters.
+	 * 
+	 * @param file The file to read.
+	 * @return The reader of the file, which must be closed.
+	 * @throws IOException If the file could not be opened.
+	 * 
+	 **/
+	static BufferedReader open(final Path file) throws IOException
+	{
+		return Files.newBufferedReader(file, StandardCharsets.ISO_8859_1);
+	}
+	
+	
+	/**
+	 * 
+	 * Read all rules into a tree.
+	 * 
+	 * @param rootRule The tree to add the rules to.
+	 * @return The number of rules that were read.
+	 * @throws IOException If the rules could not be read.
+	 * 
+	 **/
+	int read(final RuleNode rootRule) throws IOException
+	{
+		int count = 0;
+		while (next())
+		{
+			rootRule.putMatchRule(fKey.toString(), RuleOptions.isIncluded(fValue));
+			RuleOptions.addOptions(fValue, fOptionNames);
+			count++;
+		}
+		
+		return count;
+	}
+	
+	
+	/**
+	 * 
+	 * Read the next rule. Its key and value are available until the rule after it is read. The directives before the
+	 * rule are collected.
+	 * 
+	 * @return True if a rule was read, false at the end of the input.
+	 * @throws IOException If the rule could not be read.
+	 * 
+	 **/
+	boolean next() throws IOException
+	{
+		while (readLine())
+		{
+			parseLine();
+			if ((fKey.length() > 0) && (fKey.charAt(0) == '@'))
+			{
+				fDirectives.put(fKey.substring(1), fValue.toString().trim());
+			}
+			else if (fKey.length() > 0)
+			{
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	
+	/**
+	 * @return The key of the last rule that was read.
+	 **/
+	String getKey()
+	{
+		return fKey.toString();
+	}
+	
+	
+	/**
+	 * @return The value of the last rule that was read.
+	 **/
+	String getValue()
+	{
+		return fValue.toString();
+	}
+	
+	
+	/**
+	 * @return The names of the options listed by the rules that were read so far, in lower case.
+	 **/
+	Set<String> getOptionNames()
+	{
+		return fOptionNames;
+	}
+	
+	
+	/**
+	 * @return The values of the directives that were read so far, by their key without the '@'.
+	 **/
+	Map<String, String> getDirectives()
+	{
+		return fDirectives;
+	}
+	
+	
+	/**
+	 * 
+	 * Read the next logical line that is not blank and not a comment. Leading white space is removed and lines that
+	 * end with an odd number of backslashes are joined with the line that follows.
+	 * 
+	 * @return True if a line was read, false at the end of the input.
+	 * @throws IOException If the line could not be read.
+	 * 
+	 **/
+	private boolean readLine() throws IOException
+	{
+		fLine.setLength(0);
+		String line;
+		while ((line = fReader.readLine()) != null)
+		{
+			// Blank lines and comments are skipped, unless they continue a line that is not empty.
+			final int start = skipWhiteSpace(line, 0);
+			if ((fLine.length() == 0) && ((start == line.length()) || (line.charAt(start) == '#') || (line.charAt(start) == '!')))
+			{
+				continue;
+			}
+			
+			int backslashes = 0;
+			while (((line.length() - backslashes) > start) && (line.charAt(line.length() - backslashes - 1) == '\\'))
+			{
+				backslashes++;
+			}
+			fLine.append(line, start, line.length());
+			
+			if ((backslashes % 2) == 0)
+			{
+				return true;
+			}
+			fLine.setLength(fLine.length() - 1);
+		}
+		
+		return fLine.length() > 0;
+	}
+	
+	
+	/**
+	 * 
+	 * Split the current line into its key and its value. The key ends at the first '=', ':' or white space that is not
+	 * escaped. The value starts after the white space and the separator that follow the key.
+	 * 
+	 **/
+	private void parseLine()
+	{
+		final int length = fLine.length();
+		int keyEnd = 0;
+		boolean escaped = false;
+		boolean separator = false;
+		while (keyEnd < length)
+		{
+			final char c = fLine.charAt(keyEnd);
+			if (escaped)
+			{
+				escaped = false;
+			}
+			else if (c == '\\')
+			{
+				escaped = true;
+			}
+			else if ((c == '=') || (c == ':'))
+			{
+				separator = true;
+				break;
+			}
+			else if (isWhiteSpace(c))
+			{
+				break;
+			}
+			keyEnd++;
+		}
+		
+		int valueStart = keyEnd + (separator ? 1 : 0);
+		valueStart = skipWhiteSpace(fLine, valueStart);
+		if (!separator && (valueStart < length) && ((fLine.charAt(valueStart) == '=') || (fLine.charAt(valueStart) == ':')))
+		{
+			valueStart = skipWhiteSpace(fLine, valueStart + 1);
+		}
+		
+		unescape(fLine, 0, keyEnd, fKey);
+		unescape(fLine, valueStart, length, fValue);
+	}
+	
+	
+	/**
+	 * 
+	 * Skip the white space in a line.
+	 * 
+	 * @param line The line.
+	 * @param start The position to start from.
+	 * @return The position of the first character that is not white space, the length of the line if there is none.
+	 * 
+	 **/
+	private static int skipWhiteSpace(final CharSequence line, final int start)
+	{
+		int position = start;
+		while ((position < line.length()) && isWhiteSpace(line.charAt(position)))
+		{
+			position++;
+		}
+		
+		return position;
+	}
+	
+	
+	/**
+	 * 
+	 * Check whether a character is white space in the properties file format.
+	 * 
+	 * @param c The character.
+	 * @return True for a space, a tab or a form feed.
+	 * 
+	 **/
+	private static boolean isWhiteSpace(final char c)
+	{
+		return (c == ' ') || (c == '\t') || (c == '\f');
+	}
+	
+	
+	/**
+	 * 
+	 * Replace the escape sequences in a range of characters. A backslash followed by 't', 'n', 'r' or 'f' is a tab, a
+	 * new line, a carriage return or a form feed, '\\uxxxx' is a unicode character and a backslash followed by any other
+	 * character is that character.
+	 * 
+	 * @param line The line that contains the range.
+	 * @param start The start of the range, inclusive.
+	 * @param end The end of the range, exclusive.
+	 * @param result The builder that is cleared and filled with the unescaped characters.
+	 * 
+	 **/
+	private static void unescape(final CharSequence line, final int start, final int end, final StringBuilder result)
+	{
+		result.setLength(0);
+		int position = start;
+		while (position < end)
+		{
+			char c = line.charAt(position++);
+			if ((c == '\\') && (position < end))
+			{
+				c = line.charAt(position++);
+				if (c == 'u')
+				{
+					int code = 0;
+					for (int i = 0; i < 4; i++)
+					{
+						final int digit = (position < end) ? Character.digit(line.charAt(position++), 16) : -1;
+						if (digit < 0)
+						{
+							throw new IllegalArgumentException("Malformed \\uxxxx encoding.");
+						}
+						code = (code << 4) + digit;
+					}
+					c = (char) code;
+				}
+				else if (c == 't')
+				{
+					c = '\t';
+				}
+				else if (c == 'n')
+				{
+					c = '\n';
+				}
+				else if (c == 'r')
+				{
+					c = '\r';
+				}
+				else if (c == 'f')
+				{
+					c = '\f';
+				}
+			}
+			result.append(c);
+		}
+	}
+}
\ No newline at end of file
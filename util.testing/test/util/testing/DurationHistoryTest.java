@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.rules.Timeout;
+
+
+
+/**
+ * 
+ * Test the history of the durations and the failures of the tests.
+ * 
+ * @author cvesters
+ */
+public class DurationHistoryTest
+{
+	@Rule
+	public Timeout globalTimeout = new Timeout(1000);
+	
+	@Rule
+	public TemporaryFolder fFolder = new TemporaryFolder();
+	
+	private Path fFile;
+	
+	
+	/**
+	 * Set up the test.
+	 **/
+	@Before
+	public void setup()
+	{
+		fFile = fFolder.getRoot().toPath().resolve("testfilter.history");
+	}
+	
+	
+	/**
+	 * Test that a run that is merged into a new history file is read back.
+	 **/
+	@Test
+	public void testRoundTrip() throws IOException
+	{
+		final Map<String, Long> durations = new HashMap<String, Long>();
+		durations.put("a.b.C", Long.valueOf(300));
+		durations.put("a.b.C.testFirst", Long.valueOf(100));
+		durations.put("a.b.C.testSecond", Long.valueOf(200));
+		durations.put("a.b.D.testSlow", Long.valueOf(5000000000L));
+		DurationHistory.merge(fFile, durations, Collections.singleton("a.b.C.testSecond"));
+		
+		final DurationHistory history = DurationHistory.read(fFile);
+		assertEquals("All durations should be read back.", durations, history.getDurations());
+		assertEquals("The failure should be read back as the most recent run.", 0x80, history.getFailures("a.b.C.testSecond"));
+		assertEquals("A test that passed should have no failures.", 0, history.getFailures("a.b.C.testFirst"));
+		assertEquals("An unknown test should have no duration.", -1, history.getDuration("a.b.C.testThird"));
+	}
+	
+	
+	/**
+	 * Test that a test that failed before any of its tests finished is kept without a duration.
+	 **/
+	@Test
+	public void testFailureWithoutDuration() throws IOException
+	{
+		DurationHistory.merge(fFile, Collections.<String, Long>emptyMap(), Collections.singleton("a.b.C"));
+		
+		final DurationHistory history = DurationHistory.read(fFile);
+		assertEquals("The class should have no duration.", -1, history.getDuration("a.b.C"));
+		assertEquals("The failure of the class should be read back.", 0x80, history.getFailures("a.b.C"));
+	}
+	
+	
+	/**
+	 * Test that the durations are averaged with those of the file, and that the durations of other tests are kept.
+	 **/
+	@Test
+	public void testMergeDurations() throws IOException
+	{
+		DurationHistory.merge(fFile, durations("a.b.C.test", 100, "a.b.C.other", 50), Collections.<String>emptySet());
+		DurationHistory.merge(fFile, durations("a.b.C.test", 300, "a.b.D.test", 70), Collections.<String>emptySet());
+		
+		final DurationHistory history = DurationHistory.read(fFile);
+		assertEquals("The duration should be averaged.", 200, history.getDuration("a.b.C.test"));
+		assertEquals("The duration of a test that did not run should be kept.", 50, history.getDuration("a.b.C.other"));
+		assertEquals("The duration of a new test should be added.", 70, history.getDuration("a.b.D.test"));
+	}
+	
+	
+	/**
+	 * Test that the failures are shifted by every run of the test, and kept by runs without it.
+	 **/
+	@Test
+	public void testMergeFailures() throws IOException
+	{
+		final Set<String> failed = Collections.singleton("a.b.C.test");
+		DurationHistory.merge(fFile, durations("a.b.C.test", 10, "a.b.C.other", 10), failed);
+		DurationHistory.merge(fFile, durations("a.b.C.test", 10, "a.b.C.other", 10), Collections.<String>emptySet());
+		assertEquals("The failure should move down one run.", 0x40, DurationHistory.read(fFile).getFailures("a.b.C.test"));
+		
+		DurationHistory.merge(fFile, durations("a.b.C.other", 10), failed);
+		assertEquals("A failure of a test should be added to its earlier failures.", 0xa0, DurationHistory.read(fFile).getFailures("a.b.C.test"));
+		
+		DurationHistory.merge(fFile, durations("a.b.C.other", 10), Collections.<String>emptySet());
+		assertEquals("A run without the test should keep its failures.", 0xa0, DurationHistory.read(fFile).getFailures("a.b.C.test"));
+		
+		for (int i = 0; i < 8; i++)
+		{
+			DurationHistory.merge(fFile, durations("a.b.C.test", 10), Collections.<String>emptySet());
+		}
+		assertEquals("The failures should be forgotten after eight runs.", 0, DurationHistory.read(fFile).getFailures("a.b.C.test"));
+	}
+	
+	
+	/**
+	 * Test that a history file of the first version, without failures, is read, and merged into the current version.
+	 **/
+	@Test
+	public void testReadVersion1() throws IOException
+	{
+		try (final DataOutputStream out = new DataOutputStream(Files.newOutputStream(fFile)))
+		{
+			out.writeInt(0x48495354);
+			out.writeInt(1);
+			out.writeInt(3);
+			out.writeShort(0);
+			out.writeUTF("a.b.C");
+			out.writeByte(0x64);
+			out.writeShort(5);
+			out.writeUTF(".other");
+			out.writeByte(0x00);
+			out.writeShort(6);
+			out.writeUTF("test");
+			out.writeByte(0xac);
+			out.writeByte(0x02);
+		}
+		
+		final DurationHistory history = DurationHistory.read(fFile);
+		assertEquals("The duration of the class should be read.", 100, history.getDuration("a.b.C"));
+		assertEquals("The name should be read after the shared prefix.", 300, history.getDuration("a.b.C.test"));
+		assertEquals("A duration of 0 should be read.", 0, history.getDuration("a.b.C.other"));
+		assertEquals("A file of the first version has no failures.", 0, history.getFailures("a.b.C.test"));
+		
+		DurationHistory.merge(fFile, durations("a.b.C.test", 100), Collections.singleton("a.b.C.test"));
+		final DurationHistory merged = DurationHistory.read(fFile);
+		assertEquals("The durations of the first version should be merged.", 200, merged.getDuration("a.b.C.test"));
+		assertEquals("The durations of the first version should be kept.", 100, merged.getDuration("a.b.C"));
+		assertEquals("The failure should be added.", 0x80, merged.getFailures("a.b.C.test"));
+	}
+	
+	
+	/**
+	 * Test that the failures of a history file of the current version are read from the byte after the duration.
+	 **/
+	@Test
+	public void testReadVersion2() throws IOException
+	{
+		try (final DataOutputStream out = new DataOutputStream(Files.newOutputStream(fFile)))
+		{
+			out.writeInt(0x48495354);
+			out.writeInt(2);
+			out.writeInt(3);
+			out.writeShort(0);
+			out.writeUTF("a.b.C");
+			out.writeByte(0x65);
+			out.writeByte(0x00);
+			out.writeShort(5);
+			out.writeUTF(".other");
+			out.writeByte(0x0b);
+			out.writeByte(0x01);
+			out.writeShort(6);
+			out.writeUTF("test");
+			out.writeByte(0x00);
+			out.writeByte(0xc0);
+		}
+		
+		final DurationHistory history = DurationHistory.read(fFile);
+		assertEquals("The duration is stored plus one.", 100, history.getDuration("a.b.C"));
+		assertEquals("A class without failures should have none.", 0, history.getFailures("a.b.C"));
+		assertEquals("The failure of the oldest run should be read.", 0x01, history.getFailures("a.b.C.other"));
+		assertEquals("The duration of the test should be read after the shared prefix.", 10, history.getDuration("a.b.C.other"));
+		assertEquals("A stored duration of 0 is a test without a duration.", -1, history.getDuration("a.b.C.test"));
+		assertEquals("The failures of the two most recent runs should be read.", 0xc0, history.getFailures("a.b.C.test"));
+	}
+	
+	
+	/**
+	 * Test that a file that is not a history file is not read.
+	 **/
+	@Test(expected = IOException.class)
+	public void testReadUnreadableFile() throws IOException
+	{
+		Files.write(fFile, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		DurationHistory.read(fFile);
+	}
+	
+	
+	/**
+	 * Test that a file that is not a history file is replaced by a merge.
+	 **/
+	@Test
+	public void testReplaceUnreadableFile() throws IOException
+	{
+		Files.write(fFile, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		DurationHistory.merge(fFile, durations("a.b.C.test", 10), new HashSet<String>());
+		assertEquals("The file should be replaced.", 10, DurationHistory.read(fFile).getDuration("a.b.C.test"));
+	}
+	
+	
+	/**
+	 * 
+	 * Create the durations of a run.
+	 * 
+	 * @param namesAndDurations The names of the tests, each followed by its duration.
+	 * @return The durations, by the name of the test.
+	 * 
+	 **/
+	private static Map<String, Long> durations(final Object... namesAndDurations)
+	{
+		final Map<String, Long> durations = new HashMap<String, Long>();
+		for (int i = 0; i < namesAndDurations.length; i += 2)
+		{
+			durations.put((String) namesAndDurations[i], Long.valueOf(((Integer) namesAndDurations[i + 1]).longValue()));
+		}
+		return durations;
+	}
+}
\ No newline at end of file
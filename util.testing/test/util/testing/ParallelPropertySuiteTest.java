@@ -0,0 +1,281 @@
+/*
+ * Copyright 2015 Inventive Designers nv.
+ */
+
+package util.testing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.internal.builders.AllDefaultPossibilitiesBuilder;
+import org.junit.rules.Timeout;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Result;
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.junit.runners.model.InitializationError;
+
+import util.testing.filter.PropertyFilter;
+
+
+
+/**
+ * 
+ * Test running the children of a suite in the shared pool of the parallel suites.
+ * 
+ * @author cvesters
+ */
+public class ParallelPropertySuiteTest
+{
+	@Rule
+	public Timeout globalTimeout = new Timeout(10000);
+	
+	/**
+	 * The tests that ran, in the order they ended, with where they ran: 'pool' for a worker of the pool, 'caller' for
+	 * the thread that runs the suite.
+	 **/
+	private static final List<String> fgEvents = Collections.synchronizedList(new ArrayList<String>());
+	
+	private PropertyFilter fFilter;
+	
+	
+	/**
+	 * Set up the test.
+	 **/
+	@Before
+	public void setup()
+	{
+		fgEvents.clear();
+		final Properties properties = new Properties();
+		properties.setProperty(Serial.class.getName(), "included,serial");
+		fFilter = new PropertyFilter(properties);
+	}
+	
+	
+	/**
+	 * Test that the serial children run on the calling thread after the concurrent children, which run in the pool.
+	 **/
+	@Test
+	public void testSerialAfterConcurrent() throws InitializationError
+	{
+		final Result result = run(SerialFirstSuite.class);
+		assertTrue("All tests should pass.", result.wasSuccessful());
+		assertEquals("All tests should run.", 3, result.getRunCount());
+		assertEquals("The serial child should run last, on the calling thread.", "Serial@caller", fgEvents.get(2));
+		assertTrue("The concurrent children should run in the pool.", fgEvents.subList(0, 2).containsAll(Arrays.asList("ConcurrentA@pool", "ConcurrentB@pool")));
+	}
+	
+	
+	/**
+	 * Test that the failure of a concurrent child is reported, and that the other children still run.
+	 **/
+	@Test
+	public void testFailurePropagates() throws InitializationError
+	{
+		final Result result = run(FailingSuite.class);
+		assertEquals("All tests should run.", 3, result.getRunCount());
+		assertEquals("The failure should be reported.", 1, result.getFailureCount());
+		assertEquals("The failure should be that of the failing child.", Failing.class.getName(), result.getFailures().get(0).getDescription().getClassName());
+		assertEquals("The serial child should still run last.", "Serial@caller", fgEvents.get(fgEvents.size() - 1));
+	}
+	
+	
+	/**
+	 * Test that nested parallel suites fork their children in the same pool without waiting for each other forever.
+	 **/
+	@Test
+	public void testNestedSuites() throws InitializationError
+	{
+		final Result result = run(OuterSuite.class);
+		assertTrue("All tests should pass.", result.wasSuccessful());
+		assertEquals("All tests should run.", 5, result.getRunCount());
+		assertEquals("The serial child should run last, on the calling thread.", "Serial@caller", fgEvents.get(4));
+		assertEquals("The children of the nested suites should run in the pool.", Collections.nCopies(2, "ConcurrentA@pool"), filter(fgEvents.subList(0, 4), "ConcurrentA@pool"));
+		assertEquals("The children of the nested suites should run in the pool.", Collections.nCopies(2, "ConcurrentB@pool"), filter(fgEvents.subList(0, 4), "ConcurrentB@pool"));
+	}
+	
+	
+	/**
+	 * 
+	 * Run a suite with the filter of the test.
+	 * 
+	 * @param suiteClass The class of the suite.
+	 * @return The result of the run.
+	 * @throws InitializationError If the suite could not be built.
+	 * 
+	 **/
+	private Result run(final Class<?> suiteClass) throws InitializationError
+	{
+		return new JUnitCore().run(Request.runner(new ParallelPropertySuite(suiteClass, new AllDefaultPossibilitiesBuilder(true), fFilter)));
+	}
+	
+	
+	/**
+	 * 
+	 * Keep the events that are equal to an event.
+	 * 
+	 * @param events The events.
+	 * @param event The event to keep.
+	 * @return The events that are equal to the event.
+	 * 
+	 **/
+	private static List<String> filter(final List<String> events, final String event)
+	{
+		final List<String> result = new ArrayList<String>();
+		for (final String e : events)
+		{
+			if (e.equals(event))
+			{
+				result.add(e);
+			}
+		}
+		return result;
+	}
+	
+	
+	/**
+	 * 
+	 * Record that a test ran.
+	 * 
+	 * @param name The name of the test.
+	 * 
+	 **/
+	static void record(final String name)
+	{
+		fgEvents.add(name + ((Thread.currentThread() instanceof ForkJoinWorkerThread) ? "@pool" : "@caller"));
+	}
+	
+	
+	/**
+	 * A concurrent child.
+	 **/
+	public static class ConcurrentA
+	{
+		@Test
+		public void test()
+		{
+			record("ConcurrentA");
+		}
+	}
+	
+	
+	/**
+	 * Another concurrent child.
+	 **/
+	public static class ConcurrentB
+	{
+		@Test
+		public void test()
+		{
+			record("ConcurrentB");
+		}
+	}
+	
+	
+	/**
+	 * A child that is marked serial by the filter.
+	 **/
+	public static class Serial
+	{
+		@Test
+		public void test()
+		{
+			record("Serial");
+		}
+	}
+	
+	
+	/**
+	 * A concurrent child that fails.
+	 **/
+	public static class Failing
+	{
+		@Test
+		public void test()
+		{
+			fail("The test fails on purpose.");
+		}
+	}
+	
+	
+	/**
+	 * A suite that lists the serial child first.
+	 **/
+	@Suite.SuiteClasses
+	({
+		Serial.class,
+		ConcurrentA.class,
+		ConcurrentB.class
+	})
+	public static class SerialFirstSuite
+	{
+	}
+	
+	
+	/**
+	 * A suite with a failing child.
+	 **/
+	@Suite.SuiteClasses
+	({
+		Serial.class,
+		Failing.class,
+		ConcurrentA.class
+	})
+	public static class FailingSuite
+	{
+	}
+	
+	
+	/**
+	 * A parallel suite nested in another.
+	 **/
+	@RunWith(ParallelPropertySuite.class)
+	@Suite.SuiteClasses
+	({
+		ConcurrentA.class,
+		ConcurrentB.class
+	})
+	public static class NestedSuite
+	{
+	}
+	
+	
+	/**
+	 * Another parallel suite nested in another.
+	 **/
+	@RunWith(ParallelPropertySuite.class)
+	@Suite.SuiteClasses
+	({
+		ConcurrentB.class,
+		ConcurrentA.class
+	})
+	public static class OtherNestedSuite
+	{
+	}
+	
+	
+	/**
+	 * A suite with nested parallel suites.
+	 **/
+	@Suite.SuiteClasses
+	({
+		Serial.class,
+		NestedSuite.class,
+		OtherNestedSuite.class
+	})
+	public static class OuterSuite
+	{
+	}
+}
\ No newline at end of file
@@ -18,7 +18,12 @@ import util.testing.filter.RuleNodeTest;
 @RunWith(PropertySuite.class)
 @Suite.SuiteClasses
 ({
-	RuleNodeTest.class
+	RuleNodeTest.class,
+	ParallelPropertySuiteTest.class,
+	ConcurrentMethodSchedulerTest.class,
+	DurationHistoryTest.class,
+	ForkedLauncherTest.class,
+	FailureOrderTest.class
 })
 public class UtilTestingSuite
 {